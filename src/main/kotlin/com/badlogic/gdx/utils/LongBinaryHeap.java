@@ -46,6 +46,7 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 		}
 		// Insert at end and bubble up.
 		nodes[size] = node;
+		node.index = size;
 		up(size++);
 		return node;
 	}
@@ -86,9 +87,28 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 		nodes[0] = nodes[--size];
 		nodes[size] = null;
 		if (size > 0) down(0);
+		removed.index = -1;
 		return (T)removed;
 	}
 
+	/** Removes the given node, which must be in this heap, in O(log n). */
+	public T remove (T node) {
+		Node[] nodes = this.nodes;
+		int index = node.index;
+		Node moved = nodes[--size];
+		nodes[size] = null;
+		if (moved != node) {
+			nodes[index] = moved;
+			moved.index = index;
+			if (moved.value < node.value ^ isMaxHeap)
+				up(index);
+			else
+				down(index);
+		}
+		node.index = -1;
+		return node;
+	}
+
 	/** Returns true if the heap has one or more items. */
 	public boolean notEmpty () {
 		return size > 0;
@@ -101,8 +121,10 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 
 	public void clear () {
 		Node[] nodes = this.nodes;
-		for (int i = 0, n = size; i < n; i++)
+		for (int i = 0, n = size; i < n; i++) {
+			nodes[i].index = -1;
 			nodes[i] = null;
+		}
 		size = 0;
 	}
 
@@ -115,11 +137,13 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 			Node parent = nodes[parentIndex];
 			if (value < parent.value ^ isMaxHeap) {
 				nodes[index] = parent;
+				parent.index = index;
 				index = parentIndex;
 			} else
 				break;
 		}
 		nodes[index] = node;
+		node.index = index;
 	}
 
 	private void down (int index) {
@@ -153,15 +177,18 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 			if (leftValue < rightValue ^ isMaxHeap) {
 				if (leftValue == value || (leftValue > value ^ isMaxHeap)) break;
 				nodes[index] = leftNode;
+				leftNode.index = index;
 				index = leftIndex;
 			} else {
 				if (rightValue == value || (rightValue > value ^ isMaxHeap)) break;
 				nodes[index] = rightNode;
+				rightNode.index = index;
 				index = rightIndex;
 			}
 		}
 
 		nodes[index] = node;
+		node.index = index;
 	}
 
 	@Override
@@ -200,6 +227,8 @@ public class LongBinaryHeap<T extends LongBinaryHeap.Node> {
 	 * @author Nathan Sweet */
 	static public class Node {
 		long value;
+		/** Index in the heap array, -1 when not in a heap. */
+		int index = -1;
 
 		public final long getValue() {
 			return value;
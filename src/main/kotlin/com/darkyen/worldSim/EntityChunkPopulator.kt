@@ -1,5 +1,6 @@
 package com.darkyen.worldSim
 
+import com.darkyen.worldSim.ai.SURVIVAL_BEHAVIOR
 import com.darkyen.worldSim.ai.brain
 import com.darkyen.worldSim.ai.loop
 import com.darkyen.worldSim.ecs.AGENT_ATTRIBUTES
@@ -11,7 +12,9 @@ import com.darkyen.worldSim.ecs.MATURITY_AGE_YEAR
 import com.darkyen.worldSim.ecs.PositionC
 import com.darkyen.worldSim.ecs.RenderC
 import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldSnapshot
 import com.darkyen.worldSim.ecs.atTile
+import com.darkyen.worldSim.util.StreamRandom
 import com.darkyen.worldSim.util.Vec2
 import com.github.antag99.retinazer.Engine
 import kotlin.coroutines.coroutineContext
@@ -19,62 +22,74 @@ import kotlin.math.max
 import kotlin.random.Random
 
 /**
- *
+ * Populates chunks with agents.
+ * Each chunk is populated from its own [SimulationRandom.POPULATION] stream, derived from [seed] and the chunk position,
+ * so the same world with the same seed always gets the same population, regardless of the order in which chunks are populated.
  */
-object EntityChunkPopulator : ChunkPopulator {
-
-	val maleSprites = intArrayOf(
-		39, 44, 45, 47, 40, 50, 70, 71, 52, 63, 72, 68, 53, 62, 73, 49, 61, 55
-	)
-
-	val femaleSprites = intArrayOf(
-		82, 41, 42, 43, 65, 70, 46, 51, 64, 71, 67, 52, 72, 62, 54, 74, 66, 60, 75
-	)
-
-	val childSprites = intArrayOf(
-			48, 56, 59, 76, 69, 57, 58, 77
-	)
-
-	private val intelligentBrainC = IntelligentC {
-		with(coroutineContext[AIContext]!!) {
-			loop {
-				brain()
-			}
-		}
-	}
+class EntityChunkPopulator(private val seed:Long = Random.nextLong()) : ChunkPopulator {
 
 	override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {
 		val positionC = engine.getMapper(PositionC::class.java)
 		val agentC = engine.getMapper(AgentC::class.java)
 		val intelligentC = engine.getMapper(IntelligentC::class.java)
 		val renderC = engine.getMapper(RenderC::class.java)
+		val random = StreamRandom(StreamRandom.streamKey(seed, SimulationRandom.POPULATION, chunkPos.packed))
 
 		for (i in 0 until 50) {
-			val tileKey = chunk.tiles.indices.random()
-			if (chunk.tiles[tileKey].type != TileType.LAND) {
+			val tileKey = chunk.tiles.indices.random(random)
+			if (chunk.getTile(tileKey).type != TileType.LAND) {
 				continue
 			}
 
 			val worldPos = chunkPos.atTile(tileKey)
 			val entity = engine.createEntity()
 
-			val genderMale = Random.nextBoolean()
-			val age = Random.nextInt(0, 70)
+			val genderMale = random.nextBoolean()
+			val age = random.nextInt(0, 70)
 
 			positionC.create(entity).pos = worldPos
-			intelligentC.add(entity, intelligentBrainC)
+			intelligentC.add(entity, if (random.nextFloat() < behaviorTreeShare) intelligentBehaviorC else intelligentBrainC)
 			agentC.add(entity, AgentC(genderMale).also {
 				it.ageYears = age
 				for (attribute in AGENT_ATTRIBUTES) {
-					it.attributes[attribute.ordinal] = Random.nextInt(max(attribute.min.toInt(), 0), attribute.max + 1).toByte()
+					it.attributes[attribute.ordinal] = random.nextInt(max(attribute.min.toInt(), 0), attribute.max + 1).toByte()
 				}
 			})
 			renderC.create(entity).sprite = when {
 				age < MATURITY_AGE_YEAR -> childSprites
 				genderMale -> maleSprites
 				else -> femaleSprites
-			}.random()
+			}.random(random)
 		}
 	}
 
-}
\ No newline at end of file
+	companion object {
+		val maleSprites = intArrayOf(
+			39, 44, 45, 47, 40, 50, 70, 71, 52, 63, 72, 68, 53, 62, 73, 49, 61, 55
+		)
+
+		val femaleSprites = intArrayOf(
+			82, 41, 42, 43, 65, 70, 46, 51, 64, 71, 67, 52, 72, 62, 54, 74, 66, 60, 75
+		)
+
+		val childSprites = intArrayOf(
+				48, 56, 59, 76, 69, 57, 58, 77
+		)
+
+		private val intelligentBrainC = IntelligentC {
+			with(coroutineContext[AIContext]!!) {
+				loop {
+					brain()
+				}
+			}
+		}
+
+		private val intelligentBehaviorC = IntelligentC(SURVIVAL_BEHAVIOR)
+
+		/** All intelligences of populated agents, for [WorldSnapshot]s */
+		val intelligences:List<IntelligentC> = listOf(intelligentBrainC, intelligentBehaviorC)
+
+		/** Which fraction of the population is driven by [SURVIVAL_BEHAVIOR] instead of the full [brain], from the `trees:<float>` argument */
+		private val behaviorTreeShare:Float by lazy { ARGS.get("trees")?.toFloat() ?: 0f }
+	}
+}
@@ -0,0 +1,122 @@
+@file:JvmName("HeadlessMain")
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.ecs.COMPONENT_DOMAIN
+import com.darkyen.worldSim.ecs.ChunkPopulator
+import com.darkyen.worldSim.ecs.ChunkStorage
+import com.darkyen.worldSim.ecs.DAY_LENGTH_IN_REAL_SECONDS
+import com.darkyen.worldSim.ecs.IntelligentS
+import com.darkyen.worldSim.ecs.METRICS
+import com.darkyen.worldSim.ecs.DEFAULT_WORLD_SIZE
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldGenerator
+import com.darkyen.worldSim.ecs.WorldSnapshot
+import com.darkyen.worldSim.ecs.chunkX
+import com.darkyen.worldSim.ecs.chunkY
+import com.darkyen.worldSim.ecs.ofChunkCorner
+import com.darkyen.worldSim.util.MetricsSampler
+import com.darkyen.worldSim.util.PrintMetricsReporter
+import com.darkyen.worldSim.util.Vec2
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import java.nio.file.Paths
+
+/**
+ * Simulation without any rendering, input or UI, which does not need LWJGL or OpenGL.
+ * There is no real-time clock - time is virtual and the simulation runs as fast as the CPU allows.
+ */
+class HeadlessSimulation(generator: WorldGenerator, populator: ChunkPopulator = EntityChunkPopulator(), brainThreads:Int = 1, worldSize:Int = DEFAULT_WORLD_SIZE, storage:ChunkStorage = ChunkStorage(),
+						 random:SimulationRandom = SimulationRandom()) {
+
+	val simulationSpeedRegulator = SimulationSpeedRegulator()
+
+	val world = World(generator, populator, worldSize, storage)
+
+	val engine = Engine(COMPONENT_DOMAIN,
+			SimpleWireResolver(simulationSpeedRegulator),
+			*simulationServices(world, brainThreads, random)
+	)
+
+	/** Generate (and populate) all chunks within [radiusChunks] around the chunk at [center].
+	 * Without a camera, nothing else would bring the initial chunks into existence. */
+	fun generateArea(center:Vec2, radiusChunks:Int) {
+		val centerX = center.chunkX
+		val centerY = center.chunkY
+		for (x in centerX - radiusChunks .. centerX + radiusChunks) {
+			for (y in centerY - radiusChunks .. centerY + radiusChunks) {
+				world.getChunk(Vec2.ofChunkCorner(x, y))
+			}
+		}
+	}
+
+	/** How much time has been simulated so far, in seconds */
+	val simulatedSeconds:Double
+		get() = simulationSpeedRegulator.simulatedSeconds
+
+	/** Update the simulation by one fixed step of [SimulationSpeedRegulator.simulationDelta]. */
+	fun step() {
+		simulationSpeedRegulator.step(engine)
+	}
+
+	/** Simulate given amount of (simulation) [seconds], in fixed steps. */
+	fun simulate(seconds:Float) {
+		val end = simulatedSeconds + seconds
+		while (simulatedSeconds < end) {
+			step()
+		}
+	}
+}
+
+/**
+ * Entry point for the headless simulation.
+ * Arguments:
+ * - `seed:<long>` seed of the world, its population and all other randomness of the simulation (random by default)
+ * - `deterministic` run in the [SimulationRandom.deterministic] mode, so that runs with the same seed are the same
+ * - `days:<float>` how many in-game days to simulate (default 1)
+ * - `radius:<int>` radius of chunks around the world center which are generated at the beginning (default 2)
+ * - `threads:<int>` how many threads run agent brains (default 1)
+ * - `size:<int>` length of a side of the world in tiles, multiple of 32 (default 512)
+ * - `trees:<float>` fraction of agents driven by a behavior tree instead of a brain coroutine (default 0)
+ * - `load:<file>` continue from a [WorldSnapshot] instead of generating a new world, `seed` and `size` are then ignored
+ * - `save:<file>` save a [WorldSnapshot] after each simulated day, must be a different file than `load`
+ * - `metrics` print all [com.darkyen.worldSim.ecs.SimulationMetrics] of each simulated day
+ */
+fun main(args: Array<String>) {
+	parseArguments(args)
+	val days = ARGS.get("days")?.toFloat() ?: 1f
+	val radius = ARGS.get("radius")?.toInt() ?: 2
+	val threads = ARGS.get("threads")?.toInt() ?: 1
+	val savePath = ARGS.get("save")?.let { Paths.get(it) }
+	val metricsSampler = if (ARGS.containsKey("metrics")) MetricsSampler(METRICS, PrintMetricsReporter(System.out)) else null
+
+	val snapshot = ARGS.get("load")?.let { WorldSnapshot.open(Paths.get(it)) }
+	require(savePath == null || snapshot?.isMappedFrom(savePath) != true) { "Can't save into the loaded snapshot $savePath" }
+	val seed = snapshot?.seed ?: ARGS.get("seed")?.toLong() ?: System.currentTimeMillis()
+	val size = snapshot?.worldSize ?: ARGS.get("size")?.toInt() ?: DEFAULT_WORLD_SIZE
+
+	val simulation = HeadlessSimulation(NoiseWorldGenerator(seed), EntityChunkPopulator(seed), brainThreads = threads, worldSize = size,
+			storage = snapshot?.createChunkStorage() ?: ChunkStorage(),
+			random = SimulationRandom(seed, deterministic = ARGS.containsKey("deterministic")))
+	if (snapshot != null) {
+		snapshot.loadEntities(simulation.engine, EntityChunkPopulator.intelligences)
+	} else {
+		simulation.generateArea(Vec2(size / 2, size / 2), radius)
+	}
+	println("Simulating $days days of world $seed")
+
+	val start = System.nanoTime()
+	var day = 0
+	while (day < days) {
+		val dayStart = System.nanoTime()
+		simulation.simulate(minOf(1f, days - day) * DAY_LENGTH_IN_REAL_SECONDS)
+		day++
+		val now = System.nanoTime()
+		val schedulingStats = simulation.engine.getService(IntelligentS::class.java).schedulingStats
+		println("Day $day done in ${(now - dayStart) / 1_000_000} ms, ${simulation.engine.entities.size()} entities, ${schedulingStats.totalLateWakeUps} late brain wake ups (${schedulingStats.totalLagMs} ms total)")
+		metricsSampler?.sample()
+		if (savePath != null) {
+			WorldSnapshot.save(savePath, simulation.engine, simulation.world, seed, EntityChunkPopulator.intelligences)
+		}
+	}
+	println("Simulated $days days in ${(System.nanoTime() - start) / 1_000_000} ms")
+}
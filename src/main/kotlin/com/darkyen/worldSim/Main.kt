@@ -54,13 +54,8 @@ object WorldSim : Game() {
 
 val ARGS = ObjectMap<String, String?>()
 
-fun main(args: Array<String>) {
-	val c = Lwjgl3ApplicationConfiguration()
-	c.setTitle("World Sim")
-	c.useVsync(true)
-	c.setResizable(true)
-	c.setWindowedMode(800, 600)
-	c.setWindowSizeLimits(200, 150, 40000, 30000)
+/** Fill [ARGS] from command line arguments in `key` or `key:value` format. */
+fun parseArguments(args: Array<String>) {
 	ARGS.ensureCapacity(args.size)
 	for (arg in args) {
 		val splitIndex = arg.indexOf(':')
@@ -70,6 +65,16 @@ fun main(args: Array<String>) {
 			ARGS.put(arg.substring(0, splitIndex), arg.substring(splitIndex + 1))
 		}
 	}
+}
+
+fun main(args: Array<String>) {
+	val c = Lwjgl3ApplicationConfiguration()
+	c.setTitle("World Sim")
+	c.useVsync(true)
+	c.setResizable(true)
+	c.setWindowedMode(800, 600)
+	c.setWindowSizeLimits(200, 150, 40000, 30000)
+	parseArguments(args)
 	Lwjgl3Application(object : ApplicationListener {
 		override fun render() {
 			WorldSim.render()
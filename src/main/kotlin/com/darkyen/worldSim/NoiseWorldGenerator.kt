@@ -4,7 +4,6 @@ import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.RandomXS128
 import com.darkyen.worldSim.NoiseWorldGenerator.Biome.*
 import com.darkyen.worldSim.ecs.CHUNK_SIZE
-import com.darkyen.worldSim.ecs.WORLD_SIZE
 import com.darkyen.worldSim.ecs.World
 import com.darkyen.worldSim.ecs.WorldGenerator
 import com.darkyen.worldSim.ecs.tileKey
@@ -16,15 +15,16 @@ import kotlin.math.abs
 import kotlin.math.min
 
 /**
- *
+ * Generates terrain from layered Perlin noise.
+ * Thread safe - chunks may be generated in parallel.
  */
 class NoiseWorldGenerator(seed:Long = System.currentTimeMillis()) : WorldGenerator {
 
 	private val terrainNoise = PerlinNoise(seed)
 	private val terrainEdgeSize = 100f
 
-	private fun terrainHeight(x:Float, y:Float):Float {
-		val distanceToEdge = min(min(abs(x), abs(y)), min(abs(x - WORLD_SIZE), abs(y - WORLD_SIZE)))
+	private fun terrainHeight(x:Float, y:Float, worldSize:Float):Float {
+		val distanceToEdge = min(min(abs(x), abs(y)), min(abs(x - worldSize), abs(y - worldSize)))
 		val bias = if (distanceToEdge < terrainEdgeSize) {
 			1f - (distanceToEdge / terrainEdgeSize)
 		} else 0f
@@ -84,13 +84,14 @@ class NoiseWorldGenerator(seed:Long = System.currentTimeMillis()) : WorldGenerat
 		private val sampler = WeightedSampler(*items)
 
 		fun randomFeature(seed:Int):Feature? {
-			val random = RANDOM
+			val random = RANDOM.get()
 			random.setSeed(seed.toLong())
 			return sampler.sample(random)
 		}
 
 		private companion object {
-			val RANDOM = RandomXS128()
+			/** Per-thread, because chunks may be generated in parallel. */
+			val RANDOM:ThreadLocal<RandomXS128> = ThreadLocal.withInitial { RandomXS128() }
 		}
 	}
 
@@ -163,6 +164,7 @@ class NoiseWorldGenerator(seed:Long = System.currentTimeMillis()) : WorldGenerat
 	}
 
 	override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {
+		val worldSize = world.size.toFloat()
 		val chunkXOff = chunkPos.x
 		val chunkYOff = chunkPos.y
 		for (x in 0 until CHUNK_SIZE) {
@@ -173,7 +175,7 @@ class NoiseWorldGenerator(seed:Long = System.currentTimeMillis()) : WorldGenerat
 				val worldX = worldXI.toFloat()
 				val worldY = worldYI.toFloat()
 
-				val height = terrainHeight(worldX, worldY)
+				val height = terrainHeight(worldX, worldY, worldSize)
 				val temperature = terrainTemperature(worldX, worldY, height)
 				val precipitation = terrainPrecipitation(worldX, worldY, height, temperature)
 
@@ -185,8 +187,8 @@ class NoiseWorldGenerator(seed:Long = System.currentTimeMillis()) : WorldGenerat
 					feature(seed, biome)
 				} else null
 
-				chunk.tiles[tileKey] = tile
-				chunk.features[tileKey] = feature
+				chunk.setTile(tileKey, tile)
+				chunk.setFeature(tileKey, feature)
 			}
 		}
 	}
@@ -0,0 +1,75 @@
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.ecs.AgentNeedS
+import com.darkyen.worldSim.ecs.AgentS
+import com.darkyen.worldSim.ecs.AgentSpatialLookup
+import com.darkyen.worldSim.ecs.AgentSpeechS
+import com.darkyen.worldSim.ecs.ChunkPregenerator
+import com.darkyen.worldSim.ecs.DecayS
+import com.darkyen.worldSim.ecs.IntelligentS
+import com.darkyen.worldSim.ecs.PathFinder
+import com.darkyen.worldSim.ecs.PositionS
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.util.StreamRandom
+import com.github.antag99.retinazer.EngineService
+import kotlin.random.Random
+
+/**
+ * Services which implement the simulation itself, in update order.
+ * None of them depend on graphics, so they can be used both by [WorldSimGame] and by [HeadlessSimulation].
+ * Expects [SimulationSpeedRegulator] to be available for wiring.
+ * @param brainThreads how many threads run agent brains, see [IntelligentS]
+ * @param random source of randomness of all services
+ */
+fun simulationServices(world: World, brainThreads:Int = 1, random:SimulationRandom = SimulationRandom()):Array<EngineService> {
+	return arrayOf(
+			DecayS(),
+			world,
+			ChunkPregenerator(random.deterministic),
+			PathFinder(random.deterministic),
+			AgentNeedS(random),
+			AgentS(random),
+			IntelligentS(brainThreads, random),
+			AgentSpeechS(),
+
+			PositionS(),
+			AgentSpatialLookup()
+	)
+}
+
+/**
+ * Master [seed] of the simulation, from which all random [stream]s of its systems and entities are derived.
+ * Each stream is independent of the others, see [StreamRandom], so the same seed gives the same values to the same entities,
+ * regardless of the order in which they are simulated or of how many threads run their brains.
+ *
+ * That alone does not make the whole simulation reproducible, because it adapts to the speed of the machine:
+ * brains which do not fit into the time budget of an update are postponed, path searches are limited in time
+ * and chunks are generated in the background. When [deterministic], it does not do that,
+ * so the same seed, world and initial population always give the same simulation, at the cost of stalls on slow machines.
+ */
+class SimulationRandom(
+		val seed:Long = Random.nextLong(),
+		/** Whether the simulation must not depend on real time or thread timing */
+		val deterministic:Boolean = false) {
+
+	/** Create the stream [stream] (one of the constants in the companion) for [id], which is typically an entity. */
+	fun stream(stream:Int, id:Long):StreamRandom {
+		return StreamRandom(streamKey(stream, id))
+	}
+
+	/** Key of [stream] (one of the constants in the companion) for [id], to reposition an existing [StreamRandom]. */
+	fun streamKey(stream:Int, id:Long):Long {
+		return StreamRandom.streamKey(seed, stream, id)
+	}
+
+	companion object {
+		/** Decisions of brains, per entity */
+		const val BRAINS = 1
+		/** Changes of needs of agents, per entity, repositioned each hour */
+		const val AGENT_NEEDS = 2
+		/** Changes of agents when they grow up, per entity */
+		const val AGENT_AGING = 3
+		/** Initial population, per chunk */
+		const val POPULATION = 4
+	}
+}
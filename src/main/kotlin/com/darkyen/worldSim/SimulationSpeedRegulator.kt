@@ -2,13 +2,18 @@ package com.darkyen.worldSim
 
 import com.badlogic.gdx.Input
 import com.badlogic.gdx.math.MathUtils
+import com.darkyen.worldSim.ecs.SimulationMetrics
 import com.darkyen.worldSim.input.GameInput
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Engine
-import kotlin.math.min
-import kotlin.math.roundToInt
+import kotlin.math.roundToLong
 
 /**
- * Implements simulation speed control and updates the [Engine] - taking care to not supply time-steps that are too large.
+ * Implements simulation speed control and updates the [Engine] in steps of fixed length, [simulationDelta].
+ * Real time, multiplied by the [multiplier], accumulates in [pendingSeconds] and each [step] consumes one [simulationDelta] of it,
+ * so the simulation behaves the same regardless of the frame rate, or whether there are any frames at all.
+ *
+ * Not thread safe. In the game, it is used from the [SimulationThread] and from the render thread, which take turns through its lock.
  */
 class SimulationSpeedRegulator : WorldSimGame.InputProcessorProvider {
 
@@ -17,10 +22,31 @@ class SimulationSpeedRegulator : WorldSimGame.InputProcessorProvider {
 			field = MathUtils.clamp(value, 1f, 1024f)
 		}
 
+	/** How many simulated seconds should pass in a real second */
 	val multiplier:Float
 		get() = if (paused.isPressed) 0f else baseMultiplier
 
-	var simulationDelta:Float = 0f
+	/** Length of one [step] in simulated seconds. Only tests which update the engine directly should change it. */
+	var simulationDelta:Float = STEP_SECONDS
+
+	/** Simulated seconds which are due, but have not been simulated yet */
+	var pendingSeconds = 0.0
+		private set
+
+	/** How many simulated seconds have been [step]ped through so far */
+	var simulatedSeconds = 0.0
+		private set
+
+	/** How many simulated seconds have actually passed in a real second recently, see [measureAchievedMultiplier].
+	 * Lower than [multiplier] when the machine is too slow for the requested speed. */
+	var achievedMultiplier = 0f
+		private set
+
+	/** [System.nanoTime] of the last [advance] */
+	private var advancedAtNanos = System.nanoTime()
+
+	private var measureStartSimulatedSeconds = 0.0
+	private var measureRealSeconds = 0.0
 
 	private val faster = GameInput.function("Simulation faster", GameInput.Binding.bindKeyboard(Input.Keys.UP)).listen { times, pressed ->
 		if (pressed) {
@@ -38,16 +64,62 @@ class SimulationSpeedRegulator : WorldSimGame.InputProcessorProvider {
 
 	override val inputProcessor = GameInput(faster, slower, paused)
 
-	private val MAX_MS = 50
+	/**
+	 * Let [realDelta] seconds of real time pass, which makes [multiplier] times as many simulated seconds pending.
+	 * When more than [maxLagSeconds] of real time worth of simulation would be pending, the rest is dropped,
+	 * so that a simulation which can't keep up runs slower, instead of accumulating debt which it could never repay.
+	 */
+	fun advance(realDelta:Float, maxLagSeconds:Float = Float.POSITIVE_INFINITY) {
+		val multiplier = multiplier
+		var pending = pendingSeconds + realDelta * multiplier
+		val maxPending = maxOf(maxLagSeconds * multiplier, simulationDelta).toDouble()
+		if (pending > maxPending) {
+			val dropped = pending - maxPending
+			SimulationMetrics.droppedSimulationMs.add((dropped * 1000.0).roundToLong())
+			pending = maxPending
+		}
+		pendingSeconds = pending
+		advancedAtNanos = System.nanoTime()
+	}
+
+	/**
+	 * How many simulated seconds are the entities behind the real time, so that they can be drawn where they would be
+	 * if the simulation was continuous. At most one [simulationDelta], because the simulation can't be predicted any further.
+	 */
+	val interpolationSeconds:Float
+		get() {
+			val sinceAdvance = (System.nanoTime() - advancedAtNanos) * 1e-9 * multiplier
+			return minOf(pendingSeconds + sinceAdvance, simulationDelta.toDouble()).toFloat()
+		}
+
+	/** Whether there is enough [pendingSeconds] for a [step] */
+	val stepPending:Boolean
+		get() = pendingSeconds >= simulationDelta
 
-	fun updateForDelta(delta:Float, engine: Engine) {
-		val fullSimulationDelta = delta * multiplier
-		var simulateMs = (fullSimulationDelta * 1000).roundToInt()
-		while (simulateMs > 0) {
-			val step = min(simulateMs, MAX_MS)
-			simulateMs -= step
-			simulationDelta = step / 1000f
+	/** Update the [engine] by one [simulationDelta] and take it from [pendingSeconds]. */
+	fun step(engine:Engine) {
+		pendingSeconds = maxOf(pendingSeconds - simulationDelta, 0.0)
+		simulatedSeconds += simulationDelta
+		SimulationMetrics.tick.time {
 			engine.update()
 		}
+		SimulationMetrics.ticks.increment()
+	}
+
+	/** Update [achievedMultiplier] after [realDelta] seconds of real time, once enough time has passed for a stable value. */
+	fun measureAchievedMultiplier(realDelta:Float) {
+		measureRealSeconds += realDelta
+		if (measureRealSeconds >= ACHIEVED_MULTIPLIER_INTERVAL_SECONDS) {
+			achievedMultiplier = ((simulatedSeconds - measureStartSimulatedSeconds) / measureRealSeconds).toFloat()
+			measureStartSimulatedSeconds = simulatedSeconds
+			measureRealSeconds = 0.0
+		}
+	}
+
+	companion object {
+		/** Default [simulationDelta]. Large steps make the simulation coarse, small steps make the high speeds expensive. */
+		const val STEP_SECONDS = 0.05f
+
+		private const val ACHIEVED_MULTIPLIER_INTERVAL_SECONDS = 0.5
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.util.logError
+import com.github.antag99.retinazer.Engine
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Runs fixed [SimulationSpeedRegulator.step]s of the [engine] on its own thread, paced by real time,
+ * so that the rendering neither waits for many steps in a frame, nor changes how the simulation behaves.
+ *
+ * The engine is not thread safe, so the simulation and everything else that touches it take turns through [withEngine].
+ * The lock is fair and taken for each step separately, so the render thread waits at most for one step,
+ * even when the simulation is behind. When it is behind by more than [MAX_LAG_SECONDS] of real time,
+ * the rest is dropped and the simulation runs slower than requested, see [SimulationSpeedRegulator.achievedMultiplier].
+ *
+ * When a step fails, the simulation stops and the failure is thrown again by the next [checkFailure] on the render thread.
+ */
+class SimulationThread(private val engine:Engine, private val regulator:SimulationSpeedRegulator) {
+
+	private val lock = ReentrantLock(true)
+
+	@Volatile
+	private var running = false
+
+	/** What stopped the simulation, see [checkFailure] */
+	@Volatile
+	private var failure:Throwable? = null
+
+	private val thread = Thread(::run, "Simulation").apply {
+		isDaemon = true
+	}
+
+	fun start() {
+		running = true
+		thread.start()
+	}
+
+	/** Throw when a step has failed and stopped the simulation, so that the failure does not go unnoticed.
+	 * The original exception is the cause. */
+	fun checkFailure() {
+		val failure = failure ?: return
+		throw IllegalStateException("Simulation step failed", failure)
+	}
+
+	/** Run [action] while the simulation is between steps. */
+	inline fun <T> withEngine(action:() -> T):T {
+		lock()
+		try {
+			return action()
+		} finally {
+			unlock()
+		}
+	}
+
+	@PublishedApi
+	internal fun lock() {
+		lock.lock()
+	}
+
+	@PublishedApi
+	internal fun unlock() {
+		lock.unlock()
+	}
+
+	private fun run() {
+		var lastNanos = System.nanoTime()
+		while (running) {
+			val waitNanos = lock.withLock {
+				val now = System.nanoTime()
+				val realDelta = (now - lastNanos) / 1e9f
+				lastNanos = now
+				regulator.advance(realDelta, MAX_LAG_SECONDS)
+				regulator.measureAchievedMultiplier(realDelta)
+
+				if (regulator.stepPending) {
+					try {
+						regulator.step(engine)
+					} catch (e:Throwable) {
+						logError("SimulationThread", "Simulation step failed, stopping the simulation", e)
+						failure = e
+						running = false
+					}
+					0L
+				} else {
+					// Sleep until the next step is due, but not too long, so that speed changes are noticed quickly
+					val multiplier = regulator.multiplier
+					val missingSeconds = regulator.simulationDelta - regulator.pendingSeconds
+					if (multiplier > 0f) minOf((missingSeconds / multiplier * 1e9).toLong(), MAX_SLEEP_NANOS) else MAX_SLEEP_NANOS
+				}
+			}
+			if (waitNanos > 0L) {
+				LockSupport.parkNanos(waitNanos)
+			}
+		}
+	}
+
+	/** Stop the simulation and wait for the step in progress to finish. */
+	fun stop() {
+		running = false
+		if (thread.isAlive) {
+			LockSupport.unpark(thread)
+			thread.join()
+		}
+	}
+
+	private companion object {
+		/** How far behind the real time can the simulation be before its time is dropped.
+		 * Large values make the simulation react to changes of speed late, after it repays its debt. */
+		const val MAX_LAG_SECONDS = 0.25f
+		const val MAX_SLEEP_NANOS = 10_000_000L
+	}
+}
@@ -18,6 +18,8 @@ enum class Tile(val type:TileType, val sprite:Sprite) {
 	ROCK(TileType.INACCESSIBLE, Simple(31))
 }
 
+val TILES = Tile.values()
+
 enum class TileType {
 	LAND,
 	INACCESSIBLE,
@@ -88,6 +90,8 @@ enum class Feature(
 	val aspects = EnumSet.noneOf(FeatureAspect::class.java).also { it.addAll(aspects) }
 }
 
+val FEATURES = Feature.values()
+
 enum class FeatureAspect {
 	WALK_FASTER,
 	WALK_SLOWER,
@@ -1,6 +1,7 @@
 package com.darkyen.worldSim
 
 import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.Input
 import com.badlogic.gdx.InputProcessor
 import com.badlogic.gdx.Screen
 import com.badlogic.gdx.graphics.GL20
@@ -9,42 +10,48 @@ import com.badlogic.gdx.scenes.scene2d.Stage
 import com.badlogic.gdx.utils.Disposable
 import com.badlogic.gdx.utils.viewport.ScreenViewport
 import com.darkyen.worldSim.ecs.AgentDetailUI
-import com.darkyen.worldSim.ecs.AgentNeedS
-import com.darkyen.worldSim.ecs.AgentS
-import com.darkyen.worldSim.ecs.AgentSpatialLookup
-import com.darkyen.worldSim.ecs.AgentSpeechS
 import com.darkyen.worldSim.ecs.COMPONENT_DOMAIN
 import com.darkyen.worldSim.ecs.CameraControllerFree
 import com.darkyen.worldSim.ecs.CameraService
-import com.darkyen.worldSim.ecs.DecayS
-import com.darkyen.worldSim.ecs.IntelligentS
-import com.darkyen.worldSim.ecs.PathFinder
-import com.darkyen.worldSim.ecs.PositionS
+import com.darkyen.worldSim.ecs.ChunkStorage
 import com.darkyen.worldSim.ecs.RenderS
 import com.darkyen.worldSim.ecs.RenderSpatialLookup
+import com.darkyen.worldSim.ecs.DEFAULT_WORLD_SIZE
 import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldSnapshot
+import com.darkyen.worldSim.input.GameInput
 import com.darkyen.worldSim.input.InputStack
+import com.darkyen.worldSim.util.logError
 import com.github.antag99.retinazer.Engine
 import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
 
 /**
  * Core screen of the simulation. Most of the behavior is implemented as different [engine] services.
+ * The simulation runs on its own [SimulationThread], the rendering only reads the engine between its steps.
+ *
+ * When started with `load:<file>`, the world is loaded from that [WorldSnapshot] (if it exists).
+ * When started with `save:<file>`, it is saved into that file on F5 and when the game is closed.
+ * The loaded snapshot stays memory-mapped while the game runs, so the two files must differ.
  */
 class WorldSimGame : Screen {
 	private val simulationSpeedRegulator = SimulationSpeedRegulator()
 
+	private val snapshot:WorldSnapshot? = ARGS.get("load")?.let { Paths.get(it) }?.takeIf { Files.exists(it) }?.let { WorldSnapshot.open(it) }
+	private val snapshotPath:Path? = ARGS.get("save")?.let { Paths.get(it) }?.also {
+		require(snapshot?.isMappedFrom(it) != true) { "Can't save into the loaded snapshot $it" }
+	}
+	private val seed = snapshot?.seed ?: System.currentTimeMillis()
+	private val world = World(NoiseWorldGenerator(seed), EntityChunkPopulator(seed),
+			snapshot?.worldSize ?: ARGS.get("size")?.toInt() ?: DEFAULT_WORLD_SIZE,
+			snapshot?.createChunkStorage() ?: ChunkStorage())
+
 	private val engine = Engine(COMPONENT_DOMAIN,
 			SimpleWireResolver(simulationSpeedRegulator),
-			DecayS(),
-			World(NoiseWorldGenerator(), EntityChunkPopulator),
-			PathFinder(),
-			AgentNeedS(),
-			AgentS(),
-			IntelligentS(),
-			AgentSpeechS(),
-
-			PositionS(),
-			AgentSpatialLookup(),
+			*simulationServices(world, ARGS.get("threads")?.toInt() ?: 1, SimulationRandom(seed)),
 			RenderSpatialLookup(),
 
 			CameraControllerFree(),
@@ -53,13 +60,27 @@ class WorldSimGame : Screen {
 			RenderS()
 	)
 
+	init {
+		snapshot?.loadEntities(engine, EntityChunkPopulator.intelligences)
+	}
+
+	private val simulationThread = SimulationThread(engine, simulationSpeedRegulator)
+
 	private val engineRenderServices = engine.getServices(RenderService::class.java).toTypedArray()
 
+	private val saveSnapshotInput = GameInput.function("Save snapshot", GameInput.Binding.bindKeyboard(Input.Keys.F5)).listen { _, pressed ->
+		if (pressed) {
+			saveSnapshot()
+			true
+		} else false
+	}
+
 	private val input = InputStack().apply {
 		for (service in engine.getServices(InputProcessorProvider::class.java)) {
 			push(service.inputProcessor, true)
 		}
 		push(simulationSpeedRegulator.inputProcessor, true)
+		push(GameInput(saveSnapshotInput), true)
 	}
 
 	private val uiViewport = ScreenViewport()
@@ -69,6 +90,11 @@ class WorldSimGame : Screen {
 		}
 	}
 
+	init {
+		// Last, everything else that uses the engine is ready now
+		simulationThread.start()
+	}
+
 	override fun show() {
 		Gdx.input.inputProcessor = input
 	}
@@ -76,13 +102,15 @@ class WorldSimGame : Screen {
 	override fun hide() {}
 
 	override fun render(delta: Float) {
+		simulationThread.checkFailure()
 		Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT)
-		simulationSpeedRegulator.updateForDelta(delta, engine)
-		for (service in engineRenderServices) {
-			service.renderUpdate(delta)
+		simulationThread.withEngine {
+			for (service in engineRenderServices) {
+				service.renderUpdate(delta)
+			}
+			stage.act(delta)
+			stage.draw()
 		}
-		stage.act(delta)
-		stage.draw()
 	}
 
 	override fun pause() {}
@@ -93,7 +121,21 @@ class WorldSimGame : Screen {
 		uiViewport.update(width, height, true)
 	}
 
+	/** Save the world into [snapshotPath], if there is one. */
+	private fun saveSnapshot() {
+		val snapshotPath = snapshotPath ?: return
+		try {
+			simulationThread.withEngine {
+				WorldSnapshot.save(snapshotPath, engine, world, seed, EntityChunkPopulator.intelligences)
+			}
+		} catch (e:IOException) {
+			logError("WorldSimGame", "Failed to save snapshot to $snapshotPath", e)
+		}
+	}
+
 	override fun dispose() {
+		simulationThread.stop()
+		saveSnapshot()
 		for (disposable in engine.getServices(Disposable::class.java)) {
 			disposable.dispose()
 		}
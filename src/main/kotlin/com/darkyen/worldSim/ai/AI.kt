@@ -9,6 +9,8 @@ import com.darkyen.worldSim.TileType
 import com.darkyen.worldSim.ecs.AIContext
 import com.darkyen.worldSim.ecs.AgentActivity
 import com.darkyen.worldSim.ecs.AgentAttribute
+import com.darkyen.worldSim.ecs.BrainGoal
+import com.darkyen.worldSim.ecs.CHUNK_SIZE
 import com.darkyen.worldSim.ecs.MEMORY_CAPACITY
 import com.darkyen.worldSim.ecs.MEMORY_TYPES
 import com.darkyen.worldSim.ecs.MemoryType
@@ -23,7 +25,7 @@ import com.darkyen.worldSim.util.directionTo
 import com.darkyen.worldSim.util.indexOfMax
 import java.util.*
 import kotlin.math.max
-import kotlin.random.Random
+import kotlin.math.roundToLong
 
 /** Part of AI programming that can succeed or fail. */
 typealias AITask = (suspend AIContext.() -> Boolean)
@@ -42,32 +44,194 @@ suspend fun AIContext.walk(direction: Direction, activity:AgentActivity = AgentA
 	val moveFrom = positionC.pos
 	val moveTo = moveFrom + direction.vec
 
+	val world = worldCursor
 	if (world.getTile(moveTo).type != TileType.LAND) {
 		return false
 	}
 
 	positionC.movement = direction
-	positionC.speed = world.getMovementSpeedMultiplier(moveFrom) * MathUtils.lerp(0.6f, 1.4f, agentC.attributePercent(AgentAttribute.AGILITY))
+	positionC.speed = walkingSpeed(moveFrom)
 	wait(activity)
 	return true
 }
 
+/** Speed of walking from the tile at [from], in tiles per second. */
+fun AIContext.walkingSpeed(from:Vec2):Float {
+	return worldCursor.getMovementSpeedMultiplier(from) * MathUtils.lerp(0.6f, 1.4f, agent.attributePercent(AgentAttribute.AGILITY))
+}
+
+/**
+ * Walk through up to [LOD_JUMP_LENGTH] tiles given by [nextTile] at once: do [activity] for as long as walking would take,
+ * then [teleport][AIContext.teleport] to the last one. For agents which are not [observed][AIContext.isObserved].
+ * @param nextTile gives the next tile after the given one, or [Vec2.NULL] when there are no more
+ * @return how many tiles were walked, 0 if not even the first one is walkable or there are no tiles at all
+ */
+private suspend inline fun AIContext.jump(activity:AgentActivity, nextTile:(from:Vec2) -> Vec2):Int {
+	var jumpTo = Vec2.NULL
+	var jumpDurationMs = 0L
+	val steps = planJump(nextTile) { to, durationMs ->
+		jumpTo = to
+		jumpDurationMs = durationMs
+	}
+	if (steps > 0) {
+		delay(activity, jumpDurationMs)
+		teleport(jumpTo)
+	}
+	return steps
+}
+
+/**
+ * Go through up to [LOD_JUMP_LENGTH] walkable tiles given by [nextTile], without moving, to plan a jump.
+ * When there is at least one, [jump] gets the last one and how long would walking there take.
+ * @param nextTile gives the next tile after the given one, or [Vec2.NULL] when there are no more
+ * @return how many tiles can be walked, 0 if not even the first one is walkable or there are no tiles at all
+ */
+inline fun AIContext.planJump(nextTile:(from:Vec2) -> Vec2, jump:(to:Vec2, durationMs:Long) -> Unit):Int {
+	val world = worldCursor
+	var from = position.pos
+	var durationMs = 0f
+	var steps = 0
+	while (steps < LOD_JUMP_LENGTH) {
+		val to = nextTile(from)
+		if (to == Vec2.NULL || world.getTile(to).type != TileType.LAND) {
+			break
+		}
+		durationMs += 1000f / walkingSpeed(from)
+		from = to
+		steps++
+	}
+
+	if (steps > 0) {
+		jump(from, durationMs.roundToLong())
+	}
+	return steps
+}
+
+/** Walk to [targetPosition] (or only next to it, if [onlyNear]).
+ * Popular destinations are reached through shared flow fields,
+ * long paths are planned through waypoints and walked segment by segment.
+ * @return whether successful */
 suspend fun AIContext.walkTo(targetPosition: Vec2, onlyNear:Boolean = false, activity:AgentActivity = AgentActivity.WALKING):Boolean {
+	return pursue(if (onlyNear) BrainGoal.WALK_NEAR else BrainGoal.WALK_TO, targetPosition) {
+		val distance = position.pos.manhDst(targetPosition)
+		if (distance <= FLOW_FIELD_RADIUS) {
+			val flowField = pathFinder.findFlowField(targetPosition, onlyNear)
+			if (flowField != null && flowField.costAt(position.pos) != Float.POSITIVE_INFINITY) {
+				return followFlowField(flowField, activity)
+			}
+		}
+
+		if (distance > HIERARCHICAL_PATH_MIN_DISTANCE) {
+			val from = position.pos
+			val waypoints = offload(AgentActivity.PONDERING) {
+				pathFinder.findWaypoints(from, targetPosition, onlyNear)
+			} ?: return false
+			for (i in 0 until waypoints.length) {
+				if (!walkPathTo(waypoints.node(i), false, activity)) {
+					return false
+				}
+			}
+		}
+
+		walkPathTo(targetPosition, onlyNear, activity)
+	}
+}
+
+/** Do [action] with [AIContext.goal] set to [goal] (and [target]), so that a restored brain finishes it. */
+private inline fun <T> AIContext.pursue(goal:BrainGoal, target:Vec2, action:() -> T):T {
+	val previousGoal = this.goal
+	val previousGoalTarget = goalTarget
+	this.goal = goal
+	goalTarget = target
+	try {
+		return action()
+	} finally {
+		this.goal = previousGoal
+		goalTarget = previousGoalTarget
+	}
+}
+
+/** Finish [AIContext.goal] which the brain was pursuing when it was saved, now that it wakes up after being restored. */
+suspend fun AIContext.resumeGoal() {
+	val goal = goal
+	val target = goalTarget
+	this.goal = BrainGoal.NONE
+	goalTarget = Vec2.NULL
+	when (goal) {
+		BrainGoal.NONE -> {}
+		BrainGoal.SLEEP -> {
+			// The brain wakes up at the end of a delay, after which a point of sleep is added
+			if (sleptOnePoint()) {
+				sleepFor(AgentAttribute.SLEEP.max - attributes()[AgentAttribute.SLEEP])
+			}
+		}
+		BrainGoal.WALK_TO -> walkTo(target)
+		BrainGoal.WALK_NEAR -> walkTo(target, true)
+	}
+}
+
+/** Walk to the destination of the [flowField], which must be reachable from the current position. */
+private suspend fun AIContext.followFlowField(flowField: FlowField, activity:AgentActivity):Boolean {
+	while (true) {
+		if (!isObserved()) {
+			val steps = jump(activity) { from ->
+				val direction = flowField.directionFrom(from)
+				if (direction == Direction.NONE) Vec2.NULL else from + direction.vec
+			}
+			if (steps > 0) {
+				continue
+			}
+		}
+
+		val direction = flowField.directionFrom(position.pos)
+		if (direction == Direction.NONE) {
+			return flowField.costAt(position.pos) == 0f
+		}
+		if (!walk(direction, activity)) {
+			return false
+		}
+	}
+}
+
+/** Find a path from [from] to [to] (or only near it), without blocking other brains while searching.
+ * @return the path or null if not found */
+suspend fun AIContext.findPath(from:Vec2, to:Vec2, onlyNear:Boolean = false):WorldPathFinder.Path? {
+	val pathFinder = pathFinder
+	return offload(AgentActivity.PONDERING) {
+		if (onlyNear) {
+			pathFinder.findPathNear(from, to)
+		} else {
+			pathFinder.findPath(from, to)
+		}
+	}
+}
+
+/** Walk to [targetPosition] through a path found by a single search. */
+private suspend fun AIContext.walkPathTo(targetPosition: Vec2, onlyNear:Boolean, activity:AgentActivity):Boolean {
 	val positionC = position
 	var currentPos = positionC.pos
-	val path = if (onlyNear) {
-		pathFinder.findPathNear(currentPos, targetPosition)
-	} else {
-		pathFinder.findPath(currentPos, targetPosition)
-	} ?: return false
+	val path = findPath(currentPos, targetPosition, onlyNear) ?: return false
+
+	var i = 0
+	while (i < path.length) {
+		if (!isObserved()) {
+			var next = i
+			val steps = jump(activity) { if (next < path.length) path.node(next++) else Vec2.NULL }
+			if (steps == 0) {
+				return false
+			}
+			i += steps
+			currentPos = path.node(i - 1)
+			continue
+		}
 
-	for (i in 0 until path.length) {
 		val nextPos = path.node(i)
 		val dir = currentPos.directionTo(nextPos)
 		if (!walk(dir, activity)) {
 			return false
 		}
 		currentPos = nextPos
+		i++
 	}
 
 	return true
@@ -106,14 +270,14 @@ fun AIContext.tileCount(item: Item):Int {
  * Can't look further than [MAX_LOOK_DISTANCE] manhattan distance. */
 fun AIContext.tileAt(position: Vec2): Tile {
 	assert (this.position.pos.manhDst(position) <= MAX_LOOK_DISTANCE) { (this.position.pos - position).toString() }
-	return world.getTile(position)
+	return worldCursor.getTile(position)
 }
 
 /** Get feature at [position].
  * Can't look further than [MAX_LOOK_DISTANCE] manhattan distance. */
 fun AIContext.featureAt(position: Vec2): Feature? {
 	assert (this.position.pos.manhDst(position) <= MAX_LOOK_DISTANCE) { (this.position.pos - position).toString() }
-	return world.getFeature(position)
+	return worldCursor.getFeature(position)
 }
 
 /** Memorize something. May remove some other memory if the memory is full. */
@@ -154,7 +318,7 @@ fun AIContext.memorize(type: MemoryType, newLocation:Vec2) {
 
 	val mostAbundantMemory = memoryTypeCounts.indexOfMax()
 	// Pick random abundant memory and forget it, replacing it with our new info
-	var memoryToForget = Random.nextInt(memoryTypeCounts[mostAbundantMemory].toInt())
+	var memoryToForget = random.nextInt(memoryTypeCounts[mostAbundantMemory].toInt())
 	for (i in memoryTypes.indices) {
 		val memoryType = memoryTypes[i]
 		if (memoryType.toInt() != mostAbundantMemory) {
@@ -254,7 +418,7 @@ suspend fun AIContext.drinkFromInventory():Boolean {
 }
 
 suspend fun AIContext.drinkFromEnvironment():Boolean {
-	val world = world
+	val world = worldCursor
 	val myPos = position.pos
 	val waterNearby = anyPositionNearIs(myPos) { pos -> world.getTile(pos).type == TileType.WATER }
 
@@ -270,7 +434,7 @@ suspend fun AIContext.drinkFromEnvironment():Boolean {
 }
 
 suspend fun AIContext.refillCanteen():Boolean {
-	val world = world
+	val world = worldCursor
 	val myPos = position.pos
 	val waterNearby = anyPositionNearIs(myPos) { pos -> world.getTile(pos).type == TileType.WATER }
 	if (!waterNearby) {
@@ -293,7 +457,7 @@ suspend fun AIContext.refillCanteen():Boolean {
 
 suspend fun AIContext.gatherCraftingResourcesFromEnvironment():Boolean {
 	val myPos = position.pos
-	val tileFeatures = world.getFeature(myPos) ?: return false
+	val tileFeatures = worldCursor.getFeature(myPos) ?: return false
 	val aspects = tileFeatures.aspects
 	if (FeatureAspect.CRAFTING_MATERIAL_SOURCE in aspects) {
 		memorize(MemoryType.CRATING_MATERIAL_SOURCE_POSITION, myPos)
@@ -307,7 +471,7 @@ suspend fun AIContext.gatherCraftingResourcesFromEnvironment():Boolean {
 
 suspend fun AIContext.gatherWoodFromEnvironment():Boolean {
 	val myPos = position.pos
-	val tileFeatures = world.getFeature(myPos) ?: return false
+	val tileFeatures = worldCursor.getFeature(myPos) ?: return false
 	val aspects = tileFeatures.aspects
 	if (FeatureAspect.WOOD_SOURCE in aspects) {
 		memorize(MemoryType.WOOD_SOURCE_POSITION, myPos)
@@ -321,7 +485,7 @@ suspend fun AIContext.gatherWoodFromEnvironment():Boolean {
 
 suspend fun AIContext.gatherStoneFromEnvironment():Boolean {
 	val myPos = position.pos
-	val tileFeatures = world.getFeature(myPos) ?: return false
+	val tileFeatures = worldCursor.getFeature(myPos) ?: return false
 	val aspects = tileFeatures.aspects
 	if (FeatureAspect.STONE_SOURCE in aspects) {
 		memorize(MemoryType.STONE_SOURCE_POSITION, myPos)
@@ -334,7 +498,7 @@ suspend fun AIContext.gatherStoneFromEnvironment():Boolean {
 
 suspend fun AIContext.gatherFoodFromEnvironment():Boolean {
 	val myPos = position.pos
-	val tileFeatures = world.getFeature(myPos) ?: return false
+	val tileFeatures = worldCursor.getFeature(myPos) ?: return false
 
 	val aspects = tileFeatures.aspects
 	if (FeatureAspect.FOOD_SOURCE_FRUIT in aspects) {
@@ -385,7 +549,7 @@ fun AIContext.misfire():Boolean {
 	if (misfireChance <= 0) {
 		return false
 	}
-	return misfireChance > Random.nextInt(100)
+	return misfireChance > random.nextInt(100)
 }
 
 /** Check if the agent is getting uncomfortable and should re-evaluate life choices. */
@@ -398,23 +562,33 @@ fun AIContext.isGettingUncomfortable():Boolean {
 }
 
 suspend fun AIContext.sleep() {
-	val attributes = attributes()
-	val sleepForPoints = max(AgentAttribute.SLEEP.max - attributes[AgentAttribute.SLEEP], 10)
-
-	for (i in 0 until sleepForPoints) {
-		delay(AgentActivity.SLEEPING, SLEEP_DURATION_MS_PER_POINT)
-		val sleepAttr = attributes[AgentAttribute.SLEEP] + 1
-		attributes[AgentAttribute.SLEEP] = sleepAttr
+	sleepFor(max(AgentAttribute.SLEEP.max - attributes()[AgentAttribute.SLEEP], 10))
+}
 
-		val waterNeed = attributes[AgentAttribute.THIRST].toInt()
-		val foodNeed = attributes[AgentAttribute.HUNGER].toInt()
-		if ((waterNeed < 10 || foodNeed < 10) && (sleepAttr > -30)) {
-			// Can't sleep when really thirsty or hungry (and not super sleep deprived)
-			break
+private suspend fun AIContext.sleepFor(points:Int) {
+	pursue(BrainGoal.SLEEP, Vec2.NULL) {
+		for (i in 0 until points) {
+			delay(AgentActivity.SLEEPING, SLEEP_DURATION_MS_PER_POINT)
+			if (!sleptOnePoint()) {
+				break
+			}
 		}
 	}
 }
 
+/** Add a point of sleep, which has just been slept.
+ * @return whether it is possible to continue sleeping */
+private fun AIContext.sleptOnePoint():Boolean {
+	val attributes = attributes()
+	val sleepAttr = attributes[AgentAttribute.SLEEP] + 1
+	attributes[AgentAttribute.SLEEP] = sleepAttr
+
+	val waterNeed = attributes[AgentAttribute.THIRST].toInt()
+	val foodNeed = attributes[AgentAttribute.HUNGER].toInt()
+	// Can't sleep when really thirsty or hungry (and not super sleep deprived)
+	return !((waterNeed < 10 || foodNeed < 10) && (sleepAttr > -30))
+}
+
 suspend fun AIContext.talkWith(entity:Int):Boolean {
 	// TODO somehow engage the other entity into this?
 	val otherAgentC = agentMapper[entity] ?: return false
@@ -431,14 +605,14 @@ suspend fun AIContext.talkWith(entity:Int):Boolean {
 		val typeToSay:MemoryType
 		val infoToSay:Vec2
 		// Sometimes say something useful
-		when (Random.nextBits(3)) {
+		when (random.nextBits(3)) {
 			0 -> {
 				// Tell something or ask about something
-				val index = Random.nextInt(MEMORY_CAPACITY)
+				val index = random.nextInt(MEMORY_CAPACITY)
 				val chosenInformationType = MEMORY_TYPES[agent.positionMemoryType[index].toInt()]
 				if (chosenInformationType == MemoryType.NO_MEMORY) {
 					// Ask instead
-					typeToSay = MEMORY_TYPES.random()
+					typeToSay = MEMORY_TYPES.random(random)
 					infoToSay = Vec2.NULL
 				} else {
 					typeToSay = chosenInformationType
@@ -447,7 +621,7 @@ suspend fun AIContext.talkWith(entity:Int):Boolean {
 			}
 			1 -> {
 				// Ask about something
-				typeToSay = MEMORY_TYPES.random()
+				typeToSay = MEMORY_TYPES.random(random)
 				infoToSay = Vec2.NULL
 			}
 			else -> {
@@ -491,6 +665,10 @@ suspend fun AIContext.craftItem(item:Item):Boolean {
 }
 
 const val MAX_LOOK_DISTANCE = 8
+/** Paths longer than this are planned hierarchically, see [AIContext.walkTo] */
+const val HIERARCHICAL_PATH_MIN_DISTANCE = CHUNK_SIZE
+/** How many tiles can an agent that is not observed cover in a single jump, before checking whether it became observed */
+const val LOD_JUMP_LENGTH = 16
 
 const val HUNGER_POINTS_PER_FOOD = 50
 const val THIRST_POINTS_PER_DRINK_CONTAINER = 50
@@ -0,0 +1,633 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.TileType
+import com.darkyen.worldSim.ecs.AICoroutineDispatcher
+import com.darkyen.worldSim.ecs.AIContext
+import com.darkyen.worldSim.ecs.AgentActivity
+import com.darkyen.worldSim.ecs.BrainCheckpoint
+import com.darkyen.worldSim.ecs.BrainGoal
+import com.darkyen.worldSim.ecs.MemoryType
+import com.darkyen.worldSim.util.DIRECTIONS
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.directionTo
+import com.darkyen.worldSim.util.logError
+import kotlin.coroutines.Continuation
+import kotlin.coroutines.CoroutineContext
+
+/** Result of [BehaviorNode.tick]. */
+enum class BehaviorStatus {
+	SUCCESS,
+	FAILURE,
+	/** Not done yet, wake up has been requested, tick again after it */
+	RUNNING
+}
+
+/**
+ * Alternative to [Brain][com.darkyen.worldSim.ecs.Brain] coroutines, which does not allocate when running.
+ * The tree is built once and shared by all agents that use it, each agent keeps only an [IntArray] of state.
+ *
+ * When the [root] finishes, the agent ponders for [restartDelayMs] and then starts from the root again.
+ */
+class BehaviorTree(val root:BehaviorNode, val restartDelayMs:Long = 1000) {
+
+	/** How many ints of state does each agent need */
+	val stateSize:Int
+
+	init {
+		var stateSize = 0
+		fun assignState(node:BehaviorNode) {
+			require(node.stateOffset == -1) { "$node is used more than once" }
+			node.stateOffset = stateSize
+			stateSize += node.stateSize
+			for (child in node.children) {
+				assignState(child)
+			}
+		}
+		assignState(root)
+		this.stateSize = stateSize
+	}
+}
+
+/**
+ * Node of a [BehaviorTree]. Nodes are immutable and each can be in only one tree, at one place.
+ * Anything that changes while the node runs is stored in [BehaviorAgent.state], starting at [stateOffset].
+ * Nodes must leave their state zeroed when they return [BehaviorStatus.SUCCESS] or [BehaviorStatus.FAILURE].
+ */
+abstract class BehaviorNode(vararg children:BehaviorNode) {
+
+	val children:Array<out BehaviorNode> = children
+
+	/** How many ints of per-agent state does this node need */
+	open val stateSize:Int
+		get() = 0
+
+	/** Where does the state of this node start, assigned by [BehaviorTree] */
+	var stateOffset = -1
+		internal set
+
+	/** Do the next part of the work.
+	 * When the node can't finish right away, it requests a wake up through [BehaviorAgent.delay]
+	 * or [BehaviorAgent.walk] and returns [BehaviorStatus.RUNNING]. */
+	abstract fun tick(agent:BehaviorAgent):BehaviorStatus
+
+	/** Forget any progress, so that the next [tick] starts from the beginning. */
+	fun reset(agent:BehaviorAgent) {
+		agent.state.fill(0, stateOffset, stateOffset + stateSize)
+		for (child in children) {
+			child.reset(agent)
+		}
+	}
+}
+
+/**
+ * Runs [BehaviorTree] of a single agent.
+ * Allocated once per agent and resumed directly by [AICoroutineDispatcher], like a continuation of a coroutine brain.
+ */
+class BehaviorAgent(
+		private val tree:BehaviorTree,
+		/** Context of the agent, as used by coroutine brains */
+		@JvmField val ai:AIContext,
+		private val dispatcher:AICoroutineDispatcher) : Continuation<Unit> {
+
+	override val context: CoroutineContext = dispatcher + ai
+
+	/** State of the [BehaviorNode]s */
+	@JvmField
+	val state = IntArray(tree.stateSize)
+
+	/** Where to go, set and used by nodes */
+	var target:Vec2 = Vec2.NULL
+
+	/** Path that is being walked by [WalkToTarget] */
+	@JvmField
+	val path = GdxLongArray()
+
+	/** Waypoints to which [WalkToTarget] walks after [path], in reverse order, so that the next one is the last */
+	@JvmField
+	val waypoints = GdxLongArray()
+
+	/** Flow field that is being followed by [WalkToTarget]. Not saved by [checkpoint], it is cheap to find it again. */
+	@JvmField
+	var flowField:FlowField? = null
+
+	/** Whether the last [search] has completed. False after [restore], because the search does not survive it. */
+	var searchDone = false
+		private set
+	private var searchResult:Any? = null
+
+	/** Activity to return to after wake up */
+	private var previousActivity:AgentActivity? = null
+	private var wakeUpRequested = false
+
+	/** Do [activity] for [durationMs], then tick again. */
+	fun delay(activity:AgentActivity, durationMs:Long) {
+		startActivity(activity)
+		dispatcher.resumeAfter(durationMs, this)
+	}
+
+	/** Start walking one tile in [direction], then tick again when the agent gets there.
+	 * @return false when it is not possible to walk there, then nothing is requested */
+	fun walk(direction:Direction, activity:AgentActivity = AgentActivity.WALKING):Boolean {
+		val ai = ai
+		val positionC = ai.position
+		val moveFrom = positionC.pos
+		val world = ai.worldCursor
+		if (world.getTile(moveFrom + direction.vec).type != TileType.LAND) {
+			return false
+		}
+
+		positionC.movement = direction
+		positionC.speed = ai.walkingSpeed(moveFrom)
+		startActivity(activity)
+		dispatcher.resumeOnContinue(ai.entity, this)
+		return true
+	}
+
+	/** Ponder while [task] runs on another thread, like [AIContext.offload], then tick again.
+	 * Once [searchDone], its result is available through [takeSearchResult]. */
+	fun search(task:() -> Any?) {
+		searchDone = false
+		searchResult = null
+		startActivity(AgentActivity.PONDERING)
+		dispatcher.offloadAndResume(ai.entity, this) {
+			try {
+				searchResult = task()
+			} catch (e:Exception) {
+				logError("BehaviorTree", "Search of ${ai.entity} failed", e)
+			} finally {
+				searchDone = true
+			}
+		}
+	}
+
+	/** Result of the last [search], null when it has found nothing or failed. Can be taken only once. */
+	@Suppress("UNCHECKED_CAST")
+	fun <T> takeSearchResult():T? {
+		val result = searchResult as T?
+		searchResult = null
+		searchDone = false
+		return result
+	}
+
+	/** Capture the state of this agent, for [restore]. How it wakes up is known only to the dispatcher, which provides [wakeUpMs]. */
+	internal fun checkpoint(wakeUpMs:Long):BrainCheckpoint {
+		return BrainCheckpoint(wakeUpMs, state.copyOf(), target, path.toArray(), waypoints.toArray(), previousActivity, BrainGoal.NONE, ai.random.counter)
+	}
+
+	/** Continue from [checkpoint] instead of from the root, when it comes from the same tree.
+	 * The wake up itself is requested by the dispatcher. */
+	internal fun restore(checkpoint:BrainCheckpoint) {
+		val behaviorState = checkpoint.behaviorState
+		if (behaviorState != null && behaviorState.size == state.size) {
+			behaviorState.copyInto(state)
+			target = checkpoint.target
+			path.clear()
+			path.addAll(*checkpoint.path)
+			waypoints.clear()
+			waypoints.addAll(*checkpoint.waypoints)
+			previousActivity = checkpoint.previousActivity
+		}
+		flowField = null
+		searchDone = false
+		searchResult = null
+		wakeUpRequested = true
+	}
+
+	private fun startActivity(activity:AgentActivity) {
+		assert(!wakeUpRequested) { "Wake up requested twice" }
+		wakeUpRequested = true
+		val agent = ai.agent
+		previousActivity = agent.activity
+		agent.activity = activity
+	}
+
+	override fun resumeWith(result: Result<Unit>) {
+		val previousActivity = previousActivity
+		if (previousActivity != null) {
+			ai.agent.activity = previousActivity
+			this.previousActivity = null
+		}
+		wakeUpRequested = false
+
+		val root = tree.root
+		try {
+			root.tick(this)
+		} catch (e:Exception) {
+			logError("BehaviorTree", "Behavior of ${ai.entity} failed", e)
+			root.reset(this)
+		}
+
+		if (!wakeUpRequested) {
+			// Root is done, or something does not follow the rules and returns RUNNING without requesting wake up
+			delay(AgentActivity.PONDERING, tree.restartDelayMs)
+		}
+	}
+}
+
+/** Runs children in order, until one of them fails. */
+class Sequence(vararg children:BehaviorNode) : BehaviorNode(*children) {
+
+	override val stateSize: Int
+		get() = 1
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		val children = children
+		var i = state[stateOffset]
+		while (i < children.size) {
+			when (children[i].tick(agent)) {
+				BehaviorStatus.SUCCESS -> i++
+				BehaviorStatus.FAILURE -> {
+					state[stateOffset] = 0
+					return BehaviorStatus.FAILURE
+				}
+				BehaviorStatus.RUNNING -> {
+					state[stateOffset] = i
+					return BehaviorStatus.RUNNING
+				}
+			}
+		}
+		state[stateOffset] = 0
+		return BehaviorStatus.SUCCESS
+	}
+}
+
+/** Runs children in order, until one of them succeeds. */
+class Selector(vararg children:BehaviorNode) : BehaviorNode(*children) {
+
+	override val stateSize: Int
+		get() = 1
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		val children = children
+		var i = state[stateOffset]
+		while (i < children.size) {
+			when (children[i].tick(agent)) {
+				BehaviorStatus.SUCCESS -> {
+					state[stateOffset] = 0
+					return BehaviorStatus.SUCCESS
+				}
+				BehaviorStatus.FAILURE -> i++
+				BehaviorStatus.RUNNING -> {
+					state[stateOffset] = i
+					return BehaviorStatus.RUNNING
+				}
+			}
+		}
+		state[stateOffset] = 0
+		return BehaviorStatus.FAILURE
+	}
+}
+
+/** Option of [UtilitySelector]: [node] which is worth [score] now. Non-positive score means not worth it at all. */
+class Utility(val score:AIContext.() -> Int, val node:BehaviorNode)
+
+/** Runs the option with the highest score to completion. Fails when no option has positive score. */
+class UtilitySelector(private vararg val options:Utility) : BehaviorNode(*Array(options.size) { options[it].node }) {
+
+	override val stateSize: Int
+		get() = 1
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		// 0 = nothing chosen yet, otherwise index of the running option + 1
+		var chosen = state[stateOffset] - 1
+		if (chosen < 0) {
+			val ai = agent.ai
+			var bestScore = 0
+			for (i in options.indices) {
+				val score = options[i].score(ai)
+				if (score > bestScore) {
+					bestScore = score
+					chosen = i
+				}
+			}
+			if (chosen < 0) {
+				return BehaviorStatus.FAILURE
+			}
+		}
+
+		val status = options[chosen].node.tick(agent)
+		state[stateOffset] = if (status == BehaviorStatus.RUNNING) chosen + 1 else 0
+		return status
+	}
+}
+
+/** Runs [child] repeatedly, as long as [condition] holds before each run. Fails when [child] fails. */
+class RepeatWhile(private val condition:AIContext.() -> Boolean, child:BehaviorNode) : BehaviorNode(child) {
+
+	override val stateSize: Int
+		get() = 1
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		val child = children[0]
+		while (true) {
+			// 0 = the condition should be checked first, 1 = child is running
+			if (state[stateOffset] == 0 && !condition(agent.ai)) {
+				return BehaviorStatus.SUCCESS
+			}
+			when (child.tick(agent)) {
+				BehaviorStatus.SUCCESS -> state[stateOffset] = 0
+				BehaviorStatus.FAILURE -> {
+					state[stateOffset] = 0
+					return BehaviorStatus.FAILURE
+				}
+				BehaviorStatus.RUNNING -> {
+					state[stateOffset] = 1
+					return BehaviorStatus.RUNNING
+				}
+			}
+		}
+	}
+}
+
+/** Succeeds when [condition] holds. */
+class Condition(private val condition:AIContext.() -> Boolean) : BehaviorNode() {
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		return if (condition(agent.ai)) BehaviorStatus.SUCCESS else BehaviorStatus.FAILURE
+	}
+}
+
+/** Does something instantly and succeeds. */
+class Action(private val action:AIContext.() -> Unit) : BehaviorNode() {
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		action(agent.ai)
+		return BehaviorStatus.SUCCESS
+	}
+}
+
+/** Does [activity] for [durationMs] and succeeds. */
+class Wait(private val activity:AgentActivity, private val durationMs:Long) : BehaviorNode() {
+
+	override val stateSize: Int
+		get() = 1
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		if (state[stateOffset] == 0) {
+			state[stateOffset] = 1
+			agent.delay(activity, durationMs)
+			return BehaviorStatus.RUNNING
+		}
+		state[stateOffset] = 0
+		return BehaviorStatus.SUCCESS
+	}
+}
+
+/** Sets [BehaviorAgent.target] to a nearby tile that is acceptable for [seekable]. Fails when there is none in sight. */
+class FindNearby(private val seekable:Seekable) : BehaviorNode() {
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val found = agent.ai.lookAroundForAcceptableTile(seekable)
+		if (found == Vec2.NULL) {
+			return BehaviorStatus.FAILURE
+		}
+		agent.target = found
+		return BehaviorStatus.SUCCESS
+	}
+}
+
+/** Sets [BehaviorAgent.target] to the nearest remembered location of [memoryType]. Fails when nothing is remembered. */
+class RecallNearest(private val memoryType:MemoryType) : BehaviorNode() {
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val found = agent.ai.recallNearest(memoryType)
+		if (found == Vec2.NULL) {
+			return BehaviorStatus.FAILURE
+		}
+		agent.target = found
+		return BehaviorStatus.SUCCESS
+	}
+}
+
+/**
+ * Walks to [BehaviorAgent.target] (or only next to it). Fails when there is no path or when it gets blocked.
+ * Plans the walk like [AIContext.walkTo]: follows a flow field when the target is close,
+ * otherwise walks through waypoints when it is far, searching for each part of the path on another thread.
+ * Agents which are not observed walk in jumps.
+ */
+class WalkToTarget(private val onlyNear:Boolean, private val activity:AgentActivity = AgentActivity.WALKING) : BehaviorNode() {
+
+	override val stateSize: Int
+		get() = 5
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		val ai = agent.ai
+		if (state[stateOffset + JUMPING] != 0) {
+			state[stateOffset + JUMPING] = 0
+			ai.teleport(Vec2(state[stateOffset + JUMP_X], state[stateOffset + JUMP_Y]))
+		}
+
+		phases@ while (true) {
+			val phase = state[stateOffset + PHASE]
+			when (phase) {
+				NOT_STARTED -> {
+					val from = ai.position.pos
+					val target = agent.target
+					val distance = from.manhDst(target)
+					if (distance <= FLOW_FIELD_RADIUS) {
+						val flowField = ai.pathFinder.findFlowField(target, onlyNear)
+						if (flowField != null && flowField.costAt(from) != Float.POSITIVE_INFINITY) {
+							agent.flowField = flowField
+							state[stateOffset + PHASE] = FOLLOWING_FIELD
+							continue@phases
+						}
+					}
+
+					agent.waypoints.clear()
+					if (distance > HIERARCHICAL_PATH_MIN_DISTANCE) {
+						val pathFinder = ai.pathFinder
+						agent.search { pathFinder.findWaypoints(from, target, onlyNear) }
+						state[stateOffset + PHASE] = SEARCHING_WAYPOINTS
+						return BehaviorStatus.RUNNING
+					}
+					searchNextPath(agent)
+					return BehaviorStatus.RUNNING
+				}
+				SEARCHING_WAYPOINTS -> {
+					if (!agent.searchDone) {
+						// Restored while searching, the search did not survive it
+						state[stateOffset + PHASE] = NOT_STARTED
+						continue@phases
+					}
+					val found = agent.takeSearchResult<WorldPathFinder.Path>() ?: return finish(agent, BehaviorStatus.FAILURE)
+					val waypoints = agent.waypoints
+					for (i in found.length - 1 downTo 0) {
+						waypoints.add(found.node(i).packed)
+					}
+					searchNextPath(agent)
+					return BehaviorStatus.RUNNING
+				}
+				SEARCHING_PATH, SEARCHING_LAST_PATH -> {
+					if (!agent.searchDone) {
+						state[stateOffset + PHASE] = NOT_STARTED
+						continue@phases
+					}
+					val found = agent.takeSearchResult<WorldPathFinder.Path>() ?: return finish(agent, BehaviorStatus.FAILURE)
+					val path = agent.path
+					path.clear()
+					for (i in 0 until found.length) {
+						path.add(found.node(i).packed)
+					}
+					state[stateOffset + PHASE] = if (phase == SEARCHING_PATH) WALKING_PATH else WALKING_LAST_PATH
+					state[stateOffset + INDEX] = 0
+				}
+				WALKING_PATH, WALKING_LAST_PATH -> {
+					val path = agent.path
+					val index = state[stateOffset + INDEX]
+					if (index >= path.size) {
+						if (phase == WALKING_LAST_PATH) {
+							return finish(agent, BehaviorStatus.SUCCESS)
+						}
+						searchNextPath(agent)
+						return BehaviorStatus.RUNNING
+					}
+
+					if (!ai.isObserved()) {
+						var next = index
+						val steps = ai.planJump({ if (next < path.size) Vec2(path[next++]) else Vec2.NULL }) { to, durationMs ->
+							jump(agent, to, durationMs)
+						}
+						if (steps == 0) {
+							return finish(agent, BehaviorStatus.FAILURE)
+						}
+						state[stateOffset + INDEX] = index + steps
+						return BehaviorStatus.RUNNING
+					}
+
+					if (!agent.walk(ai.position.pos.directionTo(Vec2(path[index])), activity)) {
+						return finish(agent, BehaviorStatus.FAILURE)
+					}
+					state[stateOffset + INDEX] = index + 1
+					return BehaviorStatus.RUNNING
+				}
+				FOLLOWING_FIELD -> {
+					val flowField = agent.flowField
+					if (flowField == null) {
+						// Restored, flow fields are not saved
+						state[stateOffset + PHASE] = NOT_STARTED
+						continue@phases
+					}
+
+					if (!ai.isObserved()) {
+						val steps = ai.planJump({ from ->
+							val direction = flowField.directionFrom(from)
+							if (direction == Direction.NONE) Vec2.NULL else from + direction.vec
+						}) { to, durationMs ->
+							jump(agent, to, durationMs)
+						}
+						if (steps > 0) {
+							return BehaviorStatus.RUNNING
+						}
+					}
+
+					val pos = ai.position.pos
+					val direction = flowField.directionFrom(pos)
+					if (direction == Direction.NONE) {
+						return finish(agent, if (flowField.costAt(pos) == 0f) BehaviorStatus.SUCCESS else BehaviorStatus.FAILURE)
+					}
+					if (!agent.walk(direction, activity)) {
+						return finish(agent, BehaviorStatus.FAILURE)
+					}
+					return BehaviorStatus.RUNNING
+				}
+				else -> throw IllegalStateException("Unknown phase $phase")
+			}
+		}
+	}
+
+	/** Search for the path to the next waypoint, or to the target, when there are no more waypoints. */
+	private fun searchNextPath(agent:BehaviorAgent) {
+		val pathFinder = agent.ai.pathFinder
+		val from = agent.ai.position.pos
+		val waypoints = agent.waypoints
+		if (waypoints.size > 0) {
+			val to = Vec2(waypoints.pop())
+			agent.search { pathFinder.findPath(from, to) }
+			agent.state[stateOffset + PHASE] = SEARCHING_PATH
+		} else {
+			val to = agent.target
+			val onlyNear = onlyNear
+			agent.search { if (onlyNear) pathFinder.findPathNear(from, to) else pathFinder.findPath(from, to) }
+			agent.state[stateOffset + PHASE] = SEARCHING_LAST_PATH
+		}
+	}
+
+	/** Do [activity] for [durationMs] and then [teleport][AIContext.teleport] to [to], on the next [tick]. */
+	private fun jump(agent:BehaviorAgent, to:Vec2, durationMs:Long) {
+		val state = agent.state
+		state[stateOffset + JUMPING] = 1
+		state[stateOffset + JUMP_X] = to.x
+		state[stateOffset + JUMP_Y] = to.y
+		agent.delay(activity, durationMs)
+	}
+
+	private fun finish(agent:BehaviorAgent, status:BehaviorStatus):BehaviorStatus {
+		reset(agent)
+		agent.waypoints.clear()
+		agent.flowField = null
+		return status
+	}
+
+	private companion object {
+		// Indices of the state
+		const val PHASE = 0
+		/** Index of the next node of [BehaviorAgent.path] */
+		const val INDEX = 1
+		/** Whether the agent should teleport to [JUMP_X], [JUMP_Y] when it wakes up */
+		const val JUMPING = 2
+		const val JUMP_X = 3
+		const val JUMP_Y = 4
+
+		// Phases
+		const val NOT_STARTED = 0
+		const val SEARCHING_WAYPOINTS = 1
+		const val SEARCHING_PATH = 2
+		const val SEARCHING_LAST_PATH = 3
+		const val WALKING_PATH = 4
+		const val WALKING_LAST_PATH = 5
+		const val FOLLOWING_FIELD = 6
+	}
+}
+
+/** Walks [steps] tiles in a random direction, turning on obstacles. Fails when completely blocked. */
+class Wander(private val steps:Int, private val activity:AgentActivity = AgentActivity.WALKING) : BehaviorNode() {
+
+	override val stateSize: Int
+		get() = 2
+
+	override fun tick(agent: BehaviorAgent): BehaviorStatus {
+		val state = agent.state
+		// Steps left to walk, 0 = not started yet
+		var remaining = state[stateOffset]
+		var direction:Direction
+		if (remaining == 0) {
+			remaining = steps
+			direction = DIRECTIONS.random(agent.ai.random)
+		} else {
+			remaining--
+			direction = DIRECTIONS[state[stateOffset + 1]]
+			if (remaining == 0) {
+				state[stateOffset] = 0
+				state[stateOffset + 1] = 0
+				return BehaviorStatus.SUCCESS
+			}
+		}
+
+		for (attempt in DIRECTIONS.indices) {
+			if (agent.walk(direction, activity)) {
+				state[stateOffset] = remaining
+				state[stateOffset + 1] = direction.ordinal - 1
+				return BehaviorStatus.RUNNING
+			}
+			direction = if (agent.ai.random.nextBoolean()) direction.left else direction.right
+		}
+
+		state[stateOffset] = 0
+		state[stateOffset + 1] = 0
+		return BehaviorStatus.FAILURE
+	}
+}
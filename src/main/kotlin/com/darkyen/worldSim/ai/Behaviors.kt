@@ -0,0 +1,117 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.FeatureAspect
+import com.darkyen.worldSim.Item
+import com.darkyen.worldSim.TileType
+import com.darkyen.worldSim.ecs.AIContext
+import com.darkyen.worldSim.ecs.AgentActivity
+import com.darkyen.worldSim.ecs.AgentAttribute.*
+import com.darkyen.worldSim.ecs.MemoryType
+import com.darkyen.worldSim.ecs.get
+import com.darkyen.worldSim.ecs.set
+import com.darkyen.worldSim.util.anyPositionNearIs
+
+/**
+ * [BehaviorTree] version of the basic needs part of [brain]: drink, eat, sleep and keep some food in stock.
+ * Intended for the bulk of the population, where the full coroutine brain would be too expensive.
+ */
+val SURVIVAL_BEHAVIOR = BehaviorTree(Selector(
+		UtilitySelector(
+				Utility({ needScore(attributes()[THIRST] - 30, 30) }, seekWater()),
+				Utility({ needScore(attributes()[HUNGER] - 20, 20) }, seekFood()),
+				Utility({ needScore(attributes()[SLEEP].toInt(), 0) }, sleep())
+		),
+		Sequence(
+				Condition { inventoryCount(Item.FOOD) < 3 },
+				obtainFood()
+		),
+		Wander(3)
+))
+
+/** Same priorities as [brain]: only needs below 50 are dealt with, the lowest (after [bonus]) first. */
+private fun needScore(need:Int, bonus:Int):Int {
+	return if (need < 50) 50 - need + bonus else 0
+}
+
+private fun AIContext.isNearWater():Boolean {
+	val world = worldCursor
+	return anyPositionNearIs(position.pos) { pos -> world.getTile(pos).type == TileType.WATER }
+}
+
+/** @see drinkFromEnvironment */
+private fun drinkFromEnvironment() = Sequence(
+		Condition { isNearWater() },
+		Action { memorize(MemoryType.WATER_SOURCE_POSITION, position.pos) },
+		Wait(AgentActivity.DRINKING, ENVIRONMENT_DRINK_DURATION_MS),
+		Action { agent.attributes[THIRST] = THIRST.max }
+)
+
+/** @see drinkFromInventory */
+private fun drinkFromInventory() = Sequence(
+		Condition { inventoryCount(Item.WATER_CANTEEN_FULL) > 0 },
+		Wait(AgentActivity.DRINKING_FROM_CANTEEN, DRINK_DURATION_MS),
+		Action {
+			agent.inventory[Item.WATER_CANTEEN_FULL.ordinal] -= 1
+			agent.inventory[Item.WATER_CANTEEN_EMPTY.ordinal] += 1
+			agent.attributes[THIRST] = agent.attributes[THIRST] + THIRST_POINTS_PER_DRINK_CONTAINER
+		}
+)
+
+/** Go to nearby or remembered [seekable], or wander around a bit and fail. */
+private fun goTo(seekable:Seekable) = Selector(
+		Sequence(
+				Selector(FindNearby(seekable), RecallNearest(seekable.memory)),
+				WalkToTarget(seekable.goNearOnly)
+		),
+		Sequence(Wander(5), Condition { false })
+)
+
+private fun seekWater() = Selector(
+		drinkFromEnvironment(),
+		drinkFromInventory(),
+		Sequence(goTo(Seekable.WATER), drinkFromEnvironment())
+)
+
+/** @see eatFromInventory */
+private fun eatFromInventory() = Sequence(
+		Condition { inventoryCount(Item.FOOD) > 0 },
+		Wait(AgentActivity.EATING, FOOD_EAT_TIME_MS),
+		Action {
+			agent.inventory[Item.FOOD.ordinal] -= 1
+			agent.attributes[HUNGER] = agent.attributes[HUNGER] + HUNGER_POINTS_PER_FOOD
+		}
+)
+
+/** Gather [food] from the current tile, when it has [aspect]. */
+private fun gatherFood(aspect:FeatureAspect, activity:AgentActivity, durationMs:Long, food:Int, adultOnly:Boolean = false) = Sequence(
+		Condition { (!adultOnly || !agent.isBaby) && featureAt(position.pos)?.aspects?.contains(aspect) == true },
+		Action { memorize(MemoryType.FOOD_SOURCE_POSITION, position.pos) },
+		Wait(activity, durationMs),
+		Action { agent.inventory[Item.FOOD.ordinal] += food }
+)
+
+/** @see gatherFoodFromEnvironment */
+private fun gatherFoodFromEnvironment() = Selector(
+		gatherFood(FeatureAspect.FOOD_SOURCE_FRUIT, AgentActivity.GATHERING_FRUIT, GATHERING_DURATION_MS, 1),
+		gatherFood(FeatureAspect.FOOD_SOURCE_MUSHROOMS, AgentActivity.GATHERING_MUSHROOMS, GATHERING_DURATION_MS, 1),
+		gatherFood(FeatureAspect.FOOD_SOURCE_WILD_ANIMALS, AgentActivity.HUNTING, HUNTING_DURATION_MS, 7, adultOnly = true),
+		gatherFood(FeatureAspect.FOOD_SOURCE_SMALL_WILD_ANIMALS, AgentActivity.HUNTING, HUNTING_SMALL_DURATION_MS, 5)
+)
+
+private fun obtainFood() = Sequence(goTo(Seekable.FOOD), gatherFoodFromEnvironment())
+
+private fun seekFood() = Selector(
+		eatFromInventory(),
+		Sequence(obtainFood(), eatFromInventory())
+)
+
+/** @see sleep */
+private fun sleep() = RepeatWhile({
+	val attributes = attributes()
+	val sleep = attributes[SLEEP]
+	// Can't sleep when really thirsty or hungry (and not super sleep deprived)
+	sleep < SLEEP.max && (sleep <= -30 || (attributes[THIRST] >= 10 && attributes[HUNGER] >= 10))
+}, Sequence(
+		Wait(AgentActivity.SLEEPING, SLEEP_DURATION_MS_PER_POINT),
+		Action { agent.attributes[SLEEP] = agent.attributes[SLEEP] + 1 }
+))
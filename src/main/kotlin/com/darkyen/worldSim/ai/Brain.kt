@@ -16,7 +16,6 @@ import com.darkyen.worldSim.util.Vec2
 import com.darkyen.worldSim.util.find
 import kotlin.math.abs
 import kotlin.math.max
-import kotlin.random.Random
 
 suspend fun AIContext.brain() {
 	if (!takeCareOfBasicNeeds(50)) {
@@ -109,7 +108,7 @@ enum class Seekable(val goNearOnly:Boolean, val memory:MemoryType) {
 	abstract fun acceptable(context: AIContext, pos:Vec2):Boolean
 }
 
-private fun AIContext.lookAroundForAcceptableTile(seekable:Seekable):Vec2 {
+internal fun AIContext.lookAroundForAcceptableTile(seekable:Seekable):Vec2 {
 	val basePos = position.pos
 
 	for (x in -MAX_LOOK_DISTANCE .. MAX_LOOK_DISTANCE) {
@@ -132,7 +131,7 @@ private suspend fun AIContext.seek(seekable:Seekable, timeLimitMs:Long):Boolean
 	val myPos = position.pos
 	var checkMemory = true
 
-	var direction = DIRECTIONS.random()
+	var direction = DIRECTIONS.random(random)
 	while (true) {
 		// Check nearby tiles
 		val nearbyTile = lookAroundForAcceptableTile(seekable)
@@ -170,7 +169,7 @@ private suspend fun AIContext.seek(seekable:Seekable, timeLimitMs:Long):Boolean
 		// Wander around for a few tiles, turning on obstacles
 		for (i in 0 until 5) {
 			if (!walk(direction)) {
-				direction = if (Random.nextBoolean()) direction.left else direction.right
+				direction = if (random.nextBoolean()) direction.left else direction.right
 			}
 		}
 	}
@@ -255,7 +254,7 @@ private suspend fun AIContext.seekSocial():Boolean {
 
 private suspend fun AIContext.panic() {
 	for (i in 0 until 10) {
-		walkTo(position() + Vec2(Random.nextInt(-5, 6), Random.nextInt(-5, 6)), activity = AgentActivity.PANICKING)
+		walkTo(position() + Vec2(random.nextInt(-5, 6), random.nextInt(-5, 6)), activity = AgentActivity.PANICKING)
 	}
 }
 
@@ -0,0 +1,211 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.ecs.CHUNK_SIZE_SHIFT
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldCursor
+import com.darkyen.worldSim.ecs.chunkKey
+import com.darkyen.worldSim.ecs.ofChunkCorner
+import com.darkyen.worldSim.util.DIRECTIONS
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.GdxIntArray
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.IntFloatMinHeap
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.forPositionsAround
+
+/** How far from the destination does a [FlowField] reach, on each axis. */
+const val FLOW_FIELD_RADIUS = 48
+private const val FLOW_FIELD_SIZE = FLOW_FIELD_RADIUS * 2 + 1
+
+/**
+ * Dijkstra map of the square area around the [destination] - cost of reaching the destination from each tile.
+ * Anybody in the area can reach the destination by repeatedly stepping in [directionFrom], without any search.
+ *
+ * Immutable once built, so it can be shared by all agents and threads.
+ */
+class FlowField(
+		val destination:Vec2,
+		/** If true, the field leads to any passable neighbor of [destination] instead. */
+		val onlyNear:Boolean) {
+
+	private val low = destination - Vec2(FLOW_FIELD_RADIUS, FLOW_FIELD_RADIUS)
+	private val costs = FloatArray(FLOW_FIELD_SIZE * FLOW_FIELD_SIZE)
+
+	/** Chunks under the field and their [World.Chunk.version] at the time it was built. */
+	private val chunkKeys = GdxLongArray()
+	private val chunkVersions = GdxIntArray()
+
+	/** How many tiles did [build] take from its heap, 0 when the destination is not reachable from anywhere */
+	var expandedNodes = 0
+		private set
+
+	private fun index(pos:Vec2):Int {
+		val local = pos - low
+		val x = local.x
+		val y = local.y
+		if (x < 0 || y < 0 || x >= FLOW_FIELD_SIZE || y >= FLOW_FIELD_SIZE) {
+			return -1
+		}
+		return x * FLOW_FIELD_SIZE + y
+	}
+
+	/** Cost of reaching the destination from [pos], [Float.POSITIVE_INFINITY] if it is not reachable or outside of the field. */
+	fun costAt(pos:Vec2):Float {
+		val index = index(pos)
+		return if (index == -1) Float.POSITIVE_INFINITY else costs[index]
+	}
+
+	/** Direction of the next step from [pos] towards the destination,
+	 * or [Direction.NONE] if already there or when the destination is not reachable from [pos]. */
+	fun directionFrom(pos:Vec2):Direction {
+		var bestCost = costAt(pos)
+		var bestDirection = Direction.NONE
+		for (direction in DIRECTIONS) {
+			val cost = costAt(pos + direction.vec)
+			if (cost < bestCost) {
+				bestCost = cost
+				bestDirection = direction
+			}
+		}
+		return bestDirection
+	}
+
+	/** Check whether the world under the field has not changed since it was built. */
+	fun isUpToDate(world:World):Boolean {
+		val chunkKeys = chunkKeys
+		val chunkVersions = chunkVersions
+		for (i in 0 until chunkKeys.size) {
+			val chunk = world.getChunk(chunkKeys.items[i]) ?: return false
+			if (chunk.version != chunkVersions.items[i]) {
+				return false
+			}
+		}
+		return true
+	}
+
+	/** Compute the field. Call only once, before sharing it. */
+	fun build(world:World) {
+		val high = low + Vec2(FLOW_FIELD_SIZE - 1, FLOW_FIELD_SIZE - 1)
+		for (chunkX in (low.x shr CHUNK_SIZE_SHIFT) .. (high.x shr CHUNK_SIZE_SHIFT)) {
+			for (chunkY in (low.y shr CHUNK_SIZE_SHIFT) .. (high.y shr CHUNK_SIZE_SHIFT)) {
+				val chunkKey = Vec2.ofChunkCorner(chunkX, chunkY).chunkKey
+				val chunk = world.getChunk(chunkKey) ?: continue
+				chunkKeys.add(chunkKey)
+				chunkVersions.add(chunk.version)
+			}
+		}
+
+		val cursor = WorldCursor(world)
+		val costs = costs
+		costs.fill(Float.POSITIVE_INFINITY)
+		val heap = IntFloatMinHeap(FLOW_FIELD_SIZE * 4)
+		if (onlyNear) {
+			forPositionsAround(destination) { pos ->
+				if (cursor.isPassable(pos)) {
+					costs[index(pos)] = 0f
+					heap.push(index(pos), 0f)
+				}
+			}
+		} else if (cursor.isPassable(destination)) {
+			costs[index(destination)] = 0f
+			heap.push(index(destination), 0f)
+		}
+
+		// Reverse Dijkstra - cost of moving depends on the tile moved from, which is the neighbor
+		while (heap.size > 0) {
+			val current = heap.peekValue
+			val cost = heap.peekPriority
+			heap.pop()
+			if (cost > costs[current]) {
+				continue
+			}
+			expandedNodes++
+
+			val pos = low + Vec2(current / FLOW_FIELD_SIZE, current % FLOW_FIELD_SIZE)
+			forPositionsAround(pos) { neighbor ->
+				val neighborIndex = index(neighbor)
+				if (neighborIndex != -1 && cursor.isPassable(neighbor)) {
+					val neighborCost = cost + cursor.getMovementCost(neighbor)
+					if (neighborCost < costs[neighborIndex]) {
+						costs[neighborIndex] = neighborCost
+						heap.push(neighborIndex, neighborCost)
+					}
+				}
+			}
+		}
+	}
+}
+
+/**
+ * Shares [FlowField]s to popular destinations.
+ * Field is built only when the same destination is requested repeatedly, least recently used fields are evicted.
+ * Stale fields (when the world under them changes) are rebuilt on the next request.
+ *
+ * Thread safe.
+ */
+class FlowFieldCache(
+		private val world:World,
+		/** Called with each newly built field, from the thread that built it */
+		private val onBuilt:(FlowField) -> Unit = {}) {
+
+	/** Guards [fields] and [requestCounts] */
+	private val lock = Any()
+
+	/** Built fields, in access order, so that the least recently used one is evicted */
+	private val fields = object : LinkedHashMap<Long, FlowField>(16, 0.75f, true) {
+		override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, FlowField>?): Boolean {
+			return size > MAX_FIELDS
+		}
+	}
+
+	/** How many times were destinations without a field requested. Separate, so that one-off destinations do not evict fields. */
+	private val requestCounts = object : LinkedHashMap<Long, Int>(16, 0.75f, true) {
+		override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Int>?): Boolean {
+			return size > MAX_REQUEST_COUNTS
+		}
+	}
+
+	/**
+	 * Get the flow field to [destination], if it is popular enough.
+	 * @return null if the field has not been requested often enough yet
+	 */
+	fun get(destination:Vec2, onlyNear:Boolean):FlowField? {
+		// Vec2 never uses the highest bit
+		val key = if (onlyNear) destination.packed or Long.MIN_VALUE else destination.packed
+		val cachedField:FlowField?
+		synchronized(lock) {
+			cachedField = fields[key]
+			if (cachedField == null) {
+				val requests = (requestCounts[key] ?: 0) + 1
+				if (requests < MIN_REQUESTS) {
+					requestCounts[key] = requests
+					return null
+				}
+				requestCounts.remove(key)
+			}
+		}
+
+		// Checking may generate chunks, so it is done outside of the lock
+		if (cachedField != null && cachedField.isUpToDate(world)) {
+			return cachedField
+		}
+
+		// Build outside of the lock, concurrent requests may build it twice, but that is harmless
+		val field = FlowField(destination, onlyNear)
+		field.build(world)
+		onBuilt(field)
+		synchronized(lock) {
+			fields[key] = field
+		}
+		return field
+	}
+
+	private companion object {
+		/** Each field takes about 37 KiB */
+		const val MAX_FIELDS = 128
+		/** Counters are small, so many more destinations can be tracked than there are fields */
+		const val MAX_REQUEST_COUNTS = 4096
+		/** Destination must be requested this many times before a field is built for it */
+		const val MIN_REQUESTS = 2
+	}
+}
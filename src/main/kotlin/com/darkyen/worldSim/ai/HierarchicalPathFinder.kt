@@ -0,0 +1,402 @@
+package com.darkyen.worldSim.ai
+
+import com.badlogic.gdx.utils.BinaryHeap
+import com.badlogic.gdx.utils.LongMap
+import com.badlogic.gdx.utils.Pool
+import com.darkyen.worldSim.ecs.CHUNK_SIZE
+import com.darkyen.worldSim.ecs.CHUNK_SIZE_SHIFT
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.chunkKey
+import com.darkyen.worldSim.ecs.tileKey
+import com.darkyen.worldSim.util.IntFloatMinHeap
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.forPositionsAround
+
+/**
+ * Hierarchical path finding (HPA*), which uses world chunks as clusters.
+ *
+ * Each chunk has portals - tiles in the middle of each passable stretch of its edges, which connect to the neighbor chunk.
+ * Costs of paths between portals of the same chunk are precomputed when the chunk is first needed
+ * and recomputed when it or its neighbor changes (detected through [World.Chunk.version]).
+ * Long searches then run over the much smaller portal graph and produce only waypoints,
+ * which are refined into tile paths lazily, one short segment at a time.
+ *
+ * Not thread safe, each thread needs its own.
+ */
+class HierarchicalPathFinder(private val world:World) {
+
+	private val chunkPortals = LongMap<ChunkPortals>()
+	private val dijkstra = ChunkDijkstra()
+
+	private var startCosts = FloatArray(16)
+	private var goalCosts = FloatArray(16)
+	private val sources = IntArray(4)
+
+	private val nodes = LongMap<PortalNode>()
+	private val nodePool = object : Pool<PortalNode>() {
+		override fun newObject(): PortalNode = PortalNode()
+	}
+	private val openList = BinaryHeap<PortalNode>()
+
+	/** How many portal nodes did the last search take from the open list */
+	var expandedNodes = 0
+		private set
+	/** Whether the last search gave up after expanding too many nodes */
+	var timedOut = false
+		private set
+
+	/**
+	 * Find waypoints of a path from [from] to [to] (or only to any of its neighbors, if [onlyNear]).
+	 * Consecutive waypoints are not necessarily adjacent, but a path between them stays within a single chunk.
+	 * Neither [from] nor [to] are included.
+	 * @return waypoints or null if there is no path
+	 */
+	fun findWaypoints(from:Vec2, to:Vec2, onlyNear:Boolean):WorldPathFinder.Path? {
+		expandedNodes = 0
+		timedOut = false
+		val startChunkKey = from.chunkKey
+		val goalChunkKey = to.chunkKey
+		if (startChunkKey == goalChunkKey) {
+			return WorldPathFinder.PathImpl()
+		}
+
+		val startChunk = world.getChunk(startChunkKey) ?: return null
+		val goalChunk = world.getChunk(goalChunkKey) ?: return null
+		val startPortals = portals(startChunkKey) ?: return null
+		val goalPortals = portals(goalChunkKey) ?: return null
+
+		// Costs from the start to the portals of its chunk
+		sources[0] = from.tileKey
+		dijkstra.run(startChunk, sources, 1, false)
+		startCosts = dijkstra.costsOf(startPortals, startCosts)
+
+		// Costs from portals of the goal chunk to the goal
+		var sourceCount = 0
+		if (onlyNear) {
+			forPositionsAround(to) { pos ->
+				if (pos.chunkKey == goalChunkKey && goalChunk.isPassable(pos.tileKey)) {
+					sources[sourceCount++] = pos.tileKey
+				}
+			}
+		} else if (goalChunk.isPassable(to.tileKey)) {
+			sources[sourceCount++] = to.tileKey
+		}
+		if (sourceCount == 0) {
+			return null
+		}
+		dijkstra.run(goalChunk, sources, sourceCount, true)
+		goalCosts = dijkstra.costsOf(goalPortals, goalCosts)
+
+		return search(startPortals, goalPortals, to)
+	}
+
+	private fun search(startPortals:ChunkPortals, goalPortals:ChunkPortals, to:Vec2):WorldPathFinder.Path? {
+		val nodes = nodes
+		val openList = openList
+		for (node in nodes.values()) {
+			nodePool.free(node)
+		}
+		nodes.clear()
+		openList.clear()
+
+		val startCosts = startCosts
+		for (i in 0 until startPortals.size) {
+			val cost = startCosts[i]
+			if (cost != Float.POSITIVE_INFINITY) {
+				relax(startPortals.positions[i], null, cost, to)
+			}
+		}
+
+		while (openList.size > 0) {
+			val current = openList.pop()
+			current.closed = true
+			if (current.position == GOAL) {
+				return generateWaypoints(current)
+			}
+			if (++expandedNodes > MAX_EXPANDED_NODES) {
+				timedOut = true
+				return null
+			}
+
+			val position = Vec2(current.position)
+			val portals = portals(position.chunkKey) ?: continue
+			val i = portals.indexOf(current.position)
+			if (i == -1) {
+				// Portal graph has changed during the search
+				continue
+			}
+
+			// Other portals of the same chunk
+			val size = portals.size
+			val costs = portals.costs
+			for (j in 0 until size) {
+				val cost = costs[i * size + j]
+				if (j != i && cost != Float.POSITIVE_INFINITY) {
+					relax(portals.positions[j], current, current.costSoFar + cost, to)
+				}
+			}
+
+			// Portals of neighbor chunks
+			for (c in 0 until portals.crossingCount) {
+				if (portals.crossingFrom[c] == i) {
+					relax(portals.crossingTo[c], current, current.costSoFar + portals.crossingCost[c], to)
+				}
+			}
+
+			// The goal itself
+			if (portals === goalPortals) {
+				val cost = goalCosts[i]
+				if (cost != Float.POSITIVE_INFINITY) {
+					relax(GOAL, current, current.costSoFar + cost, to)
+				}
+			}
+		}
+		return null
+	}
+
+	private fun relax(position:Long, from:PortalNode?, costSoFar:Float, to:Vec2) {
+		var node = nodes.get(position)
+		if (node == null) {
+			node = nodePool.obtain()!!
+			node.position = position
+			nodes.put(position, node)
+		} else if (node.costSoFar <= costSoFar) {
+			return
+		} else if (!node.closed) {
+			openList.remove(node)
+		}
+
+		node.costSoFar = costSoFar
+		node.from = from
+		node.closed = false
+		val heuristic = if (position == GOAL) 0f else (Vec2(position) - to).manhLen.toFloat()
+		openList.add(node, costSoFar + heuristic)
+	}
+
+	private fun generateWaypoints(goal:PortalNode):WorldPathFinder.Path {
+		val waypoints = WorldPathFinder.PathImpl()
+		var current = goal.from
+		while (current != null) {
+			waypoints.add(current.position)
+			current = current.from
+		}
+		waypoints.reverse()
+		return waypoints
+	}
+
+	/** Get up to date portals of the chunk at [chunkKey]. */
+	private fun portals(chunkKey:Long):ChunkPortals? {
+		val chunk = world.getChunk(chunkKey) ?: return null
+		val chunkPos = Vec2(chunkKey)
+		val right = world.getChunk(chunkPos + Vec2(CHUNK_SIZE, 0))
+		val up = world.getChunk(chunkPos + Vec2(0, CHUNK_SIZE))
+		val left = world.getChunk(chunkPos - Vec2(CHUNK_SIZE, 0))
+		val down = world.getChunk(chunkPos - Vec2(0, CHUNK_SIZE))
+
+		var portals = chunkPortals.get(chunkKey)
+		if (portals == null) {
+			if (chunkPortals.size >= MAX_CACHED_CHUNK_PORTALS) {
+				// Cheaper than tracking which are the least recently used, and rebuilding is fast
+				chunkPortals.clear()
+			}
+			portals = ChunkPortals()
+			chunkPortals.put(chunkKey, portals)
+		} else if (portals.isUpToDate(chunk, right, up, left, down)) {
+			return portals
+		}
+
+		portals.rebuild(chunk, chunkPos, right, up, left, down, dijkstra)
+		return portals
+	}
+
+	private class PortalNode : BinaryHeap.Node(0f), Pool.Poolable {
+		/** Packed [Vec2] of the portal tile, or [GOAL] */
+		var position = 0L
+		var costSoFar = 0f
+		var from:PortalNode? = null
+		var closed = false
+
+		override fun reset() {
+			from = null
+			closed = false
+		}
+	}
+
+	/** Portals of one chunk. */
+	private class ChunkPortals {
+		/** [World.Chunk.version] of the chunk and its right, up, left and down neighbor, from which this was built. */
+		private val versions = IntArray(5)
+
+		var size = 0
+		/** Packed [Vec2] of each portal tile */
+		var positions = LongArray(0)
+		/** Cost of the shortest path within the chunk from portal `i` to portal `j` is at `i * size + j`. */
+		var costs = FloatArray(0)
+
+		/** Connections from a portal to a portal of a neighbor chunk */
+		var crossingCount = 0
+		/** Index of the portal in this chunk */
+		val crossingFrom = IntArray(MAX_CROSSINGS)
+		/** Packed [Vec2] of the portal in the neighbor chunk */
+		val crossingTo = LongArray(MAX_CROSSINGS)
+		val crossingCost = FloatArray(MAX_CROSSINGS)
+
+		fun indexOf(position:Long):Int {
+			val positions = positions
+			for (i in 0 until size) {
+				if (positions[i] == position) {
+					return i
+				}
+			}
+			return -1
+		}
+
+		fun isUpToDate(chunk:World.Chunk, right:World.Chunk?, up:World.Chunk?, left:World.Chunk?, down:World.Chunk?):Boolean {
+			val versions = versions
+			return versions[0] == chunk.version
+					&& versions[1] == (right?.version ?: -1)
+					&& versions[2] == (up?.version ?: -1)
+					&& versions[3] == (left?.version ?: -1)
+					&& versions[4] == (down?.version ?: -1)
+		}
+
+		fun rebuild(chunk:World.Chunk, chunkPos:Vec2, right:World.Chunk?, up:World.Chunk?, left:World.Chunk?, down:World.Chunk?, dijkstra:ChunkDijkstra) {
+			versions[0] = chunk.version
+			versions[1] = right?.version ?: -1
+			versions[2] = up?.version ?: -1
+			versions[3] = left?.version ?: -1
+			versions[4] = down?.version ?: -1
+
+			size = 0
+			crossingCount = 0
+			positions = LongArray(MAX_CROSSINGS)
+			val last = CHUNK_SIZE - 1
+			addEdgePortals(chunk, chunkPos, right, last, 0, 0, 1, 1, 0)
+			addEdgePortals(chunk, chunkPos, up, 0, last, 1, 0, 0, 1)
+			addEdgePortals(chunk, chunkPos, left, 0, 0, 0, 1, -1, 0)
+			addEdgePortals(chunk, chunkPos, down, 0, 0, 1, 0, 0, -1)
+			positions = positions.copyOf(size)
+
+			// Costs between all portals
+			val size = size
+			val costs = FloatArray(size * size)
+			val sources = IntArray(1)
+			for (i in 0 until size) {
+				sources[0] = Vec2(positions[i]).tileKey
+				dijkstra.run(chunk, sources, 1, false)
+				for (j in 0 until size) {
+					costs[i * size + j] = dijkstra.costs[Vec2(positions[j]).tileKey]
+				}
+			}
+			this.costs = costs
+		}
+
+		/**
+		 * Find passable stretches along one edge of the chunk and add a portal in the middle of each.
+		 * Edge tiles are at `(startX + i * stepX, startY + i * stepY)` (chunk-local), the neighbor tile is offset by `(outX, outY)`.
+		 */
+		private fun addEdgePortals(chunk:World.Chunk, chunkPos:Vec2, neighbor:World.Chunk?,
+								   startX:Int, startY:Int, stepX:Int, stepY:Int, outX:Int, outY:Int) {
+			neighbor ?: return
+			val out = Vec2(outX, outY)
+			var runStart = -1
+			for (i in 0 .. CHUNK_SIZE) {
+				val open = if (i == CHUNK_SIZE) false else {
+					val pos = chunkPos + Vec2(startX + i * stepX, startY + i * stepY)
+					chunk.isPassable(pos.tileKey) && neighbor.isPassable((pos + out).tileKey)
+				}
+
+				if (open && runStart == -1) {
+					runStart = i
+				} else if (!open && runStart != -1) {
+					val middle = (runStart + i - 1) / 2
+					val pos = chunkPos + Vec2(startX + middle * stepX, startY + middle * stepY)
+					var index = indexOf(pos.packed)
+					if (index == -1) {
+						index = size++
+						positions[index] = pos.packed
+					}
+					val crossing = crossingCount++
+					crossingFrom[crossing] = index
+					crossingTo[crossing] = (pos + out).packed
+					crossingCost[crossing] = chunk.getMovementCost(pos.tileKey)
+					runStart = -1
+				}
+			}
+		}
+	}
+
+	/** Dijkstra's algorithm, limited to a single chunk. */
+	private class ChunkDijkstra {
+		/** Results of the last run, indexed by tile key. [Float.POSITIVE_INFINITY] when unreachable. */
+		val costs = FloatArray(CHUNK_AREA)
+
+		private val heap = IntFloatMinHeap(CHUNK_AREA)
+
+		/**
+		 * Compute [costs] from [sources] to all tiles of the chunk.
+		 * @param reverse if true, compute costs from all tiles to the nearest source instead
+		 */
+		fun run(chunk:World.Chunk, sources:IntArray, sourceCount:Int, reverse:Boolean) {
+			val costs = costs
+			costs.fill(Float.POSITIVE_INFINITY)
+			val heap = heap
+			heap.clear()
+			for (i in 0 until sourceCount) {
+				costs[sources[i]] = 0f
+				heap.push(sources[i], 0f)
+			}
+
+			while (heap.size > 0) {
+				val tile = heap.peekValue
+				val cost = heap.peekPriority
+				heap.pop()
+				if (cost > costs[tile]) {
+					continue
+				}
+
+				val tileX = tile shr CHUNK_SIZE_SHIFT
+				val tileY = tile and CHUNK_SIZE_MASK
+				val fromCost = if (reverse) 0f else chunk.getMovementCost(tile)
+				if (tileX > 0) visit(chunk, tile - CHUNK_SIZE, cost, fromCost, reverse)
+				if (tileX < CHUNK_SIZE_MASK) visit(chunk, tile + CHUNK_SIZE, cost, fromCost, reverse)
+				if (tileY > 0) visit(chunk, tile - 1, cost, fromCost, reverse)
+				if (tileY < CHUNK_SIZE_MASK) visit(chunk, tile + 1, cost, fromCost, reverse)
+			}
+		}
+
+		private fun visit(chunk:World.Chunk, tile:Int, cost:Float, fromCost:Float, reverse:Boolean) {
+			if (!chunk.isPassable(tile)) {
+				return
+			}
+			// Moving costs depend on the tile moved from, which is the neighbor when going in reverse
+			val newCost = cost + if (reverse) chunk.getMovementCost(tile) else fromCost
+			if (newCost < costs[tile]) {
+				costs[tile] = newCost
+				heap.push(tile, newCost)
+			}
+		}
+
+		/** Get costs of all portals, in [out] if it is large enough. */
+		fun costsOf(portals:ChunkPortals, out:FloatArray):FloatArray {
+			val result = if (out.size >= portals.size) out else FloatArray(portals.size)
+			for (i in 0 until portals.size) {
+				result[i] = costs[Vec2(portals.positions[i]).tileKey]
+			}
+			return result
+		}
+	}
+
+	private companion object {
+		const val CHUNK_AREA = CHUNK_SIZE * CHUNK_SIZE
+		const val CHUNK_SIZE_MASK = CHUNK_SIZE - 1
+		/** Each edge can have at most every other tile as a portal */
+		const val MAX_CROSSINGS = 4 * (CHUNK_SIZE + 1) / 2
+		/** Position of the virtual goal node, never a valid position */
+		val GOAL = Vec2.NULL.packed
+		/** Limit for searches to unreachable places, enough to cross a large world */
+		const val MAX_EXPANDED_NODES = 50_000
+		/** Limit for the portal cache, so that it does not keep growing with the explored world */
+		const val MAX_CACHED_CHUNK_PORTALS = 4096
+	}
+}
@@ -15,12 +15,8 @@
  ******************************************************************************/
 package com.darkyen.worldSim.ai
 
-import com.badlogic.gdx.utils.BinaryHeap
-import com.darkyen.worldSim.TileType
-import com.darkyen.worldSim.ecs.WORLD_SIZE
-import com.darkyen.worldSim.ecs.WORLD_SIZE_MASK
-import com.darkyen.worldSim.ecs.WORLD_SIZE_SHIFT
 import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldCursor
 import com.darkyen.worldSim.util.GdxLongArray
 import com.darkyen.worldSim.util.Vec2
 import com.darkyen.worldSim.util.forPositionsAround
@@ -28,27 +24,60 @@ import com.darkyen.worldSim.util.forPositionsAround
 /**
  * Based on IndexedAStarPathFinder from gdx-ai project.
  * Optimized for [com.darkyen.worldSim.ecs.World] path finding.
+ *
+ * Nodes are stored in parallel primitive arrays, indexed by node slot, which is assigned on first visit in each search.
+ * Positions are mapped to slots through an open addressing hash table, so the memory footprint depends only on
+ * how many nodes the largest search visited, not on the world size. Searches do not allocate, except for the result.
+ *
+ * Not thread safe, each thread needs its own.
  */
-class WorldPathFinder(private val world:World) {
+class WorldPathFinder(world:World) {
+
+	private val world = WorldCursor(world)
+
+	// Node storage, indexed by node slot
+	private var nodePosition = LongArray(INITIAL_NODE_CAPACITY)
+	/** The actual cost from the start node. */
+	private var nodeCostSoFar = FloatArray(INITIAL_NODE_CAPACITY)
+	/** [nodeCostSoFar] + heuristic. */
+	private var nodeEstimatedTotalCost = FloatArray(INITIAL_NODE_CAPACITY)
+	/** Slot of the node from which this node was reached, or [NO_NODE]. */
+	private var nodeParent = IntArray(INITIAL_NODE_CAPACITY)
+	/** Index in [openList] if the node is open, or [CLOSED]. */
+	private var nodeOpenListIndex = IntArray(INITIAL_NODE_CAPACITY)
+	/** Amount of slots used in the current search. */
+	private var nodeCount = 0
+
+	// Hash table from packed position to node slot. Entries are valid only when their search ID matches.
+	private var tablePositions = LongArray(INITIAL_NODE_CAPACITY * 2)
+	private var tableSlots = IntArray(INITIAL_NODE_CAPACITY * 2)
+	private var tableSearchIds = IntArray(INITIAL_NODE_CAPACITY * 2)
+
+	/** Binary min-heap of open node slots, ordered by [nodeEstimatedTotalCost]. */
+	private var openList = IntArray(INITIAL_NODE_CAPACITY)
+	private var openListSize = 0
 
-	private val nodeRecords: Array<NodeRecord?> = arrayOfNulls(WORLD_SIZE * WORLD_SIZE)
-	private val openList: BinaryHeap<NodeRecord> = BinaryHeap()
 	/** The unique ID for each search run. Used to mark nodes.  */
 	private var searchId = 0
 
+	/** How many nodes did the last search take from the open list */
+	var expandedNodes = 0
+		private set
+	/** Whether the last search was [findPathInTimeLimit] or [findPathWithMaxNodes] which ran out of its budget */
+	var timedOut = false
+		private set
+
 	fun findPath(from: Vec2, to: Vec2, endPositions:LongArray): Path? {
 		initSearch(from, to)
-		val openList = openList
 		do {
 			// Retrieve the node with smallest estimated total cost from the open list
-			val current:NodeRecord = openList.pop()
-			current.category = CLOSED
+			val current = popOpenList()
 			// Terminate if we reached the goal node
-			if (current.node.packed in endPositions) {
-				return generateNodePath(current.node)
+			if (nodePosition[current] in endPositions) {
+				return generateNodePath(current)
 			}
 			visitChildren(current, to)
-		} while (openList.size > 0)
+		} while (openListSize > 0)
 		// We've run out of nodes without finding the goal, so there's no solution
 		return null
 	}
@@ -57,24 +86,44 @@ class WorldPathFinder(private val world:World) {
 		val endTime = System.nanoTime() + maxTimeNanos
 
 		initSearch(from, to)
-		val openList = openList
 		var iteration = 0
 		do {
 			// Retrieve the node with smallest estimated total cost from the open list
-			val current:NodeRecord = openList.pop()
-			current.category = CLOSED
+			val current = popOpenList()
 			// Terminate if we reached the goal node
-			if (current.node.packed in endPositions) {
-				return generateNodePath(current.node)
+			if (nodePosition[current] in endPositions) {
+				return generateNodePath(current)
 			}
 
 			if ((++iteration and 0b1111) == 0 && System.nanoTime() >= endTime) {
-				// Timed out
+				timedOut = true
+				return null
+			}
+
+			visitChildren(current, to)
+		} while (openListSize > 0)
+		// We've run out of nodes without finding the goal, so there's no solution
+		return null
+	}
+
+	/** Like [findPathInTimeLimit], but limited by the amount of expanded nodes, so the result does not depend on the speed of the machine. */
+	fun findPathWithMaxNodes(from: Vec2, to: Vec2, endPositions:LongArray, maxExpandedNodes:Int): Path? {
+		initSearch(from, to)
+		do {
+			// Retrieve the node with smallest estimated total cost from the open list
+			val current = popOpenList()
+			// Terminate if we reached the goal node
+			if (nodePosition[current] in endPositions) {
+				return generateNodePath(current)
+			}
+
+			if (expandedNodes >= maxExpandedNodes) {
+				timedOut = true
 				return null
 			}
 
 			visitChildren(current, to)
-		} while (openList.size > 0)
+		} while (openListSize > 0)
 		// We've run out of nodes without finding the goal, so there's no solution
 		return null
 	}
@@ -83,35 +132,35 @@ class WorldPathFinder(private val world:World) {
 		val maxCost = estimateDistance(from, to) * maxComplexityCostFactor
 
 		initSearch(from, to)
-		val openList = openList
 		do {
 			// Retrieve the node with smallest estimated total cost from the open list
-			val current:NodeRecord = openList.pop()
-			current.category = CLOSED
+			val current = popOpenList()
 			// Terminate if we reached the goal node
-			if (current.node.packed in endPositions) {
-				return generateNodePath(current.node)
+			if (nodePosition[current] in endPositions) {
+				return generateNodePath(current)
 			}
 
-			if (current.costSoFar > maxCost) {
+			if (nodeCostSoFar[current] > maxCost) {
 				// Too costly to find
 				return null
 			}
 
 			visitChildren(current, to)
-		} while (openList.size > 0)
+		} while (openListSize > 0)
 		// We've run out of nodes without finding the goal, so there's no solution
 		return null
 	}
 
-	private fun generateNodePath(endNode: Vec2):Path {
+	private fun generateNodePath(endNode: Int):Path {
 		val outPath = PathImpl()
 
 		// Work back along the path, accumulating nodes
-		var current = nodeRecords[endNode.graphIndex]!!
-		while (current.from != Vec2.NULL) {
-			outPath.add(current.node.packed)
-			current = nodeRecords[current.from.graphIndex]!!
+		val nodeParent = nodeParent
+		val nodePosition = nodePosition
+		var current = endNode
+		while (nodeParent[current] != NO_NODE) {
+			outPath.add(nodePosition[current])
+			current = nodeParent[current]
 		}
 		// Reverse the path
 		outPath.reverse()
@@ -120,87 +169,207 @@ class WorldPathFinder(private val world:World) {
 
 	private fun initSearch(startNode: Vec2, endNode: Vec2) {
 		// Increment the search id
-		searchId++
+		if (++searchId == 0) {
+			// Overflow, stale table entries could now look valid
+			tableSearchIds.fill(0)
+			searchId = 1
+		}
+		nodeCount = 0
+		expandedNodes = 0
+		timedOut = false
 		// Initialize the open list
-		openList.clear()
+		openListSize = 0
 		// Initialize the record for the start node and add it to the open list
-		val startRecord = getNodeRecord(startNode)
-		startRecord.from = Vec2.NULL
-		startRecord.costSoFar = 0f
-		addToOpenList(startRecord, estimateDistance(startNode, endNode))
+		val start = getNode(startNode)
+		nodeParent[start] = NO_NODE
+		nodeCostSoFar[start] = 0f
+		nodeEstimatedTotalCost[start] = estimateDistance(startNode, endNode)
+		addToOpenList(start)
 	}
 
 	private inline fun forConnections(from:Vec2, connection:(to:Vec2, cost:Float) -> Unit) {
-		val cost = 1f / world.getMovementSpeedMultiplier(from)
+		val cost = world.getMovementCost(from)
 		forPositionsAround(from) { pos ->
-			if (world.getTile(pos).type == TileType.LAND) {
+			if (world.isPassable(pos)) {
 				connection(pos, cost)
 			}
 		}
 	}
 
-	private fun visitChildren(current: NodeRecord, endNode: Vec2) {
-		val from = current.node
+	private fun visitChildren(current: Int, endNode: Vec2) {
+		val from = Vec2(nodePosition[current])
+		val currentCostSoFar = nodeCostSoFar[current]
 		forConnections(from) { to, cost ->
-			val nodeCost = current.costSoFar + cost
-			val nodeRecord = getNodeRecord(to)
-			val nodeHeuristic = if (nodeRecord.category == CLOSED) {
-				// The node is closed If we didn't find a shorter route, skip
-				if (nodeRecord.costSoFar <= nodeCost) return@forConnections
-				// We can use the node's old cost values to calculate its heuristic
-				// without calling the possibly expensive heuristic function
-				nodeRecord.value - nodeRecord.costSoFar
-			} else if (nodeRecord.category == OPEN) {
-				// If our route is no better, then skip
-				if (nodeRecord.costSoFar <= nodeCost) return@forConnections
-				// Remove it from the open list (it will be re-added with the new cost)
-				openList.remove(nodeRecord)
-				// We can use the node's old cost values to calculate its heuristic
-				// without calling the possibly expensive heuristic function
-				nodeRecord.value - nodeRecord.costSoFar
-			} else { // the node is unvisited
+			val nodeCost = currentCostSoFar + cost
+			val nodeCountBefore = nodeCount
+			val node = getNode(to)
+			// Arrays may have grown in getNode, do not cache them above
+			val nodeCostSoFar = nodeCostSoFar
+			val nodeHeuristic = if (node == nodeCountBefore) {
+				// The node is unvisited
 				// We'll need to calculate the heuristic value using the function,
 				// since we don't have a node record with a previously calculated value
 				estimateDistance(to, endNode)
+			} else {
+				// The node is open or closed. If we didn't find a shorter route, skip
+				if (nodeCostSoFar[node] <= nodeCost) return@forConnections
+				// We can use the node's old cost values to calculate its heuristic
+				// without calling the possibly expensive heuristic function
+				nodeEstimatedTotalCost[node] - nodeCostSoFar[node]
 			}
 			// Update node record's cost and connection
-			nodeRecord.costSoFar = nodeCost
-			nodeRecord.from = from
+			nodeCostSoFar[node] = nodeCost
+			nodeParent[node] = current
+			nodeEstimatedTotalCost[node] = nodeCost + nodeHeuristic
 			// Add it to the open list with the estimated total cost
-			addToOpenList(nodeRecord, nodeCost + nodeHeuristic)
+			val openListIndex = nodeOpenListIndex[node]
+			if (openListIndex == CLOSED) {
+				addToOpenList(node)
+			} else {
+				// Already open, cost only decreased
+				openListUp(openListIndex)
+			}
+		}
+	}
+
+	/** Find the slot of the node at [position], allocating a new one if it was not visited in this search yet.
+	 * New nodes are [CLOSED] and have undefined costs. */
+	private fun getNode(position: Vec2): Int {
+		val packed = position.packed
+		var mask = tablePositions.size - 1
+		var index = hash(packed) and mask
+		while (tableSearchIds[index] == searchId) {
+			if (tablePositions[index] == packed) {
+				return tableSlots[index]
+			}
+			index = (index + 1) and mask
+		}
+
+		// Not found, allocate new
+		val node = nodeCount++
+		if (node == nodePosition.size) {
+			growNodes()
+		}
+		nodePosition[node] = packed
+		nodeOpenListIndex[node] = CLOSED
+
+		if (nodeCount * 2 > tablePositions.size) {
+			growTable()
+			mask = tablePositions.size - 1
+			index = hash(packed) and mask
+			while (tableSearchIds[index] == searchId) {
+				index = (index + 1) and mask
+			}
 		}
+		tablePositions[index] = packed
+		tableSlots[index] = node
+		tableSearchIds[index] = searchId
+		return node
 	}
 
-	private fun addToOpenList(nodeRecord: NodeRecord?, estimatedTotalCost: Float) {
-		openList.add(nodeRecord, estimatedTotalCost)
-		nodeRecord!!.category = OPEN
+	private fun growNodes() {
+		val newCapacity = nodePosition.size * 2
+		nodePosition = nodePosition.copyOf(newCapacity)
+		nodeCostSoFar = nodeCostSoFar.copyOf(newCapacity)
+		nodeEstimatedTotalCost = nodeEstimatedTotalCost.copyOf(newCapacity)
+		nodeParent = nodeParent.copyOf(newCapacity)
+		nodeOpenListIndex = nodeOpenListIndex.copyOf(newCapacity)
 	}
 
-	private fun getNodeRecord(node: Vec2): NodeRecord {
-		val index = node.graphIndex
-		var nr = nodeRecords[index]
-		if (nr != null) {
-			if (nr.searchId != searchId) {
-				nr.category = UNVISITED
-				nr.searchId = searchId
+	/** Double the table and re-insert all nodes of the current search. Called before the newest node is inserted. */
+	private fun growTable() {
+		val newCapacity = tablePositions.size * 2
+		val tablePositions = LongArray(newCapacity)
+		val tableSlots = IntArray(newCapacity)
+		val tableSearchIds = IntArray(newCapacity)
+		val mask = newCapacity - 1
+		val searchId = searchId
+		val nodePosition = nodePosition
+		for (node in 0 until nodeCount - 1) {
+			val packed = nodePosition[node]
+			var index = hash(packed) and mask
+			while (tableSearchIds[index] == searchId) {
+				index = (index + 1) and mask
 			}
-			return nr
+			tablePositions[index] = packed
+			tableSlots[index] = node
+			tableSearchIds[index] = searchId
 		}
-		nr = NodeRecord(node)
-		nr.searchId = searchId
-		nodeRecords[index] = nr
-		return nr
+		this.tablePositions = tablePositions
+		this.tableSlots = tableSlots
+		this.tableSearchIds = tableSearchIds
 	}
 
-	private class NodeRecord(val node:Vec2) : BinaryHeap.Node(0f) {
-		/** The incoming connection to the node  */
-		var from: Vec2 = Vec2.NULL
-		/** The actual cost from the start node.  */
-		var costSoFar = 0f
-		/** The node category: [UNVISITED], [OPEN] or [CLOSED].  */
-		var category = 0
-		/** ID of the current search.  */
-		var searchId = 0
+	private fun addToOpenList(node: Int) {
+		if (openListSize == openList.size) {
+			openList = openList.copyOf(openListSize * 2)
+		}
+		val index = openListSize++
+		openList[index] = node
+		nodeOpenListIndex[node] = index
+		openListUp(index)
+	}
+
+	private fun popOpenList(): Int {
+		expandedNodes++
+		val openList = openList
+		val result = openList[0]
+		nodeOpenListIndex[result] = CLOSED
+		val last = openList[--openListSize]
+		if (openListSize > 0) {
+			openList[0] = last
+			nodeOpenListIndex[last] = 0
+			openListDown(0)
+		}
+		return result
+	}
+
+	private fun openListUp(startIndex: Int) {
+		val openList = openList
+		val nodeOpenListIndex = nodeOpenListIndex
+		val nodeEstimatedTotalCost = nodeEstimatedTotalCost
+		var index = startIndex
+		val node = openList[index]
+		val value = nodeEstimatedTotalCost[node]
+		while (index > 0) {
+			val parentIndex = (index - 1) shr 1
+			val parent = openList[parentIndex]
+			if (value < nodeEstimatedTotalCost[parent]) {
+				openList[index] = parent
+				nodeOpenListIndex[parent] = index
+				index = parentIndex
+			} else break
+		}
+		openList[index] = node
+		nodeOpenListIndex[node] = index
+	}
+
+	private fun openListDown(startIndex: Int) {
+		val openList = openList
+		val nodeOpenListIndex = nodeOpenListIndex
+		val nodeEstimatedTotalCost = nodeEstimatedTotalCost
+		val size = openListSize
+		var index = startIndex
+		val node = openList[index]
+		val value = nodeEstimatedTotalCost[node]
+		while (true) {
+			val leftIndex = 1 + (index shl 1)
+			if (leftIndex >= size) break
+			val rightIndex = leftIndex + 1
+
+			// The smallest of the children is the candidate
+			var childIndex = leftIndex
+			if (rightIndex < size && nodeEstimatedTotalCost[openList[rightIndex]] < nodeEstimatedTotalCost[openList[leftIndex]]) {
+				childIndex = rightIndex
+			}
+			val child = openList[childIndex]
+			if (nodeEstimatedTotalCost[child] >= value) break
+			openList[index] = child
+			nodeOpenListIndex[child] = index
+			index = childIndex
+		}
+		openList[index] = node
+		nodeOpenListIndex[node] = index
 	}
 
 	interface Path {
@@ -208,7 +377,7 @@ class WorldPathFinder(private val world:World) {
 		fun node(i:Int):Vec2
 	}
 
-	private class PathImpl : GdxLongArray(), Path {
+	class PathImpl : GdxLongArray(), Path {
 		override val length: Int
 			get() = size
 
@@ -218,12 +387,15 @@ class WorldPathFinder(private val world:World) {
 	}
 
 	private companion object {
-		private const val UNVISITED = 0
-		private const val OPEN = 1
-		private const val CLOSED = 2
+		/** Slots are allocated lazily, this is enough for most short searches. */
+		private const val INITIAL_NODE_CAPACITY = 1024
+		private const val NO_NODE = -1
+		private const val CLOSED = -1
 
-		val Vec2.graphIndex:Int
-			get() = (x shl WORLD_SIZE_SHIFT) or (y and WORLD_SIZE_MASK)
+		fun hash(packed:Long):Int {
+			val h = packed * -0x61c8864680b583ebL
+			return (h xor (h ushr 32)).toInt()
+		}
 
 		fun estimateDistance(from:Vec2, to:Vec2):Float = (from - to).manhLen.toFloat()
 	}
@@ -3,15 +3,16 @@ package com.darkyen.worldSim.ecs
 import com.badlogic.gdx.math.MathUtils
 import com.darkyen.worldSim.EntityChunkPopulator
 import com.darkyen.worldSim.ITEMS
+import com.darkyen.worldSim.SimulationRandom
 import com.darkyen.worldSim.SimulationSpeedRegulator
 import com.darkyen.worldSim.ecs.AgentAttribute.ALERTNESS
 import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Component
 import com.github.antag99.retinazer.Mapper
 import com.github.antag99.retinazer.Wire
 import com.github.antag99.retinazer.systems.EntityProcessorSystem
 import kotlin.math.max
-import kotlin.random.Random
 
 /**
  *
@@ -29,6 +30,9 @@ class AgentC(val genderMale:Boolean) : Component {
 
 	var activity:AgentActivity = AgentActivity.IDLE
 
+	/** Hour in which [AgentNeedS] last updated the needs, -1 if never */
+	var needsUpdatedHour = -1
+
 	val isBaby:Boolean
 		get() = ageYears < MATURITY_AGE_YEAR
 
@@ -132,7 +136,8 @@ private val AGENT_FAMILY = COMPONENT_DOMAIN.familyWith(PositionC::class.java, Ag
 
 class AgentSpatialLookup : SpatialLookupService(AGENT_FAMILY)
 
-class AgentS : EntityProcessorSystem(AGENT_FAMILY) {
+class AgentS(
+		private val simulationRandom:SimulationRandom = SimulationRandom()) : EntityProcessorSystem(AGENT_FAMILY) {
 
 	@Wire
 	lateinit var world: World
@@ -158,7 +163,9 @@ class AgentS : EntityProcessorSystem(AGENT_FAMILY) {
 		} else 0
 		if (yearProgress >= yearLengthDays) {
 			yearProgress -= yearLengthDays
-			super.update()
+			SimulationMetrics.agentS.time {
+				super.update()
+			}
 		}
 	}
 
@@ -168,7 +175,8 @@ class AgentS : EntityProcessorSystem(AGENT_FAMILY) {
 		if (agent.ageYears == MATURITY_AGE_YEAR) {
 			// Update sprite from child sprite
 			renderC[entity]?.let {
-				it.sprite = (if (agent.genderMale) EntityChunkPopulator.maleSprites else EntityChunkPopulator.femaleSprites).random()
+				val random = simulationRandom.stream(SimulationRandom.AGENT_AGING, entity.toLong())
+				it.sprite = (if (agent.genderMale) EntityChunkPopulator.maleSprites else EntityChunkPopulator.femaleSprites).random(random)
 			}
 		}
 	}
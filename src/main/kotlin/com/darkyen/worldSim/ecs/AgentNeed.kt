@@ -1,15 +1,24 @@
 package com.darkyen.worldSim.ecs
 
+import com.darkyen.worldSim.SimulationRandom
 import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.util.StreamRandom
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Mapper
 import com.github.antag99.retinazer.Wire
 import com.github.antag99.retinazer.systems.EntityProcessorSystem
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.pow
 import kotlin.random.Random
 
 /**
- *
+ * Updates needs of agents each hour.
+ * Agents which are not observed (see [IntelligentS.isObserved]) are updated only each [UNOBSERVED_UPDATE_HOURS] hours,
+ * with the statistical equivalent of the skipped hourly updates.
  */
-class AgentNeedS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::class.java)) {
+class AgentNeedS(
+		private val simulationRandom:SimulationRandom = SimulationRandom()) : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::class.java)) {
 
 	@Wire
 	private lateinit var agentC : Mapper<AgentC>
@@ -20,9 +29,15 @@ class AgentNeedS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::cla
 	@Wire
 	private lateinit var positionC : Mapper<PositionC>
 	@Wire
+	private lateinit var intelligentS : IntelligentS
+	@Wire
 	private lateinit var simulationClock : SimulationSpeedRegulator
 
 	private var dayProgress = 0f
+	/** Hours since the start of the simulation */
+	private var hour = 0
+	/** Repositioned for each entity and hour, so that its rolls do not depend on the order of entities */
+	private val random = StreamRandom(0L)
 
 	override fun update() {
 		val delta = simulationClock.simulationDelta
@@ -30,40 +45,60 @@ class AgentNeedS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::cla
 		// Do not call multiple times per update (it shouldn't happen anyway), because ECS can't handle it
 		if (dayProgress >= HOUR_LENGTH_IN_REAL_SECONDS) {
 			dayProgress -= HOUR_LENGTH_IN_REAL_SECONDS
-			super.update()
+			hour++
+			SimulationMetrics.agentNeedS.time {
+				super.update()
+			}
 		}
 	}
 
-	private fun ByteArray.update(attribute:AgentAttribute, tendency:Float) {
-		val change = (tendency + Random.nextFloat()).toInt()
-		this[attribute] = this[attribute] + change
+	private fun ByteArray.update(attribute:AgentAttribute, tendency:Float, hours:Int) {
+		this[attribute] = this[attribute] + random.roundRandomly(tendency * hours)
 	}
 
-	private fun ByteArray.shouldDie(attribute:AgentAttribute, deathThreshold:Byte):Boolean {
+	private fun ByteArray.shouldDie(attribute:AgentAttribute, deathThreshold:Byte, hours:Int):Boolean {
 		val value = this[attribute]
 		if (value >= deathThreshold) {
 			return false
 		}
 		val direness = (value - attribute.min) / (deathThreshold - attribute.min).toFloat()
-		val roll = Random.nextFloat()
-		if (roll > direness) {
-			// Uh oh, time to die, or not?
-			if (Random.nextInt(110) > this[AgentAttribute.ENDURANCE]) {
-				// Time to die.
-				return true
+		if (hours == 1) {
+			val roll = random.nextFloat()
+			if (roll > direness) {
+				// Uh oh, time to die, or not?
+				if (random.nextInt(110) > this[AgentAttribute.ENDURANCE]) {
+					// Time to die.
+					return true
+				}
 			}
+			return false
 		}
-		return false
+
+		// Chance of surviving all of the hourly rolls above
+		val hourlyDeathChance = (1f - direness) * max(109 - this[AgentAttribute.ENDURANCE], 0) / 110f
+		val survivalChance = (1f - hourlyDeathChance.coerceIn(0f, 1f)).pow(hours)
+		return random.nextFloat() >= survivalChance
 	}
 
 	override fun process(entity: Int) {
 		val agent = agentC[entity]!!
+		if (!intelligentS.isObserved(positionC[entity]!!.pos) && (hour + entity) % UNOBSERVED_UPDATE_HOURS != 0) {
+			// Staggered, so that all unobserved agents are not updated in the same hour
+			return
+		}
+		// Agents which have just been observed or just became unobserved catch up on anything they have missed
+		val lastHour = agent.needsUpdatedHour
+		val hours = if (lastHour < 0) 1 else max(hour - lastHour, 1)
+		agent.needsUpdatedHour = hour
+		val random = random
+		random.key = simulationRandom.streamKey(SimulationRandom.AGENT_NEEDS, entity.toLong())
+		random.counter = hour.toLong() shl ROLLS_PER_HOUR_SHIFT
 
 		val attributes = agent.attributes
 		// Check if should die
-		val shouldDie = attributes.shouldDie(AgentAttribute.HEALTH, 10)
-				|| attributes.shouldDie(AgentAttribute.THIRST, -20)
-				|| attributes.shouldDie(AgentAttribute.HUNGER, -50)
+		val shouldDie = attributes.shouldDie(AgentAttribute.HEALTH, 10, hours)
+				|| attributes.shouldDie(AgentAttribute.THIRST, -20, hours)
+				|| attributes.shouldDie(AgentAttribute.HUNGER, -50, hours)
 
 		if (shouldDie) {
 			// Kill
@@ -75,18 +110,23 @@ class AgentNeedS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::cla
 		}
 
 		val activity = agent.activity
-		attributes.update(AgentAttribute.HEALTH, if (activity == AgentActivity.SLEEPING) HEALTH_TENDENCY_SLEEP else HEALTH_TENDENCY)
-		attributes.update(AgentAttribute.THIRST, if (activity == AgentActivity.DRINKING) 0f else THIRST_TENDENCY)
-		attributes.update(AgentAttribute.HUNGER, if (activity == AgentActivity.EATING) 0f else if (activity == AgentActivity.WALKING || activity == AgentActivity.PANICKING) HUNGER_TENDENCY_WALKING else HUNGER_TENDENCY)
-		attributes.update(AgentAttribute.SLEEP, if (activity == AgentActivity.SLEEPING) 0f else SLEEP_TENDENCY)
-		attributes.update(AgentAttribute.ALERTNESS, if (activity == AgentActivity.SLEEPING) ALERTNESS_TENDENCY_SLEEP else ALERTNESS_TENDENCY)
-		attributes.update(AgentAttribute.SOCIAL, if (activity == AgentActivity.SLEEPING) SOCIAL_TENDENCY_SLEEP else SOCIAL_TENDENCY)
+		attributes.update(AgentAttribute.HEALTH, if (activity == AgentActivity.SLEEPING) HEALTH_TENDENCY_SLEEP else HEALTH_TENDENCY, hours)
+		attributes.update(AgentAttribute.THIRST, if (activity == AgentActivity.DRINKING) 0f else THIRST_TENDENCY, hours)
+		attributes.update(AgentAttribute.HUNGER, if (activity == AgentActivity.EATING) 0f else if (activity == AgentActivity.WALKING || activity == AgentActivity.PANICKING) HUNGER_TENDENCY_WALKING else HUNGER_TENDENCY, hours)
+		attributes.update(AgentAttribute.SLEEP, if (activity == AgentActivity.SLEEPING) 0f else SLEEP_TENDENCY, hours)
+		attributes.update(AgentAttribute.ALERTNESS, if (activity == AgentActivity.SLEEPING) ALERTNESS_TENDENCY_SLEEP else ALERTNESS_TENDENCY, hours)
+		attributes.update(AgentAttribute.SOCIAL, if (activity == AgentActivity.SLEEPING) SOCIAL_TENDENCY_SLEEP else SOCIAL_TENDENCY, hours)
 	}
 
 	private companion object {
+		/** How often are the needs of agents which are not observed updated */
+		const val UNOBSERVED_UPDATE_HOURS = 6
+		/** Log2 of the maximum of random values taken by an entity in one hour */
+		const val ROLLS_PER_HOUR_SHIFT = 5
+
 		// Default decay tendencies
 		/* These values will move by this much each hour.
-		 * They will be rounded in random direction if fractional, with bias to closer integer. */
+		 * They will be rounded in random direction if fractional, with bias to closer integer, see [roundRandomly]. */
 
 		const val HEALTH_TENDENCY = 1f
 		const val HEALTH_TENDENCY_SLEEP = 2f
@@ -104,4 +144,15 @@ class AgentNeedS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(AgentC::cla
 		const val SOCIAL_TENDENCY = -1f
 		const val SOCIAL_TENDENCY_SLEEP = -0.5f
 	}
+}
+
+/**
+ * Round [value] down or up at random, up with the probability of its fractional part,
+ * so that on average it does not change, even when it is negative.
+ * Needs changed over many hours at once then drift by as much as when changed each hour.
+ */
+internal fun Random.roundRandomly(value:Float):Int {
+	val down = floor(value)
+	// Not floor(value + nextFloat()), which could round whole values up, when the sum is rounded to a float
+	return if (nextFloat() < value - down) down.toInt() + 1 else down.toInt()
 }
\ No newline at end of file
@@ -45,9 +45,11 @@ suspend fun AIContext.say(type:MemoryType, pos: Vec2, durationMs:Long = 3000, so
 		// May happen if asking too quickly, and the old speech hasn't flushed yet
 		delay(AgentActivity.PONDERING, 100)
 	}
-	agentSpeechC.create(entity).apply {
-		this.saying = type
-		this.sayingPos = pos
+	deferWrite {
+		agentSpeechC.create(entity).apply {
+			this.saying = type
+			this.sayingPos = pos
+		}
 	}
 	try {
 		delay(if (pos == Vec2.NULL) AgentActivity.ASKING else AgentActivity.RESPONDING, durationMs)
@@ -55,6 +57,8 @@ suspend fun AIContext.say(type:MemoryType, pos: Vec2, durationMs:Long = 3000, so
 		val attributes = agent.attributes
 		attributes[AgentAttribute.SOCIAL] = attributes[AgentAttribute.SOCIAL] + socialReward
 	} finally {
-		agentSpeechC.remove(entity)
+		deferWrite {
+			agentSpeechC.remove(entity)
+		}
 	}
 }
\ No newline at end of file
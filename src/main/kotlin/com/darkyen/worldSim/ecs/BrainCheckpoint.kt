@@ -0,0 +1,100 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.ai.BehaviorAgent
+import com.darkyen.worldSim.util.Vec2
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
+/**
+ * Saved state of a brain, to restore an agent in the middle of what it was doing, see [IntelligentS.checkpointBrain].
+ *
+ * [BehaviorAgent]s are restored exactly, because everything they know about their plan is in [behaviorState], [target] and [path].
+ * Coroutine [Brain]s are opaque, so only their [wakeUpMs] and [goal] (with [target]) are kept.
+ * When they would have woken up, they finish the goal and then start again from the beginning.
+ */
+class BrainCheckpoint(
+		/** In how many ms of simulation time does the brain wake up, or [WAITS_FOR_MOVEMENT] or [NOT_SCHEDULED] */
+		val wakeUpMs:Long,
+		/** [BehaviorAgent.state], null for coroutine brains */
+		val behaviorState:IntArray?,
+		/** [BehaviorAgent.target], or [AIContext.goalTarget] of coroutine brains */
+		val target:Vec2,
+		/** [BehaviorAgent.path], packed [Vec2]s */
+		val path:LongArray,
+		/** [BehaviorAgent.waypoints], packed [Vec2]s */
+		val waypoints:LongArray,
+		/** Activity to which the [BehaviorAgent] returns after waking up */
+		val previousActivity:AgentActivity?,
+		/** [AIContext.goal] of coroutine brains */
+		val goal:BrainGoal,
+		/** [com.darkyen.worldSim.util.StreamRandom.counter] of [AIContext.random] */
+		val randomCounter:Long) {
+
+	fun writeTo(out:DataOutput) {
+		out.writeLong(wakeUpMs)
+		val behaviorState = behaviorState
+		if (behaviorState == null) {
+			out.writeInt(-1)
+		} else {
+			out.writeInt(behaviorState.size)
+			for (value in behaviorState) {
+				out.writeInt(value)
+			}
+		}
+		out.writeLong(target.packed)
+		out.writeInt(path.size)
+		for (node in path) {
+			out.writeLong(node)
+		}
+		out.writeInt(waypoints.size)
+		for (node in waypoints) {
+			out.writeLong(node)
+		}
+		out.writeByte(previousActivity?.ordinal ?: -1)
+		out.writeByte(goal.ordinal)
+		out.writeLong(randomCounter)
+	}
+
+	companion object {
+		/** [wakeUpMs] of a brain which waits until its agent finishes a step, see [AICoroutineDispatcher.continueEntity] */
+		const val WAITS_FOR_MOVEMENT = -1L
+		/** [wakeUpMs] of a brain which is not going to wake up */
+		const val NOT_SCHEDULED = -2L
+
+		private val NO_PATH = LongArray(0)
+		private val AGENT_ACTIVITIES = AgentActivity.values()
+		private val BRAIN_GOALS = BrainGoal.values()
+
+		/** Checkpoint of a coroutine brain, which can't be saved, only its wake up and [goal] */
+		fun ofWakeUp(wakeUpMs:Long, goal:BrainGoal, goalTarget:Vec2, randomCounter:Long):BrainCheckpoint {
+			return BrainCheckpoint(wakeUpMs, null, goalTarget, NO_PATH, NO_PATH, null, goal, randomCounter)
+		}
+
+		/** Read what [writeTo] has written. */
+		fun read(input:ByteBuffer):BrainCheckpoint {
+			val wakeUpMs = input.long
+			val stateSize = input.int
+			val behaviorState = if (stateSize < 0) null else IntArray(stateSize) { input.int }
+			val target = Vec2(input.long)
+			val path = LongArray(input.int) { input.long }
+			val waypoints = LongArray(input.int) { input.long }
+			val previousActivity = input.get().toInt()
+			val goal = BRAIN_GOALS[input.get().toInt()]
+			val randomCounter = input.long
+			return BrainCheckpoint(wakeUpMs, behaviorState, target, path, waypoints,
+					if (previousActivity < 0) null else AGENT_ACTIVITIES[previousActivity], goal, randomCounter)
+		}
+	}
+}
+
+/** What a coroutine [Brain] is in the middle of, so that it can finish it after being restored from a [BrainCheckpoint]. */
+enum class BrainGoal {
+	/** Nothing that would be worth finishing */
+	NONE,
+	/** Sleeping, see [com.darkyen.worldSim.ai.sleep] */
+	SLEEP,
+	/** Walking to [AIContext.goalTarget], see [com.darkyen.worldSim.ai.walkTo] */
+	WALK_TO,
+	/** Walking next to [AIContext.goalTarget] */
+	WALK_NEAR
+}
@@ -37,12 +37,15 @@ class CameraControllerFree : RenderService, WorldSimGame.InputProcessorProvider
 
 	@Wire
 	private lateinit var camera:CameraService
+	@Wire
+	private lateinit var world:World
 
 	private val movement = Vector2()
-	private val lookAt = Vector2(WORLD_SIZE/2f, WORLD_SIZE/2f)
+	private val lookAt by lazy { Vector2(world.size/2f, world.size/2f) }
 
 	private val minZoomLevel = 10
-	private val maxZoomLevel = WORLD_SIZE
+	private val maxZoomLevel:Int
+		get() = world.size
 	private var zoomLevel = 20
 
 	override fun renderUpdate(delta: Float) {
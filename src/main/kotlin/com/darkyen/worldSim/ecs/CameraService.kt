@@ -1,16 +1,17 @@
 package com.darkyen.worldSim.ecs
 
 import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Rectangle
 import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.utils.viewport.ExtendViewport
 import com.darkyen.worldSim.RenderService
-import com.github.antag99.retinazer.EngineService
+import com.darkyen.worldSim.util.Vec2
 
 /**
  *
  */
-class CameraService : RenderService {
+class CameraService : RenderService, FocusProvider {
 
 	val viewport = ExtendViewport(1f, 1f).apply { //arbitrary
 		val camera = camera
@@ -37,6 +38,12 @@ class CameraService : RenderService {
 		v.update(w, h, false)
 	}
 
+	override fun forFocusPoints(action: (center: Vec2, radius: Int) -> Unit) {
+		val lookAt = lookAt
+		val center = Vec2(MathUtils.round(lookAt.x + lookAt.width / 2), MathUtils.round(lookAt.y + lookAt.height / 2))
+		action(center, MathUtils.ceil(maxOf(lookAt.width, lookAt.height) / 2))
+	}
+
 	private val unproject_tmp = Vector2()
 
 	fun unproject(screenX:Int, screenY:Int): Vector2 {
@@ -0,0 +1,91 @@
+package com.darkyen.worldSim.ecs
+
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Directory of all chunks in the world, indexed by chunk coordinate.
+ * Readers never lock, writers publish chunks atomically, so a chunk obtained from here is always fully initialized.
+ *
+ * Chunks are kept in square regions of [REGION_SIZE] × [REGION_SIZE] chunks, which are allocated only when
+ * the first chunk in them is put, so the memory footprint of huge worlds depends on how much of them has been generated.
+ *
+ * Expects only chunk keys which are inside the world.
+ */
+class ChunkDirectory(
+		/** How many chunks there are along one side of the world */
+		val sizeInChunks:Int) {
+
+	private val regionsPerSide = (sizeInChunks + REGION_SIZE - 1) shr REGION_SHIFT
+	private val regions:AtomicReferenceArray<AtomicReferenceArray<World.Chunk?>?>
+
+	init {
+		val regionCount = regionsPerSide.toLong() * regionsPerSide.toLong()
+		require(sizeInChunks > 0 && regionCount <= MAX_REGIONS) { "Invalid size in chunks: $sizeInChunks" }
+		regions = AtomicReferenceArray(regionCount.toInt())
+	}
+
+	/** Get the chunk with given [chunkKey] or null if it is not in the directory.
+	 * Thread safe. */
+	operator fun get(chunkKey:Long):World.Chunk? {
+		val chunkX = chunkX(chunkKey)
+		val chunkY = chunkY(chunkKey)
+		val region = regions.get(regionIndex(chunkX, chunkY)) ?: return null
+		return region.get(indexInRegion(chunkX, chunkY))
+	}
+
+	/** Put [chunk] at [chunkKey], unless there already is a chunk.
+	 * @return the chunk which is in the directory after the call - either [chunk] or the one which was already there
+	 * Thread safe. */
+	fun putIfAbsent(chunkKey:Long, chunk:World.Chunk):World.Chunk {
+		val chunkX = chunkX(chunkKey)
+		val chunkY = chunkY(chunkKey)
+		val regionIndex = regionIndex(chunkX, chunkY)
+		val regions = regions
+		var region = regions.get(regionIndex)
+		if (region == null) {
+			val newRegion = AtomicReferenceArray<World.Chunk?>(REGION_SIZE * REGION_SIZE)
+			region = if (regions.compareAndSet(regionIndex, null, newRegion)) newRegion else regions.get(regionIndex)!!
+		}
+
+		val index = indexInRegion(chunkX, chunkY)
+		while (true) {
+			if (region.compareAndSet(index, null, chunk)) {
+				return chunk
+			}
+			return region.get(index) ?: continue
+		}
+	}
+
+	/** Remove [chunk] from [chunkKey], if it is still there.
+	 * Thread safe. */
+	fun remove(chunkKey:Long, chunk:World.Chunk) {
+		val chunkX = chunkX(chunkKey)
+		val chunkY = chunkY(chunkKey)
+		val region = regions.get(regionIndex(chunkX, chunkY)) ?: return
+		region.compareAndSet(indexInRegion(chunkX, chunkY), chunk, null)
+	}
+
+	/** Thread safe. */
+	fun containsKey(chunkKey:Long):Boolean {
+		return get(chunkKey) != null
+	}
+
+	private fun regionIndex(chunkX:Int, chunkY:Int):Int {
+		return (chunkX shr REGION_SHIFT) * regionsPerSide + (chunkY shr REGION_SHIFT)
+	}
+
+	private companion object {
+		const val REGION_SHIFT = 4
+		const val REGION_SIZE = 1 shl REGION_SHIFT
+		const val REGION_MASK = REGION_SIZE - 1
+		/** Bound of the region table, so that its index fits into an int and it is not absurdly large */
+		const val MAX_REGIONS = 1 shl 24
+
+		fun chunkX(chunkKey:Long):Int = (chunkKey ushr (32 + CHUNK_SIZE_SHIFT)).toInt()
+		fun chunkY(chunkKey:Long):Int = chunkKey.toInt() ushr CHUNK_SIZE_SHIFT
+
+		fun indexInRegion(chunkX:Int, chunkY:Int):Int {
+			return ((chunkX and REGION_MASK) shl REGION_SHIFT) or (chunkY and REGION_MASK)
+		}
+	}
+}
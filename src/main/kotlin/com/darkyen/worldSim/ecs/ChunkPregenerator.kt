@@ -0,0 +1,146 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.RenderService
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.time
+import com.github.antag99.retinazer.Wire
+
+/** Service specialization - provides positions in the world which are in focus, for example because they are looked at. */
+interface FocusProvider {
+	/** Call [action] with the center of each focused area and its radius in tiles. */
+	fun forFocusPoints(action:(center:Vec2, radius:Int) -> Unit)
+}
+
+/**
+ * Generates chunks before they are needed, in parallel, so that the simulation does not stall
+ * when agents or the camera move into new territory.
+ * Requests chunks around [FocusProvider]s and around chunks which contain agents.
+ *
+ * Chunks which were not requested for [UNLOAD_AFTER_PASSES] passes are unloaded to the [World.storage],
+ * so that memory is bounded by the explored area around agents and not by the whole explored world.
+ *
+ * When [deterministic], passes happen each [DETERMINISTIC_INTERVAL_UPDATES] updates instead of in real time intervals
+ * and chunks are generated right away on the update thread, so that when they get populated does not depend on thread timing.
+ */
+class ChunkPregenerator(
+		private val deterministic:Boolean = false) : RenderService {
+
+	@Wire
+	private lateinit var world:World
+	@Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+	@Wire
+	private lateinit var focusProviders:java.util.List<FocusProvider>
+	@Wire
+	private lateinit var agentSpatialLookup:AgentSpatialLookup
+	@Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+	@Wire
+	private lateinit var spatialLookupServices:java.util.List<SpatialLookupService>
+
+	private val wantedChunks = GdxLongArray()
+	private val unloadedChunks = GdxLongArray()
+	private var nextPregenerationNanos = 0L
+	private var nextUnloadNanos = 0L
+	private var updates = 0L
+
+	override fun update() {
+		SimulationMetrics.chunkPregenerator.time {
+			if (deterministic) {
+				if (updates++ % DETERMINISTIC_INTERVAL_UPDATES == 0L) {
+					collectWantedChunks()
+					for (i in 0 until wantedChunks.size) {
+						world.getChunk(wantedChunks.items[i])
+					}
+					unloadUnwantedChunks()
+				}
+			} else {
+				pregenerate()
+				unload()
+			}
+		}
+	}
+
+	/** Also called on render, because the camera moves even when the simulation is paused.
+	 * Does not unload, because brains may be running. */
+	override fun renderUpdate(delta: Float) {
+		if (!deterministic) {
+			pregenerate()
+		}
+	}
+
+	private fun addChunksAround(center:Vec2, radius:Int) {
+		val wantedChunks = wantedChunks
+		val firstChunkX = (center.x - radius) shr CHUNK_SIZE_SHIFT
+		val lastChunkX = (center.x + radius) shr CHUNK_SIZE_SHIFT
+		val firstChunkY = (center.y - radius) shr CHUNK_SIZE_SHIFT
+		val lastChunkY = (center.y + radius) shr CHUNK_SIZE_SHIFT
+		for (chunkX in firstChunkX .. lastChunkX) {
+			for (chunkY in firstChunkY .. lastChunkY) {
+				val chunkKey = Vec2.ofChunkCorner(chunkX, chunkY).chunkKey
+				if (!wantedChunks.contains(chunkKey)) {
+					wantedChunks.add(chunkKey)
+				}
+			}
+		}
+	}
+
+	private fun pregenerate() {
+		val now = System.nanoTime()
+		if (now < nextPregenerationNanos) {
+			return
+		}
+		nextPregenerationNanos = now + PREGENERATION_INTERVAL_NANOS
+
+		collectWantedChunks()
+		world.pregenerateChunks(wantedChunks)
+	}
+
+	private fun collectWantedChunks() {
+		wantedChunks.clear()
+		for (focusProvider in focusProviders) {
+			focusProvider.forFocusPoints { center, radius ->
+				addChunksAround(center, radius + FOCUS_MARGIN)
+			}
+		}
+		for (entry in agentSpatialLookup.chunks) {
+			if (entry.value.size() == 0) {
+				continue
+			}
+			val chunkCenter = Vec2(entry.key) + Vec2(CHUNK_SIZE / 2, CHUNK_SIZE / 2)
+			addChunksAround(chunkCenter, CHUNK_SIZE)
+		}
+	}
+
+	/** Uses [wantedChunks] from the last [pregenerate], which may have been called from [renderUpdate]. */
+	private fun unload() {
+		val now = System.nanoTime()
+		if (now < nextUnloadNanos) {
+			return
+		}
+		nextUnloadNanos = now + PREGENERATION_INTERVAL_NANOS
+		unloadUnwantedChunks()
+	}
+
+	private fun unloadUnwantedChunks() {
+		val unloadedChunks = unloadedChunks
+		unloadedChunks.clear()
+		world.unloadUnwantedChunks(wantedChunks, UNLOAD_AFTER_PASSES, unloadedChunks)
+		for (i in 0 until unloadedChunks.size) {
+			val chunkKey = unloadedChunks.items[i]
+			for (spatialLookup in spatialLookupServices) {
+				spatialLookup.trimChunk(chunkKey)
+			}
+		}
+	}
+
+	private companion object {
+		/** Pregeneration is not urgent, so there is no need to do it each frame. */
+		const val PREGENERATION_INTERVAL_NANOS = 100_000_000L
+		/** How many tiles beyond the focused area should be pregenerated. */
+		const val FOCUS_MARGIN = CHUNK_SIZE
+		/** After how many passes without being wanted is a chunk unloaded, about 10 seconds. */
+		const val UNLOAD_AFTER_PASSES = 100
+		/** Updates between passes when [deterministic], about [PREGENERATION_INTERVAL_NANOS] at normal speed */
+		const val DETERMINISTIC_INTERVAL_UPDATES = 2L
+	}
+}
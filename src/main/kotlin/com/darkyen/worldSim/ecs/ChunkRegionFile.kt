@@ -0,0 +1,105 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.util.GdxLongArray
+import java.io.DataOutput
+import java.nio.ByteBuffer
+
+/**
+ * Read-only chunks in the format of [ChunkStorage], usually memory-mapped from a snapshot file.
+ * Opening it does not read any chunks, only [get] does, so opening a huge world is instant.
+ *
+ * Layout (big endian):
+ * - chunk count
+ * - index of chunks, sorted by chunk key: chunk key (long), offset of its data from the start of the region (long), length of its data (int)
+ * - chunk data
+ *
+ * Thread safe.
+ */
+class ChunkRegionFile(
+		/** Buffer with the region, positioned at its start */
+		buffer:ByteBuffer) {
+
+	private val buffer = buffer.slice()
+
+	/** How many chunks are in the region */
+	val size:Int = this.buffer.getInt(0)
+
+	/** Index of the index entry of [chunkKey], or -1 if it is not in the region.
+	 * Chunk keys inside the world are never negative, so signed order is fine. */
+	private fun find(chunkKey:Long):Int {
+		val buffer = buffer
+		var low = 0
+		var high = size - 1
+		while (low <= high) {
+			val mid = (low + high) ushr 1
+			val midKey = buffer.getLong(INDEX_START + mid * INDEX_ENTRY_SIZE)
+			when {
+				midKey < chunkKey -> low = mid + 1
+				midKey > chunkKey -> high = mid - 1
+				else -> return mid
+			}
+		}
+		return -1
+	}
+
+	fun contains(chunkKey:Long):Boolean {
+		return find(chunkKey) != -1
+	}
+
+	/** Get the data of the chunk, as written by [ChunkStorage].
+	 * @return null if it is not in the region */
+	operator fun get(chunkKey:Long):ByteArray? {
+		val entry = find(chunkKey)
+		if (entry == -1) {
+			return null
+		}
+		return entryData(entry)
+	}
+
+	private fun entryData(entry:Int):ByteArray {
+		val buffer = buffer.duplicate()
+		val entryStart = INDEX_START + entry * INDEX_ENTRY_SIZE
+		val offset = buffer.getLong(entryStart + 8).toInt()
+		val length = buffer.getInt(entryStart + 16)
+		val data = ByteArray(length)
+		buffer.position(offset)
+		buffer.get(data)
+		return data
+	}
+
+	/** Call [action] with the key and data of all chunks in the region. */
+	fun forEach(action:(chunkKey:Long, data:ByteArray) -> Unit) {
+		for (entry in 0 until size) {
+			action(buffer.getLong(INDEX_START + entry * INDEX_ENTRY_SIZE), entryData(entry))
+		}
+	}
+
+	companion object {
+		private const val INDEX_START = 4
+		private const val INDEX_ENTRY_SIZE = 8 + 8 + 4
+
+		/** Write all chunks of [storage] in the region format, so that it can be read by [ChunkRegionFile]. */
+		fun write(out:DataOutput, storage:ChunkStorage) {
+			val keys = GdxLongArray()
+			val data = HashMap<Long, ByteArray>()
+			storage.forEach { chunkKey, chunkData ->
+				keys.add(chunkKey)
+				data[chunkKey] = chunkData
+			}
+			keys.sort()
+
+			out.writeInt(keys.size)
+			var offset = INDEX_START.toLong() + keys.size.toLong() * INDEX_ENTRY_SIZE
+			for (i in 0 until keys.size) {
+				val chunkData = data[keys.items[i]]!!
+				out.writeLong(keys.items[i])
+				out.writeLong(offset)
+				out.writeInt(chunkData.size)
+				offset += chunkData.size
+			}
+			for (i in 0 until keys.size) {
+				out.write(data[keys.items[i]]!!)
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.darkyen.worldSim.ecs
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * Keeps chunks which have been unloaded from the [World], serialized and compressed.
+ * A typical chunk takes a few hundred bytes here, instead of several KiB when loaded.
+ *
+ * Thread safe.
+ */
+class ChunkStorage(
+		/** Chunks loaded from a snapshot, used when there is no newer version of the chunk here */
+		private val region:ChunkRegionFile? = null) {
+
+	private val chunks = ConcurrentHashMap<Long, ByteArray>()
+
+	/** Store the current state of [chunk] under [chunkKey], replacing anything stored there before. */
+	fun save(chunkKey:Long, chunk:World.Chunk) {
+		val deflater = DEFLATER.get()
+		deflater.reset()
+		val bytes = ByteArrayOutputStream(512)
+		DataOutputStream(DeflaterOutputStream(bytes, deflater)).use { out ->
+			chunk.writeTo(out)
+		}
+		chunks[chunkKey] = bytes.toByteArray()
+	}
+
+	/** Whether there is a chunk stored under [chunkKey]. */
+	fun contains(chunkKey:Long):Boolean {
+		return chunks.containsKey(chunkKey) || (region != null && region.contains(chunkKey))
+	}
+
+	/** Create a chunk from what was [saved][save] under [chunkKey].
+	 * @return null if there is nothing stored there */
+	fun load(chunkKey:Long):World.Chunk? {
+		val bytes = chunks[chunkKey] ?: region?.get(chunkKey) ?: return null
+		val inflater = INFLATER.get()
+		inflater.reset()
+		val chunk = World.Chunk()
+		DataInputStream(InflaterInputStream(ByteArrayInputStream(bytes), inflater)).use { input ->
+			chunk.readFrom(input)
+		}
+		return chunk
+	}
+
+	/** Call [action] with the key and serialized data of each stored chunk.
+	 * Not thread safe with respect to [save]. */
+	fun forEach(action:(chunkKey:Long, data:ByteArray) -> Unit) {
+		val chunks = chunks
+		for ((chunkKey, data) in chunks) {
+			action(chunkKey, data)
+		}
+		region?.forEach { chunkKey, data ->
+			if (!chunks.containsKey(chunkKey)) {
+				action(chunkKey, data)
+			}
+		}
+	}
+
+	private companion object {
+		val DEFLATER:ThreadLocal<Deflater> = ThreadLocal.withInitial { Deflater(Deflater.BEST_SPEED) }
+		val INFLATER:ThreadLocal<Inflater> = ThreadLocal.withInitial { Inflater() }
+	}
+}
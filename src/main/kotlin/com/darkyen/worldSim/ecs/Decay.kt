@@ -1,6 +1,7 @@
 package com.darkyen.worldSim.ecs
 
 import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Component
 import com.github.antag99.retinazer.Mapper
 import com.github.antag99.retinazer.Wire
@@ -18,6 +19,12 @@ class DecayS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(DecayC::class.j
 	@Wire
 	private lateinit var simulationClock : SimulationSpeedRegulator
 
+	override fun update() {
+		SimulationMetrics.decayS.time {
+			super.update()
+		}
+	}
+
 	override fun process(entity: Int) {
 		val delta = simulationClock.simulationDelta
 		val decay = decayC[entity]!!
@@ -1,9 +1,22 @@
 package com.darkyen.worldSim.ecs
 
-import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.utils.IntMap
 import com.badlogic.gdx.utils.LongBinaryHeap
 import com.badlogic.gdx.utils.Pool
+import com.darkyen.worldSim.SimulationRandom
 import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.ai.AGENT_VISIBILITY_DISTANCE
+import com.darkyen.worldSim.ai.BehaviorAgent
+import com.darkyen.worldSim.ai.BehaviorTree
+import com.darkyen.worldSim.ai.resumeGoal
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.GdxArray
+import com.darkyen.worldSim.util.GdxIntArray
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.StreamRandom
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.logError
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Component
 import com.github.antag99.retinazer.Mapper
 import com.github.antag99.retinazer.Wire
@@ -13,31 +26,52 @@ import kotlinx.coroutines.CancellableContinuation
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Delay
 import kotlinx.coroutines.InternalCoroutinesApi
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 import kotlin.coroutines.AbstractCoroutineContextElement
 import kotlin.coroutines.Continuation
 import kotlin.coroutines.ContinuationInterceptor
 import kotlin.coroutines.CoroutineContext
 import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.createCoroutine
 import kotlin.coroutines.resume
 import kotlin.coroutines.startCoroutine
 import kotlin.coroutines.suspendCoroutine
+import kotlin.math.abs
+import kotlin.math.max
 import kotlin.math.roundToLong
 
 typealias Brain = (suspend () -> Nothing)
 
 /**
- *
+ * Entity with a mind of its own, driven either by a [Brain] coroutine or by a [BehaviorTree].
+ * Instances are immutable and can be shared by many entities.
  */
-class IntelligentC(val brain:Brain) : Component
+class IntelligentC private constructor(val brain:Brain?, val behaviorTree:BehaviorTree?) : Component {
+	constructor(brain:Brain) : this(brain, null)
+	constructor(behaviorTree:BehaviorTree) : this(null, behaviorTree)
+}
 
-class IntelligentS : FamilyWatcherSystem.Single(COMPONENT_DOMAIN.familyWith(IntelligentC::class.java)) {
+class IntelligentS(
+		/** How many threads should run the brains, see [AICoroutineDispatcher.brainThreads] */
+		brainThreads:Int = 1,
+		/** Gives each brain its [AIContext.random], see [SimulationRandom.deterministic] for what else it changes */
+		private val simulationRandom:SimulationRandom = SimulationRandom()) : FamilyWatcherSystem.Single(COMPONENT_DOMAIN.familyWith(IntelligentC::class.java)) {
 
-	private val dispatcher = AICoroutineDispatcher()
+	private val dispatcher = AICoroutineDispatcher(brainThreads, deterministic = simulationRandom.deterministic)
 
 	@Wire
 	private lateinit var intelligentC: Mapper<IntelligentC>
 	@Wire
 	private lateinit var simulationClock : SimulationSpeedRegulator
+	@Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+	@Wire
+	private lateinit var focusProviders:java.util.List<FocusProvider>
+	@Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+	@Wire
+	private lateinit var spatialLookupServices:java.util.List<SpatialLookupService>
 
 	@Wire
 	private lateinit var world:World
@@ -48,24 +82,71 @@ class IntelligentS : FamilyWatcherSystem.Single(COMPONENT_DOMAIN.familyWith(Inte
 				engine.getMapper(AgentSpeechC::class.java),
 				dispatcher,
 				engine.getService(PathFinder::class.java),
-				engine.getService(AgentSpatialLookup::class.java))
+				engine.getService(AgentSpatialLookup::class.java),
+				spatialLookupServices,
+				simulationRandom)
 	}
 
+	/** Brains to restore on insertion, see [restoreBrain] */
+	private val restoredBrains = IntMap<BrainCheckpoint>()
+
+	/** How well do the brains keep up with the simulation */
+	val schedulingStats:BrainSchedulingStats
+		get() = dispatcher.stats
+
 	fun continueEntity(entity:Int) {
 		dispatcher.continueEntity(entity)
 	}
 
+	/** @see AICoroutineDispatcher.isObserved */
+	fun isObserved(pos:Vec2):Boolean {
+		return dispatcher.isObserved(pos)
+	}
+
 	override fun update() {
-		// Process addition and removals
-		super.update()
+		SimulationMetrics.intelligentS.time {
+			// Process addition and removals
+			super.update()
+
+			dispatcher.clearFocus()
+			for (focusProvider in focusProviders) {
+				focusProvider.forFocusPoints(dispatcher::addFocus)
+			}
+
+			// Tick brains
+			dispatcher.updateAndProcess((simulationClock.simulationDelta * 1000f).roundToLong(),
+					if (simulationRandom.deterministic) Long.MAX_VALUE else 10_000_000L)
+		}
+		val stats = dispatcher.stats
+		SimulationMetrics.brainResumes.add(stats.wakeUps.toLong())
+		SimulationMetrics.lateBrainResumes.add(stats.lateWakeUps.toLong())
+	}
+
+	/** Capture the state of the brain of [entity], to [restoreBrain] it later, possibly in a different engine.
+	 * Call only between updates. */
+	fun checkpointBrain(entity:Int):BrainCheckpoint {
+		return dispatcher.checkpoint(entity)
+	}
 
-		// Tick brains
-		dispatcher.updateAndProcess((simulationClock.simulationDelta * 1000f).roundToLong(), 10_000_000L)
+	/** When [entity] gets its [IntelligentC] (in this update), its brain will continue from [checkpoint] instead of starting anew. */
+	fun restoreBrain(entity:Int, checkpoint:BrainCheckpoint) {
+		restoredBrains.put(entity, checkpoint)
 	}
 
 	override fun insertedEntity(entity: Int) {
-		val brain = intelligentC[entity]!!.brain
-		dispatcher.addEntity(brain, AIContext(entity, aiWorld))
+		val intelligent = intelligentC[entity]!!
+		val checkpoint = restoredBrains.remove(entity)
+		val context = AIContext(entity, aiWorld)
+		if (checkpoint != null) {
+			context.random.counter = checkpoint.randomCounter
+		}
+		val brain = intelligent.brain
+		if (brain != null) {
+			if (checkpoint == null) dispatcher.addEntity(brain, context) else dispatcher.addEntity(brain, context, checkpoint)
+		} else {
+			val behaviorTree = intelligent.behaviorTree!!
+			if (checkpoint == null) dispatcher.addEntity(behaviorTree, context) else dispatcher.addEntity(behaviorTree, context, checkpoint)
+		}
 	}
 
 	override fun removedEntity(entity: Int) {
@@ -73,8 +154,49 @@ class IntelligentS : FamilyWatcherSystem.Single(COMPONENT_DOMAIN.familyWith(Inte
 	}
 }
 
+/** How well do the brains keep up with the simulation time, see [AICoroutineDispatcher.updateAndProcess]. */
+class BrainSchedulingStats {
+	/** Brains woken up in the last update */
+	var wakeUps = 0
+	/** How many of [wakeUps] were late - should have been woken up in an earlier update, but there was not enough time */
+	var lateWakeUps = 0
+	/** How late was the latest of [lateWakeUps], in simulated ms */
+	var maxLagMs = 0L
+	/** Whether the last update ran out of time before waking up all brains that should have been woken up */
+	var overBudget = false
+
+	/** [lateWakeUps] of all updates so far */
+	var totalLateWakeUps = 0L
+	/** Sum of how late were the [totalLateWakeUps], in simulated ms */
+	var totalLagMs = 0L
+	/** How many updates were [overBudget] */
+	var overBudgetUpdates = 0L
+}
+
+/**
+ * Runs brain coroutines in simulation time.
+ *
+ * With more than one [brainThreads], brains which are ready at the same time run in parallel.
+ * World is split into vertical stripes, one chunk wide, and brains in the same stripe run sequentially, in a fixed order.
+ * Even and odd stripes take turns, so brains which run concurrently are always further apart than they can see
+ * and the result does not depend on the number of threads or their timing.
+ * The only exception are [offload]ed computations, which resume the brain once they are done, unless [deterministic].
+ * Writes into state shared with other brains must go through [deferWrite].
+ *
+ * Unless [deterministic], each update has a real time budget. When there is not enough time to wake all brains that should wake up,
+ * the ones that are late the most go first and brains of agents in focus (see [addFocus]) get most of the budget.
+ * Background agents still get [BACKGROUND_SHARE] of it, so they are slowed down, but never stopped completely.
+ * How late are the brains is tracked in [stats].
+ */
 @UseExperimental(InternalCoroutinesApi::class)
-class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
+class AICoroutineDispatcher(
+		/** How many threads run the brains. 1 runs everything on the simulation thread. */
+		val brainThreads:Int = 1,
+		/** Creates [WakeUpScheduler]s which keep sleeping brains until they should wake up.
+		 * They are accessed only from the simulation thread. */
+		schedulerFactory:() -> WakeUpScheduler = ::TimingWheelScheduler,
+		/** Whether [offload]ed computations should run right away, so that brains do not depend on how fast they complete */
+		val deterministic:Boolean = false) : ContinuationInterceptor, Delay, CoroutineScope {
 
 	override val key: CoroutineContext.Key<*>
 		get() = ContinuationInterceptor
@@ -85,34 +207,67 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 		get() = this
 
 	override fun scheduleResumeAfterDelay(timeMillis: Long, continuation: CancellableContinuation<Unit>) {
-		Gdx.app?.error("Intelligent", "Using of kotlin delay() is deprecated", Exception("--stack trace--"))
+		logError("Intelligent", "Using of kotlin delay() is deprecated", Exception("--stack trace--"))
 		schedule(timeMillis, continuation)
 	}
 
 	/** Continuations that are waiting for external update */
 	private val waitingContinuation = Bag<Continuation<Unit>>()
 
+	/** Continuations that are waiting for a result of [offload]ed computation */
+	private val offloadedContinuation = Bag<Continuation<*>>()
+	/** Results of [offload]ed computations, ready to be resumed on the simulation thread */
+	private val offloadedResults = ConcurrentLinkedQueue<OffloadedResult<*>>()
+
 	var dispatcherClockMs:Long = 0
 		private set
 
+	/** [dispatcherClockMs] of the previous update, anything scheduled up to it is late */
+	private var previousClockMs:Long = 0
+
+	val stats = BrainSchedulingStats()
+
+	/** Brains of agents that are in focus */
+	private val focusScheduler = schedulerFactory()
+	/** Brains of the rest */
+	private val backgroundScheduler = schedulerFactory()
+
+	private val focusCenters = GdxLongArray()
+	private val focusRadii = GdxIntArray()
+
+	/** Scheduled node of each sleeping entity */
 	private val entityNodes = Bag<ContinuationNode>()
-	private val heap = LongBinaryHeap<ContinuationNode>(10_000, false)
 
-	/** Schedules a new [continuation] to be woken up after [durationMs]. */
-	private fun schedule(durationMs: Long, continuation: Continuation<Unit>):ContinuationNode {
-		val heap = heap
-		val resumeAt = dispatcherClockMs + durationMs
-		val entity = continuation.context[AIContext]!!.entity
+	/** Runs [StripeGroup]s when [brainThreads] > 1 */
+	private val brainPool:ForkJoinPool by lazy { ForkJoinPool(brainThreads) }
+	/** [StripeGroup]s of the current batch, by stripe */
+	private val stripeGroups = IntMap<StripeGroup>()
+	private val phaseGroups = GdxArray<StripeGroup>(false, 64, StripeGroup::class.java)
+	private val stripeGroupPool = object : Pool<StripeGroup>() {
+		override fun newObject(): StripeGroup = StripeGroup()
+	}
 
-		val node: ContinuationNode
-		synchronized(heap) {
-			node = ContinuationNode.POOL.obtain()!!
-			node.continuation = continuation
-			heap.add(node, resumeAt)
+	/** Schedules a new [continuation] to be woken up after [durationMs].
+	 * When called from a parallel brain, the scheduling is postponed until its [StripeGroup] is done. */
+	private fun schedule(durationMs: Long, continuation: Continuation<Unit>) {
+		val group = CURRENT_GROUP.get()
+		if (group != null) {
+			group.scheduledDurations.add(durationMs)
+			group.scheduledContinuations.add(continuation)
+			return
 		}
 
+		val resumeAt = dispatcherClockMs + durationMs
+		val context = continuation.context[AIContext]!!
+		val entity = context.entity
+
+		val node = ContinuationNode.POOL.obtain()!!
+		node.continuation = continuation
+		node.entity = entity
+		node.inFocus = isInFocus(context.position.pos)
+		(if (node.inFocus) focusScheduler else backgroundScheduler).add(node, resumeAt)
+
 		entityNodes.set(entity, node)
-		return node
 	}
 
 	fun addEntity(brain:Brain, context:AIContext) {
@@ -122,10 +277,139 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 		brain.startCoroutine(BrainContinuation(this + context))
 	}
 
+	fun addEntity(behaviorTree:BehaviorTree, context:AIContext) {
+		// Same as with coroutine brains, the first tick happens right away
+		BehaviorAgent(behaviorTree, context, this).resume(Unit)
+	}
+
+	/** Add a brain which was saved with [checkpoint].
+	 * When it would have woken up, it finishes its [goal][BrainCheckpoint.goal] and then starts from the beginning. */
+	fun addEntity(brain:Brain, context:AIContext, checkpoint:BrainCheckpoint) {
+		// Set right away, so that the goal is not lost when the brain is saved again before it wakes up
+		context.goal = checkpoint.goal
+		context.goalTarget = checkpoint.target
+		val restoredBrain:Brain = {
+			// Brains start idle, whatever the saved activity was, it has ended with the wake up
+			context.agent.activity = AgentActivity.IDLE
+			context.resumeGoal()
+			brain()
+		}
+		restoreWakeUp(context.entity, restoredBrain.createCoroutine(BrainContinuation(this + context)), checkpoint.wakeUpMs)
+	}
+
+	/** Add a behavior tree agent which was saved with [checkpoint]. It continues exactly where it was. */
+	fun addEntity(behaviorTree:BehaviorTree, context:AIContext, checkpoint:BrainCheckpoint) {
+		val agent = BehaviorAgent(behaviorTree, context, this)
+		agent.restore(checkpoint)
+		restoreWakeUp(context.entity, agent, checkpoint.wakeUpMs)
+	}
+
+	private fun restoreWakeUp(entity:Int, continuation:Continuation<Unit>, wakeUpMs:Long) {
+		if (wakeUpMs == BrainCheckpoint.WAITS_FOR_MOVEMENT) {
+			resumeOnContinue(entity, continuation)
+		} else {
+			// Brains which were not scheduled would never wake up again, so they are woken up right away
+			schedule(max(wakeUpMs, 0L), continuation)
+		}
+	}
+
+	/**
+	 * Capture when and how the brain of [entity] wakes up, and the state of its [BehaviorAgent], if it has one.
+	 * Brains which wait for an [offload]ed computation are saved as waking up right away, the computation is lost.
+	 * Call only between updates.
+	 */
+	fun checkpoint(entity:Int):BrainCheckpoint {
+		val wakeUpMs:Long
+		val continuation:Continuation<*>?
+		val node = entityNodes[entity]
+		val waiting = waitingContinuation[entity]
+		val offloaded = offloadedContinuation[entity]
+		when {
+			node != null -> {
+				wakeUpMs = max(node.resumeAt - dispatcherClockMs, 0L)
+				continuation = node.continuation
+			}
+			waiting != null -> {
+				wakeUpMs = BrainCheckpoint.WAITS_FOR_MOVEMENT
+				continuation = waiting
+			}
+			offloaded != null -> {
+				wakeUpMs = 0L
+				continuation = offloaded
+			}
+			else -> {
+				wakeUpMs = BrainCheckpoint.NOT_SCHEDULED
+				continuation = null
+			}
+		}
+		if (continuation is BehaviorAgent) {
+			return continuation.checkpoint(wakeUpMs)
+		}
+		val context = continuation?.context?.get(AIContext)
+		return BrainCheckpoint.ofWakeUp(wakeUpMs, context?.goal ?: BrainGoal.NONE, context?.goalTarget ?: Vec2.NULL, context?.random?.counter ?: 0L)
+	}
+
 	fun removeEntity(entity:Int) {
 		waitingContinuation.remove(entity)
-		val node = entityNodes.get(entity) ?: return
-		node.entityDied = true
+		offloadedContinuation.remove(entity)
+		val node = entityNodes.remove(entity) ?: return
+		// Do not even call finally, just throw it away, so that the brain can be GCed immediately
+		(if (node.inFocus) focusScheduler else backgroundScheduler).remove(node)
+		ContinuationNode.POOL.free(node)
+	}
+
+	/** Forget all focus areas, typically before adding current ones with [addFocus]. */
+	fun clearFocus() {
+		focusCenters.clear()
+		focusRadii.clear()
+	}
+
+	/** Agents within [radius] tiles from [center] (plus some margin) are in focus - their brains are prioritized.
+	 * When there are no focus areas, all agents are in focus. */
+	fun addFocus(center:Vec2, radius:Int) {
+		focusCenters.add(center.packed)
+		focusRadii.add(radius + FOCUS_MARGIN)
+	}
+
+	/** Whether the agent at [pos] is in some focus area and so it should be simulated in full detail.
+	 * Unlike [isInFocus], nobody is observed when there are no focus areas.
+	 * Agents that are not observed walk in jumps (see [AIContext.teleport]) and their needs are updated less often. */
+	fun isObserved(pos:Vec2):Boolean {
+		return focusCenters.size > 0 && isInFocus(pos)
+	}
+
+	private fun isInFocus(pos:Vec2):Boolean {
+		val focusCenters = focusCenters
+		if (focusCenters.size == 0) {
+			return true
+		}
+		for (i in 0 until focusCenters.size) {
+			val offset = pos - Vec2(focusCenters[i])
+			if (max(abs(offset.x), abs(offset.y)) <= focusRadii[i]) {
+				return true
+			}
+		}
+		return false
+	}
+
+	/** Take the next node that is ready at [currentTime] out of the [scheduler] and release it.
+	 * @return its continuation or null if there is no such node */
+	private fun pollReady(scheduler:WakeUpScheduler, currentTime:Long):Continuation<Unit>? {
+		val readyNode = scheduler.pollReady(currentTime) ?: return null
+		val continuation = readyNode.continuation
+		val stats = stats
+		stats.wakeUps++
+		if (readyNode.resumeAt <= previousClockMs) {
+			// Should have been woken up in some previous update
+			val lag = currentTime - readyNode.resumeAt
+			stats.lateWakeUps++
+			stats.totalLateWakeUps++
+			stats.totalLagMs += lag
+			stats.maxLagMs = max(stats.maxLagMs, lag)
+		}
+		entityNodes.remove(readyNode.entity)
+		ContinuationNode.POOL.free(readyNode)
+		return continuation
 	}
 
 	fun continueEntity(entity:Int) {
@@ -135,7 +419,40 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 
 	suspend fun waitEntity(entity:Int) {
 		suspendCoroutine<Unit> {
-			waitingContinuation.set(entity, it)
+			resumeOnContinue(entity, it)
+		}
+	}
+
+	/** Resume [continuation] of [entity] when it is [continueEntity]-ed.
+	 * For brains that do not suspend, otherwise use [waitEntity]. */
+	fun resumeOnContinue(entity:Int, continuation:Continuation<Unit>) {
+		val group = CURRENT_GROUP.get()
+		if (group != null) {
+			group.waitingEntities.add(entity)
+			group.waitingContinuations.add(continuation)
+		} else {
+			waitingContinuation.set(entity, continuation)
+		}
+	}
+
+	/** Resume [continuation] after [durationMs].
+	 * For brains that do not suspend, otherwise use [delayEntity]. */
+	fun resumeAfter(durationMs:Long, continuation:Continuation<Unit>) {
+		schedule(durationMs, continuation)
+	}
+
+	/**
+	 * Run [write] once it is safe to modify state that is shared with other brains,
+	 * such as components of any entity (including own, when other brains may read them) or the world.
+	 * That is immediately when running on the simulation thread,
+	 * or on the simulation thread after the current stripe is done, when running brains in parallel.
+	 */
+	fun deferWrite(write:() -> Unit) {
+		val group = CURRENT_GROUP.get()
+		if (group != null) {
+			group.deferredWrites.add(write)
+		} else {
+			write()
 		}
 	}
 
@@ -145,64 +462,246 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 		}
 	}
 
+	/**
+	 * Run [task] on the [OFFLOAD_POOL], suspending the brain until it is done.
+	 * The brain is then resumed through this dispatcher, as if it was [continueEntity]-ed.
+	 * [task] runs concurrently with other brains, so it must only read thread safe state.
+	 * When [deterministic], it runs right away instead, on the thread of the brain.
+	 * Either way, it works the same regardless of [brainThreads].
+	 */
+	suspend fun <T> offload(task:() -> T):T {
+		if (deterministic) {
+			// Waiting for the result would make the brains depend on how fast it completes
+			return task()
+		}
+
+		return suspendCoroutine { continuation ->
+			startOffload(continuation.context[AIContext]!!.entity, continuation, task)
+		}
+	}
+
+	/**
+	 * Run [task] like [offload], then resume [continuation] of the brain of [entity], for brains that do not suspend.
+	 * Anything thrown by [task] is lost, so it should catch it itself.
+	 */
+	fun offloadAndResume(entity:Int, continuation:Continuation<Unit>, task:() -> Unit) {
+		if (deterministic) {
+			task()
+			schedule(0, continuation)
+			return
+		}
+		startOffload(entity, continuation, task)
+	}
+
+	private fun <T> startOffload(entity:Int, continuation:Continuation<T>, task:() -> T) {
+		// Results are taken only on the simulation thread, after the stripe is applied, so they can't come before this
+		deferWrite {
+			offloadedContinuation.set(entity, continuation)
+		}
+		OFFLOAD_POOL.execute {
+			val result = runCatching(task)
+			offloadedResults.add(OffloadedResult(entity, continuation, result))
+		}
+	}
+
+	/** Schedule brains whose [offload]ed computations have completed. */
+	private fun scheduleOffloadedResults() {
+		while (true) {
+			val result = offloadedResults.poll() ?: return
+			// Entity may have died (and its ID may have been reused) in the meantime
+			if (offloadedContinuation.get(result.entity) !== result.continuation) {
+				continue
+			}
+			offloadedContinuation.remove(result.entity)
+			schedule(0, result)
+		}
+	}
+
+	/** Advance the clock by [updateMs] and resume the brains which are due, for at most [runForMaxNanos] of real time.
+	 * Pass [Long.MAX_VALUE] to resume all of them, regardless of how long it takes. */
 	fun updateAndProcess(updateMs:Long, runForMaxNanos:Long) {
+		val stats = stats
+		previousClockMs = dispatcherClockMs
+		stats.wakeUps = 0
+		stats.lateWakeUps = 0
+		stats.maxLagMs = 0
+		stats.overBudget = false
+
 		val internalTime = dispatcherClockMs + updateMs
 		this.dispatcherClockMs = internalTime
-		val realTimeOfForcedEnd = System.nanoTime() + runForMaxNanos
+		// Compared as elapsed time, because a deadline of now + Long.MAX_VALUE would overflow into the past
+		val startNanos = System.nanoTime()
 
 		while (true) {
-			for (i in 0 until 100) {
-				if (!processOne(internalTime)) {
-					return
-				}
+			// Paths found while processing other brains can be walked in the same update
+			scheduleOffloadedResults()
+			val focusDone:Boolean
+			val backgroundDone:Boolean
+			if (brainThreads > 1) {
+				val focusBatch = processBatch(focusScheduler, internalTime, MAX_BATCH_SIZE)
+				focusDone = focusBatch < MAX_BATCH_SIZE
+				val backgroundBatchSize = if (focusDone) MAX_BATCH_SIZE else MAX_BATCH_SIZE / BACKGROUND_SHARE
+				backgroundDone = processBatch(backgroundScheduler, internalTime, backgroundBatchSize) < backgroundBatchSize
+			} else {
+				focusDone = processSome(focusScheduler, internalTime, 100)
+				backgroundDone = processSome(backgroundScheduler, internalTime, if (focusDone) 100 else 100 / BACKGROUND_SHARE)
+			}
+			if (focusDone && backgroundDone) {
+				return
 			}
 
-			val now = System.nanoTime()
-			if (now >= realTimeOfForcedEnd) {
+			if (System.nanoTime() - startNanos >= runForMaxNanos) {
+				// Remaining brains will be late
+				stats.overBudget = true
+				stats.overBudgetUpdates++
 				return
 			}
 		}
 	}
 
+	/** Process up to [count] scheduled continuations from [scheduler], one by one.
+	 * @return true if all ready continuations have been processed */
+	private fun processSome(scheduler:WakeUpScheduler, currentTime:Long, count:Int):Boolean {
+		for (i in 0 until count) {
+			if (!processOne(scheduler, currentTime)) {
+				return true
+			}
+		}
+		return false
+	}
+
 	/** Process one scheduled continuation that is ready to be run
 	 * (was scheduled to be woken up before or at [currentTime]).
 	 * @return true if there may be more entities to process */
-	private fun processOne(currentTime:Long):Boolean {
-		val heap = heap
-		val continuation:Continuation<Unit>
-		val dead:Boolean
-		synchronized(heap) {
-			val topNode = heap.peekOrNull() ?: return false
-			if (topNode.value > currentTime) {
-				return false
+	private fun processOne(scheduler:WakeUpScheduler, currentTime:Long):Boolean {
+		val continuation = pollReady(scheduler, currentTime) ?: return false
+		try {
+			continuation.resume(Unit)
+		} catch (e:Exception) {
+			logError("Intelligent", "Brain resume failed", e)
+		}
+		return true
+	}
+
+	/** Process up to [maxBatchSize] scheduled continuations from [scheduler] that are ready to be run, in parallel.
+	 * @return how many continuations have been processed */
+	private fun processBatch(scheduler:WakeUpScheduler, currentTime:Long, maxBatchSize:Int):Int {
+		val stripeGroups = stripeGroups
+		var batchSize = 0
+		while (batchSize < maxBatchSize) {
+			val continuation = pollReady(scheduler, currentTime) ?: break
+			val stripe = continuation.context[AIContext]!!.position.pos.x shr CHUNK_SIZE_SHIFT
+			var group = stripeGroups.get(stripe)
+			if (group == null) {
+				group = stripeGroupPool.obtain()!!
+				group.stripe = stripe
+				stripeGroups.put(stripe, group)
 			}
-			continuation = topNode.continuation
-			dead = topNode.entityDied
-			heap.pop()
-			ContinuationNode.POOL.free(topNode)
+			group.continuations.add(continuation)
+			batchSize++
 		}
 
-		if (dead) {
-			// Do not even call finally, just throw it away
-			return true
+		if (batchSize == 0) {
+			return 0
 		}
 
-		try {
-			continuation.resume(Unit)
-		} catch (e:Exception) {
-			Gdx.app.error("Intelligent", "Brain resume failed", e)
+		val phaseGroups = phaseGroups
+		for (phase in 0 until 2) {
+			for (group in stripeGroups.values()) {
+				if ((group.stripe and 1) == phase) {
+					phaseGroups.add(group)
+				}
+			}
+			// Apply in a stable order, regardless of which group finished first
+			phaseGroups.sort(STRIPE_ORDER)
+
+			when (phaseGroups.size) {
+				0 -> {}
+				1 -> phaseGroups[0].call()
+				else -> brainPool.invokeAll(phaseGroups.toList())
+			}
+
+			for (group in phaseGroups) {
+				group.apply(this)
+				stripeGroupPool.free(group)
+			}
+			phaseGroups.clear()
+		}
+		stripeGroups.clear()
+		return batchSize
+	}
+
+	/** Brains of a single stripe, which are resumed sequentially by a single thread in [processBatch].
+	 * Collects everything that they would do to the dispatcher or to the shared state, until [apply]. */
+	private class StripeGroup : Callable<Unit>, Pool.Poolable {
+		var stripe = 0
+		val continuations = GdxArray<Continuation<Unit>>(true, 64)
+
+		val scheduledDurations = GdxLongArray()
+		val scheduledContinuations = GdxArray<Continuation<Unit>>(true, 64)
+		val waitingEntities = GdxIntArray()
+		val waitingContinuations = GdxArray<Continuation<Unit>>(true, 16)
+		val deferredWrites = GdxArray<() -> Unit>(true, 16)
+
+		override fun call() {
+			CURRENT_GROUP.set(this)
+			try {
+				for (continuation in continuations) {
+					try {
+						continuation.resume(Unit)
+					} catch (e:Exception) {
+						logError("Intelligent", "Brain resume failed", e)
+					}
+				}
+			} finally {
+				CURRENT_GROUP.set(null)
+			}
+		}
+
+		/** Apply collected changes. Must be called on the simulation thread. */
+		fun apply(dispatcher:AICoroutineDispatcher) {
+			for (i in 0 until scheduledDurations.size) {
+				dispatcher.schedule(scheduledDurations[i], scheduledContinuations[i])
+			}
+			for (i in 0 until waitingEntities.size) {
+				dispatcher.waitingContinuation.set(waitingEntities[i], waitingContinuations[i])
+			}
+			for (write in deferredWrites) {
+				try {
+					write()
+				} catch (e:Exception) {
+					logError("Intelligent", "Deferred write failed", e)
+				}
+			}
+		}
+
+		override fun reset() {
+			continuations.clear()
+			scheduledDurations.clear()
+			scheduledContinuations.clear()
+			waitingEntities.clear()
+			waitingContinuations.clear()
+			deferredWrites.clear()
+		}
+	}
+
+	/** Resumes the [continuation] with [result] of an [offload]ed computation, when it is scheduled as a normal wake up. */
+	private class OffloadedResult<T>(
+			val entity:Int,
+			val continuation:Continuation<T>,
+			val result:Result<T>):Continuation<Unit> {
+
+		override val context: CoroutineContext
+			get() = continuation.context
+
+		override fun resumeWith(result: Result<Unit>) {
+			continuation.resumeWith(this.result)
 		}
-		return true
 	}
 
 	private class BrainContinuation(override val context:CoroutineContext):Continuation<Nothing> {
 		override fun resumeWith(result: Result<Nothing>) {
-			if (Gdx.app != null) {
-				Gdx.app.error("IntelligentS", "Brain of $context died", result.exceptionOrNull())
-			} else {
-				System.err.println("Brain of $context died")
-				result.exceptionOrNull()?.printStackTrace(System.err)
-			}
+			logError("IntelligentS", "Brain of $context died", result.exceptionOrNull())
 		}
 	}
 
@@ -210,13 +709,22 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 
 		/** The continuation to run */
 		var continuation:Continuation<Unit> = NullContinuation
-		/** Whether the entity has died while waiting */
-		var entityDied = false
+		/** Entity whose brain the [continuation] is */
+		var entity = -1
+		/** Whether this is in the focus or background scheduler */
+		var inFocus = true
+		/** When should the continuation run, set by [WakeUpScheduler.add] */
+		var resumeAt = 0L
+
+		// Doubly linked list used by TimingWheelScheduler
+		internal var list = -1
+		internal var previous:ContinuationNode? = null
+		internal var next:ContinuationNode? = null
 
 		override fun reset() {
 			// To allow the previous value to be GCed
 			continuation = NullContinuation
-			entityDied = false
+			entity = -1
 		}
 
 		object POOL : Pool<ContinuationNode>(10_000) {
@@ -233,6 +741,29 @@ class AICoroutineDispatcher : ContinuationInterceptor, Delay, CoroutineScope {
 			throw UnsupportedOperationException("NullContinuation")
 		}
 	}
+
+	private companion object {
+		/** Where [offload]ed computations run. */
+		val OFFLOAD_POOL:Executor = ForkJoinPool.commonPool()
+
+		/** How many continuations are resumed in parallel at most, before checking the time limit */
+		const val MAX_BATCH_SIZE = 4096
+
+		/** When there is not enough time, background brains get 1/[BACKGROUND_SHARE] of what focused brains get */
+		const val BACKGROUND_SHARE = 4
+		/** Agents this far outside of a focus area are still in focus, as they may walk into it */
+		const val FOCUS_MARGIN = CHUNK_SIZE
+
+		/** [StripeGroup] whose brains the current thread is running, if any */
+		val CURRENT_GROUP = ThreadLocal<StripeGroup?>()
+
+		val STRIPE_ORDER = Comparator<StripeGroup> { a, b -> a.stripe.compareTo(b.stripe) }
+
+		init {
+			// Brains in stripes of the same parity must not see each other
+			assert(CHUNK_SIZE > AGENT_VISIBILITY_DISTANCE)
+		}
+	}
 }
 
 /** Reference to the world for an entity.
@@ -251,7 +782,12 @@ class AIWorld(
 		@JvmField
 		val pathFinder:PathFinder,
 		@JvmField
-		val livingAgentSpatialLookup:SpatialLookupService)
+		val livingAgentSpatialLookup:SpatialLookupService,
+		/** All of them, to notify when an agent is [teleported][AIContext.teleport] */
+		@JvmField
+		val spatialLookupServices:List<SpatialLookupService>,
+		@JvmField
+		val simulationRandom:SimulationRandom)
 
 class AIContext(
 		/** Own entity ID */
@@ -265,6 +801,17 @@ class AIContext(
 	val agent: AgentC = aiWorld.agentMapper[entity]!!
 	@JvmField
 	val position: PositionC = aiWorld.positionMapper[entity]!!
+	/** For looking around in the world. */
+	@JvmField
+	val worldCursor: WorldCursor = WorldCursor(aiWorld.world)
+	/** For all random decisions of the brain, so that they do not depend on other brains */
+	@JvmField
+	val random: StreamRandom = aiWorld.simulationRandom.stream(SimulationRandom.BRAINS, entity.toLong())
+	/** What is the coroutine brain in the middle of, kept by the AI functions, so that a restored brain can finish it */
+	@JvmField
+	var goal: BrainGoal = BrainGoal.NONE
+	/** Where does the [goal] lead, if anywhere */
+	var goalTarget: Vec2 = Vec2.NULL
 
 	// Convenience accessors
 	val speech: AgentSpeechC?
@@ -286,6 +833,32 @@ class AIContext(
 	val livingAgentSpatialLookup:SpatialLookupService
 		get() = aiWorld.livingAgentSpatialLookup
 
+	/** Whether the agent is observed and should be simulated in full detail.
+	 * @see AICoroutineDispatcher.isObserved */
+	fun isObserved():Boolean {
+		return aiWorld.dispatcher.isObserved(position.pos)
+	}
+
+	/** Move instantly to [to], without walking through the tiles in between.
+	 * Only for agents which are not [observed][isObserved] and which are not moving.
+	 *
+	 * Like when walking, the own position changes right away, so that the brain can continue from [to].
+	 * Only the spatial lookups, which other brains see, are updated through [deferWrite]. */
+	fun teleport(to:Vec2) {
+		val position = position
+		assert(position.movement == Direction.NONE)
+		val oldChunkKey = position.pos.chunkKey
+		position.pos = to
+		position.progress = 0f
+		if (oldChunkKey != to.chunkKey) {
+			deferWrite {
+				for (service in aiWorld.spatialLookupServices) {
+					service.onEntityMovedAcrossChunks(entity)
+				}
+			}
+		}
+	}
+
 	/** Do some [activity] until notified externally.
 	 * Throws when interrupted. */
 	suspend fun wait(activity:AgentActivity) {
@@ -298,6 +871,25 @@ class AIContext(
 		}
 	}
 
+	/** Do some [activity] while [task] runs on another thread, then return its result.
+	 * [task] must only read thread safe state, for example through [pathFinder].
+	 * Throws when interrupted or when [task] throws. */
+	suspend fun <T> offload(activity:AgentActivity, task:() -> T):T {
+		val previousActivity = agent.activity
+		agent.activity = activity
+		try {
+			return aiWorld.dispatcher.offload(task)
+		} finally {
+			agent.activity = previousActivity
+		}
+	}
+
+	/** Run [write] once it is safe to modify state shared with other brains.
+	 * @see AICoroutineDispatcher.deferWrite */
+	fun deferWrite(write:() -> Unit) {
+		aiWorld.dispatcher.deferWrite(write)
+	}
+
 	/** Do some [activity] for given amount of time ([durationMs]).
 	 * Throws when interrupted. */
 	suspend fun delay(activity:AgentActivity, durationMs:Long) {
@@ -1,6 +1,9 @@
 package com.darkyen.worldSim.ecs
 
 import com.darkyen.worldSim.TileType
+import com.darkyen.worldSim.ai.FlowField
+import com.darkyen.worldSim.ai.FlowFieldCache
+import com.darkyen.worldSim.ai.HierarchicalPathFinder
 import com.darkyen.worldSim.ai.WorldPathFinder
 import com.darkyen.worldSim.util.DIRECTION_VECTORS
 import com.darkyen.worldSim.util.Vec2
@@ -8,9 +11,12 @@ import com.github.antag99.retinazer.EngineService
 import com.github.antag99.retinazer.Wire
 
 /**
- *
+ * Path finding for brains.
+ * Searches are limited in time, unless [deterministic], when they are limited by the amount of expanded nodes
+ * and flow fields are not used, because which destinations are popular enough for them depends on the order in which parallel brains ask.
  */
-class PathFinder : EngineService {
+class PathFinder(
+		private val deterministic:Boolean = false) : EngineService {
 
 	@Wire
 	private lateinit var world:World
@@ -19,6 +25,16 @@ class PathFinder : EngineService {
 		WorldPathFinder(world)
 	}
 
+	private val flowFields:FlowFieldCache by lazy {
+		FlowFieldCache(world) { field ->
+			countSearch(field.expandedNodes > 0, false, field.expandedNodes)
+		}
+	}
+
+	private val hierarchicalPathFinder:ThreadLocal<HierarchicalPathFinder> = ThreadLocal.withInitial {
+		HierarchicalPathFinder(world)
+	}
+
 	/**
 	 * Find path between two points.
 	 * Thread safe.
@@ -30,10 +46,15 @@ class PathFinder : EngineService {
 		}
 
 		val pathFinder = pathFinder.get()
-		return pathFinder.findPathInTimeLimit(from, to, longArrayOf(to.packed), 1_000_000 /* 1 ms */)
+		val path = findPath(pathFinder, from, to, longArrayOf(to.packed))
+		countSearch(path != null, pathFinder.timedOut, pathFinder.expandedNodes)
+		return path
 	}
 
-	/** Find a path from [from] to any tile near [toNear]. */
+	/**
+	 * Find a path from [from] to any tile near [toNear].
+	 * Thread safe.
+	 */
 	fun findPathNear(from:Vec2, toNear:Vec2): WorldPathFinder.Path? {
 		val nearbyPositions = LongArray(4) { (toNear + Vec2(DIRECTION_VECTORS[it])).packed }
 
@@ -43,6 +64,57 @@ class PathFinder : EngineService {
 		}
 
 		val pathFinder = pathFinder.get()
-		return pathFinder.findPathInTimeLimit(from, toNear, nearbyPositions, 1_000_000 /* 1 ms */)
+		val path = findPath(pathFinder, from, toNear, nearbyPositions)
+		countSearch(path != null, pathFinder.timedOut, pathFinder.expandedNodes)
+		return path
+	}
+
+	private fun findPath(pathFinder:WorldPathFinder, from:Vec2, to:Vec2, endPositions:LongArray):WorldPathFinder.Path? {
+		return if (deterministic) {
+			pathFinder.findPathWithMaxNodes(from, to, endPositions, DETERMINISTIC_MAX_EXPANDED_NODES)
+		} else {
+			pathFinder.findPathInTimeLimit(from, to, endPositions, 1_000_000 /* 1 ms */)
+		}
+	}
+
+	/** Add a search, which expanded [expandedNodes] and either [found] a path, [timedOut] or found out that there is none, to [SimulationMetrics]. */
+	private fun countSearch(found:Boolean, timedOut:Boolean, expandedNodes:Int) {
+		when {
+			found -> SimulationMetrics.pathsFound.increment()
+			timedOut -> SimulationMetrics.pathSearchTimeouts.increment()
+			else -> SimulationMetrics.pathsNotFound.increment()
+		}
+		SimulationMetrics.pathNodesExpanded.add(expandedNodes.toLong())
+	}
+
+	/**
+	 * Find waypoints on a long path from [from] to [to] (or only near it).
+	 * Path between two consecutive waypoints can then be found with [findPath] quickly.
+	 * Thread safe.
+	 * @see HierarchicalPathFinder.findWaypoints
+	 */
+	fun findWaypoints(from:Vec2, to:Vec2, onlyNear:Boolean): WorldPathFinder.Path? {
+		val pathFinder = hierarchicalPathFinder.get()
+		val waypoints = pathFinder.findWaypoints(from, to, onlyNear)
+		countSearch(waypoints != null, pathFinder.timedOut, pathFinder.expandedNodes)
+		return waypoints
+	}
+
+	/**
+	 * Get a flow field to [to] (or only near it), if it is a popular destination.
+	 * Always null when [deterministic].
+	 * Thread safe.
+	 * @see FlowFieldCache.get
+	 */
+	fun findFlowField(to:Vec2, onlyNear:Boolean): FlowField? {
+		if (deterministic) {
+			return null
+		}
+		return flowFields.get(to, onlyNear)
+	}
+
+	private companion object {
+		/** About as many nodes as a search expands in the 1 ms limit of non-deterministic searches */
+		const val DETERMINISTIC_MAX_EXPANDED_NODES = 20_000
 	}
 }
\ No newline at end of file
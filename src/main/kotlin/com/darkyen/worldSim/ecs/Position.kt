@@ -4,6 +4,7 @@ import com.badlogic.gdx.math.Vector2
 import com.darkyen.worldSim.SimulationSpeedRegulator
 import com.darkyen.worldSim.util.Direction
 import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Component
 import com.github.antag99.retinazer.Mapper
 import com.github.antag99.retinazer.Wire
@@ -29,6 +30,13 @@ class PositionC : Component {
 	fun getPosition(to: Vector2): Vector2 {
 		return to.set(pos.x + movement.deltaX * progress, pos.y + movement.deltaY * progress)
 	}
+
+	/** Position where the entity will be in [aheadSeconds], if it continues its [movement], but at most at its target tile.
+	 * Used to draw it smoothly between simulation steps. */
+	fun getPosition(to: Vector2, aheadSeconds: Float): Vector2 {
+		val progress = min(progress + aheadSeconds * speed, 1f)
+		return to.set(pos.x + movement.deltaX * progress, pos.y + movement.deltaY * progress)
+	}
 }
 
 /** Position system. Moves [PositionC]omponents and updates [SpatialLookupService]s. */
@@ -44,6 +52,12 @@ class PositionS : EntityProcessorSystem(COMPONENT_DOMAIN.familyWith(PositionC::c
 	@Wire
 	private lateinit var spatialLookupServices : java.util.List<SpatialLookupService>
 
+	override fun update() {
+		SimulationMetrics.positionS.time {
+			super.update()
+		}
+	}
+
 	override fun process(entity: Int) {
 		val delta = simulationClock.simulationDelta
 		val position = positionMapper[entity]!!
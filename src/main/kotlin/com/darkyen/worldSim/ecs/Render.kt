@@ -4,22 +4,31 @@ import com.badlogic.gdx.Gdx
 import com.badlogic.gdx.Input
 import com.badlogic.gdx.graphics.Color
 import com.badlogic.gdx.graphics.g2d.Batch
+import com.badlogic.gdx.graphics.g2d.TextureAtlas
+import com.badlogic.gdx.graphics.g2d.TextureRegion
 import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Rectangle
 import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.scenes.scene2d.ui.Label
 import com.badlogic.gdx.scenes.scene2d.ui.Table
 import com.badlogic.gdx.utils.Align
+import com.badlogic.gdx.utils.ObjectMap
 import com.darkyen.worldSim.RenderService
 import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.Sprite
 import com.darkyen.worldSim.WorldSim
 import com.darkyen.worldSim.WorldSimGame
 import com.darkyen.worldSim.input.GameInput
+import com.darkyen.worldSim.util.Direction
 import com.darkyen.worldSim.util.WHITE_BITS
 import com.darkyen.worldSim.util.render
 import com.darkyen.worldSim.util.renderTile
 import com.darkyen.worldSim.util.GrapherPane
 import com.darkyen.worldSim.util.GrapherPane.GraphData
+import com.darkyen.worldSim.util.Metric
+import com.darkyen.worldSim.util.MetricUnit
+import com.darkyen.worldSim.util.MetricsReporter
+import com.darkyen.worldSim.util.MetricsSampler
 import com.darkyen.worldSim.util.Text
 import com.darkyen.worldSim.util.Vec2
 import com.github.antag99.retinazer.Component
@@ -32,6 +41,62 @@ class RenderC : Component {
 	var sprite:Int = 0
 }
 
+/** Get sprite for tile at given position. */
+fun WorldCursor.getTileSprite(pos: Vec2): TextureRegion {
+	val baseTile = getTile(pos)
+	when (val baseSprite = baseTile.sprite) {
+		is Sprite.Simple -> {
+			val variants = baseSprite.variants
+			if (variants.isEmpty()) {
+				return WorldSim.sprites[0]
+			}
+			return WorldSim.sprites[variants[pos.packed.hashCode() % variants.size]]
+		}
+		is Sprite.Connecting -> {
+			val topTile = getTile(pos + Vec2.UP)
+			val rightTile = getTile(pos + Vec2.RIGHT)
+			val leftTile = getTile(pos + Vec2.LEFT)
+			val downTile = getTile(pos + Vec2.DOWN)
+
+			val topConnect = if (topTile === baseTile) 1 else 0
+			val rightConnect = if (rightTile === baseTile) 2 else 0
+			val leftConnect = if (leftTile === baseTile) 4 else 0
+			val downConnect = if (downTile === baseTile) 8 else 0
+
+			val index = topConnect + rightConnect + leftConnect + downConnect
+			return WorldSim.sprites[baseSprite.connections[index]]
+		}
+	}
+}
+
+/** Get sprite for tile feature of the tile at [pos]. */
+fun WorldCursor.getFeatureSprite(pos: Vec2): TextureAtlas.AtlasRegion? {
+	val baseF = getFeature(pos) ?: return null
+	when (val baseSprite = baseF.sprite) {
+		is Sprite.Simple -> {
+			val variants = baseSprite.variants
+			if (variants.isEmpty()) {
+				return null
+			}
+			return WorldSim.sprites[variants[pos.packed.hashCode() % variants.size]]
+		}
+		is Sprite.Connecting -> {
+			val topF = getFeature(pos + Vec2.UP)
+			val rightF = getFeature(pos + Vec2.RIGHT)
+			val leftF = getFeature(pos + Vec2.LEFT)
+			val downF = getFeature(pos + Vec2.DOWN)
+
+			val topConnect = if (topF != null && topF.connectsTo(baseF, Direction.DOWN)) 1 else 0
+			val rightConnect = if (rightF != null && rightF.connectsTo(baseF, Direction.LEFT)) 2 else 0
+			val leftConnect = if (leftF != null && leftF.connectsTo(baseF, Direction.RIGHT)) 4 else 0
+			val downConnect = if (downF != null && downF.connectsTo(baseF, Direction.UP)) 8 else 0
+
+			val index = topConnect + rightConnect + leftConnect + downConnect
+			return WorldSim.sprites[baseSprite.connections[index]]
+		}
+	}
+}
+
 private val RENDER_FAMILY = COMPONENT_DOMAIN.familyWith(PositionC::class.java, RenderC::class.java)
 
 class RenderSpatialLookup : SpatialLookupService(RENDER_FAMILY)
@@ -47,6 +112,7 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 
 	@Wire
 	private lateinit var world: World
+	private val worldCursor: WorldCursor by lazy { WorldCursor(world) }
 	@Wire
 	private lateinit var simulationClock : SimulationSpeedRegulator
 	@Wire
@@ -59,9 +125,14 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 	private lateinit var camera: CameraService
 	@Wire
 	private lateinit var renderSpatialLookup: RenderSpatialLookup
+	@Wire
+	private lateinit var intelligentS: IntelligentS
 
 	companion object {
 		private const val OVERLAP = 5f
+
+		private val METRIC_COLORS = arrayOf(Color.RED, Color.GREEN, Color.YELLOW, Color.CYAN, Color.MAGENTA,
+				Color.ORANGE, Color.WHITE, Color.SKY, Color.LIME, Color.PINK)
 	}
 
 	private val tmp1 = Vector2()
@@ -70,6 +141,8 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 	private val frustum = Rectangle()
 
 	override fun renderUpdate(delta: Float) {
+		// Sampled even when not shown, so that the graphs do not start with everything since they were hidden
+		metricsSampler.sample()
 		if (debugDrawEnabled) {
 			updateDebugDrawing()
 		}
@@ -87,13 +160,15 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 		start.add(-OVERLAP, -OVERLAP)
 		end.add(OVERLAP, OVERLAP)
 		val frustum = frustum.set(start.x, start.y, end.x - start.x, end.y - start.y)
-		draw(batch, Vec2(MathUtils.floor(start.x), MathUtils.floor(start.y)), Vec2(MathUtils.ceil(end.x), MathUtils.ceil(end.y)), frustum)
+		draw(batch, Vec2(MathUtils.floor(start.x), MathUtils.floor(start.y)), Vec2(MathUtils.ceil(end.x), MathUtils.ceil(end.y)), frustum,
+				simulationClock.interpolationSeconds)
 
 		batch.end()
 	}
 
-	private fun draw(b: Batch, low:Vec2, high:Vec2, frustum: Rectangle) {
-		val world = world
+	/** @param aheadSeconds how far to move the entities along their movement, see [SimulationSpeedRegulator.interpolationSeconds] */
+	private fun draw(b: Batch, low:Vec2, high:Vec2, frustum: Rectangle, aheadSeconds:Float) {
+		val world = worldCursor
 
 		//Draw tiles & features
 		for (y in high.y downTo low.y) {
@@ -110,7 +185,7 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 		// Draw entities
 		renderSpatialLookup.forEntitiesInChunksSpanningRectangle(low, high) { entity ->
 			val position = position[entity]!!
-			val pos = position.getPosition(posTmp)
+			val pos = position.getPosition(posTmp, aheadSeconds)
 			if (!frustum.contains(pos)) return@forEntitiesInChunksSpanningRectangle //Frustum culling
 			val sprite = WorldSim.sprites[render[entity]!!.sprite]
 
@@ -142,6 +217,24 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 		graphs.add(entityCount)
 	}
 
+	/** Time spent by the timed parts of the simulation in each frame, see [SimulationMetrics] */
+	private val metricTimePane = GrapherPane()
+	/** Counts of events of the simulation in each frame, see [SimulationMetrics] */
+	private val metricEventPane = GrapherPane()
+	private val metricGraphs = ObjectMap<Metric, GraphData>()
+	private val metricsSampler = MetricsSampler(METRICS, object : MetricsReporter {
+		override fun report(metric: Metric, change: Long) {
+			var graph = metricGraphs.get(metric)
+			if (graph == null) {
+				val pane = if (metric.unit == MetricUnit.NANOSECONDS) metricTimePane else metricEventPane
+				graph = GraphData(256, METRIC_COLORS[pane.graphs.size % METRIC_COLORS.size], 0f, 1f, true, metric.name)
+				pane.graphs.add(graph)
+				metricGraphs.put(metric, graph)
+			}
+			graph.addDataPoint((change * metric.unit.scale).toFloat())
+		}
+	})
+
 	private val debugTextLabel = Label("", Label.LabelStyle(WorldSim.debugFont, Color.WHITE))
 
 	private fun updateDebugDrawing() {
@@ -156,6 +249,11 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 		text.clear()
 		text.append("X: ").append(cursorPos.x, 2).append(" Y: ").append(cursorPos.y, 2)
 		text.append("\nFPS: ").append(Gdx.graphics.framesPerSecond).append('\n').append("Speed: ").append(simulationClock.multiplier, 0)
+				.append(" (achieved ").append(simulationClock.achievedMultiplier, 1).append(')')
+		val schedulingStats = intelligentS.schedulingStats
+		if (schedulingStats.lateWakeUps > 0) {
+			text.append("\nBrains late: ").append(schedulingStats.lateWakeUps).append(" by up to ").append(schedulingStats.maxLagMs.toInt()).append(" ms")
+		}
 		debugTextLabel.setText(text)
 	}
 
@@ -164,7 +262,12 @@ class RenderS : EntitySystem(RENDER_FAMILY), RenderService, WorldSimGame.UILayer
 		pad(10f).align(Align.top)
 		add(debugTextLabel).align(Align.topLeft)
 		add().expandX()
-		add(grapherPane).minSize(200f, 100f).padRight(50f).align(Align.topRight)
+		add(Table().apply {
+			defaults().minSize(200f, 100f).padRight(150f).padBottom(10f)
+			add(grapherPane).row()
+			add(metricTimePane).row()
+			add(metricEventPane)
+		}).align(Align.topRight)
 
 		isVisible = debugDrawEnabled
 	}
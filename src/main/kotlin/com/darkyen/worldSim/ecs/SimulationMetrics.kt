@@ -0,0 +1,47 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.util.MetricsRegistry
+
+/** Metrics of all simulations in this process, see [SimulationMetrics]. */
+val METRICS = MetricsRegistry()
+
+/**
+ * What the simulation services measure about themselves, so that regressions can be found in long runs without a profiler.
+ * Timers of services contain only their own update, the rest of [tick] is spent by services without a timer and by the engine itself.
+ * [spatialLookups] is the time spent maintaining all [SpatialLookupService]s, which partly happens in [PositionS],
+ * so it overlaps with its timer.
+ */
+object SimulationMetrics {
+	/** Whole engine updates */
+	val tick = METRICS.timer("Tick")
+	val decayS = METRICS.timer("DecayS")
+	val world = METRICS.timer("World")
+	val chunkPregenerator = METRICS.timer("ChunkPregenerator")
+	val agentNeedS = METRICS.timer("AgentNeedS")
+	val agentS = METRICS.timer("AgentS")
+	val intelligentS = METRICS.timer("IntelligentS")
+	val positionS = METRICS.timer("PositionS")
+	val spatialLookups = METRICS.timer("Spatial lookups")
+
+	/** How many engine updates were there */
+	val ticks = METRICS.metric("Ticks")
+	/** Simulated milliseconds which were skipped, because the simulation could not keep up with the requested speed */
+	val droppedSimulationMs = METRICS.metric("Dropped simulation ms")
+	/** Brains woken up by [AICoroutineDispatcher] */
+	val brainResumes = METRICS.metric("Brain resumes")
+	/** Brains woken up later than they should have been, see [BrainSchedulingStats] */
+	val lateBrainResumes = METRICS.metric("Late brain resumes")
+	/** Searches of [PathFinder.findPath], [PathFinder.findPathNear] and [PathFinder.findWaypoints] which found a path,
+	 * and flow fields built for [PathFinder.findFlowField] which reach their destination from somewhere */
+	val pathsFound = METRICS.metric("Paths found")
+	/** Searches counted like [pathsFound], which have shown that there is no path */
+	val pathsNotFound = METRICS.metric("Paths not found")
+	/** Searches counted like [pathsFound], which ran out of their budget before finding a path */
+	val pathSearchTimeouts = METRICS.metric("Path search timeouts")
+	/** Nodes expanded by all of the path searches, including portals of waypoint searches and tiles of flow fields */
+	val pathNodesExpanded = METRICS.metric("Path nodes expanded")
+	/** Chunks generated by [WorldGenerator]s, in any thread */
+	val chunkGenerations = METRICS.metric("Chunk generations")
+	/** Chunks loaded from [ChunkStorage] */
+	val chunkLoads = METRICS.metric("Chunk loads")
+}
@@ -3,6 +3,7 @@ package com.darkyen.worldSim.ecs
 import com.badlogic.gdx.utils.LongMap
 import com.darkyen.worldSim.util.Vec2
 import com.darkyen.worldSim.util.forEach
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.EntitySet
 import com.github.antag99.retinazer.Family
 import com.github.antag99.retinazer.Mapper
@@ -31,12 +32,32 @@ abstract class SpatialLookupService(family: Family) : FamilyWatcherSystem.Single
 	val chunks = LongMap<EntitySet>()
 	private val entityChunkSets = Bag<EntitySet?>()
 
+	/** How many entities of the family there are */
+	var entityCount = 0
+		private set
+
 	fun onEntityMovedAcrossChunks(entity:Int) {
-		removedEntity(entity)
-		insertedEntity(entity)
+		SimulationMetrics.spatialLookups.time {
+			removeFromChunk(entity)
+			addToChunk(entity)
+		}
 	}
 
 	override fun insertedEntity(entity: Int) {
+		entityCount++
+		SimulationMetrics.spatialLookups.time {
+			addToChunk(entity)
+		}
+	}
+
+	override fun removedEntity(entity: Int) {
+		entityCount--
+		SimulationMetrics.spatialLookups.time {
+			removeFromChunk(entity)
+		}
+	}
+
+	private fun addToChunk(entity: Int) {
 		val position = positionC[entity] ?: return
 		val pos = position.pos
 		val chunkKey = pos.chunkKey
@@ -50,10 +71,18 @@ abstract class SpatialLookupService(family: Family) : FamilyWatcherSystem.Single
 		entityChunkSets.set(entity, chunkSet)
 	}
 
-	override fun removedEntity(entity: Int) {
+	private fun removeFromChunk(entity: Int) {
 		entityChunkSets.remove(entity)?.removeEntity(entity)
 	}
 
+	/** Forget the set of [chunkKey], if it has no entities, to free memory when the chunk is unloaded. */
+	fun trimChunk(chunkKey:Long) {
+		val chunkSet = chunks.get(chunkKey) ?: return
+		if (chunkSet.size() == 0) {
+			chunks.remove(chunkKey)
+		}
+	}
+
 	inline fun forEntitiesInChunksSpanningRectangle(low:Vec2, high: Vec2, action:(entity:Int) -> Unit) {
 		val entities = entities
 		for (chunkY in high.chunkY downTo low.chunkY) {
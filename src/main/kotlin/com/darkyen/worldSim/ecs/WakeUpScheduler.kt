@@ -0,0 +1,211 @@
+package com.darkyen.worldSim.ecs
+
+import com.badlogic.gdx.utils.LongBinaryHeap
+import com.darkyen.worldSim.ecs.AICoroutineDispatcher.ContinuationNode
+
+/**
+ * Keeps [ContinuationNode]s of sleeping brains until their wake up time.
+ * Not thread safe.
+ */
+interface WakeUpScheduler {
+	/** Amount of nodes in the scheduler */
+	val size:Int
+
+	/** Add [node], which is not in any scheduler, to be woken up at [resumeAt]. */
+	fun add(node:ContinuationNode, resumeAt:Long)
+
+	/** Remove [node], which is in this scheduler, before it wakes up. */
+	fun remove(node:ContinuationNode)
+
+	/** Remove and return any node that should wake up at or before [currentTime].
+	 * [currentTime] must never decrease between calls.
+	 * @return null if there is no such node */
+	fun pollReady(currentTime:Long):ContinuationNode?
+}
+
+/** [WakeUpScheduler] backed by a binary heap. O(log n) add, remove and poll, nodes with the same wake up time come in no particular order. */
+class HeapWakeUpScheduler : WakeUpScheduler {
+
+	private val heap = LongBinaryHeap<ContinuationNode>(10_000, false)
+
+	override val size: Int
+		get() = heap.size
+
+	override fun add(node: ContinuationNode, resumeAt: Long) {
+		node.resumeAt = resumeAt
+		heap.add(node, resumeAt)
+	}
+
+	override fun remove(node: ContinuationNode) {
+		heap.remove(node)
+	}
+
+	override fun pollReady(currentTime: Long): ContinuationNode? {
+		val heap = heap
+		val top = heap.peekOrNull() ?: return null
+		if (top.value > currentTime) {
+			return null
+		}
+		return heap.pop()
+	}
+}
+
+/**
+ * [WakeUpScheduler] backed by a hierarchical timing wheel with millisecond ticks.
+ * O(1) add, remove and poll, each node is moved to a finer level at most [LEVELS] times before it is ready.
+ * Nodes that are ready at the same time come in the order in which they were added.
+ *
+ * Level `L` has [SLOTS] slots, each spanning `SLOTS^L` ms.
+ * A node is stored in the lowest level where its wake up time shares the slot of the higher levels with the current time,
+ * and when the current time enters its slot, it is moved (cascaded) to a lower level, until it ends up in the ready list.
+ */
+class TimingWheelScheduler(
+		/** Time which all subsequent [pollReady] calls will be at or after */
+		startTime:Long = 0L) : WakeUpScheduler {
+
+	/** All slots up to this time have been moved to the ready list */
+	private var currentTime = startTime
+
+	/** Doubly linked lists of nodes, one for each slot, then [READY] and [OVERFLOW] lists */
+	private val listHeads = arrayOfNulls<ContinuationNode>(LIST_COUNT)
+	private val listTails = arrayOfNulls<ContinuationNode>(LIST_COUNT)
+	/** How many nodes are in each level, to skip over empty stretches of time */
+	private val levelSizes = IntArray(LEVELS)
+
+	override var size: Int = 0
+		private set
+
+	override fun add(node: ContinuationNode, resumeAt: Long) {
+		node.resumeAt = resumeAt
+		size++
+		insert(node)
+	}
+
+	override fun remove(node: ContinuationNode) {
+		unlink(node)
+		size--
+	}
+
+	private fun insert(node:ContinuationNode) {
+		val resumeAt = node.resumeAt
+		if (resumeAt <= currentTime) {
+			append(READY, node)
+			return
+		}
+
+		// Level is given by the highest bit in which the wake up time differs from the current time
+		val level = (63 - java.lang.Long.numberOfLeadingZeros(resumeAt xor currentTime)) / SLOT_BITS
+		if (level >= LEVELS) {
+			append(OVERFLOW, node)
+			return
+		}
+
+		levelSizes[level]++
+		append(slotIndex(level, resumeAt), node)
+	}
+
+	private fun append(list:Int, node:ContinuationNode) {
+		val tail = listTails[list]
+		node.list = list
+		node.previous = tail
+		node.next = null
+		if (tail == null) listHeads[list] = node else tail.next = node
+		listTails[list] = node
+	}
+
+	private fun unlink(node:ContinuationNode) {
+		val list = node.list
+		val previous = node.previous
+		val next = node.next
+		if (previous == null) listHeads[list] = next else previous.next = next
+		if (next == null) listTails[list] = previous else next.previous = previous
+		if (list < READY) {
+			levelSizes[list / SLOTS]--
+		}
+		node.list = -1
+		node.previous = null
+		node.next = null
+	}
+
+	/** Move the time forward to [time], moving all nodes that become ready to the ready list. */
+	private fun advanceTo(time:Long) {
+		while (currentTime < time) {
+			// Nothing happens until the next slot of the finest non-empty level starts, skip there
+			var lowestLevel = 0
+			while (lowestLevel < LEVELS && levelSizes[lowestLevel] == 0) {
+				lowestLevel++
+			}
+			if (lowestLevel == LEVELS && listHeads[OVERFLOW] == null) {
+				currentTime = time
+				return
+			}
+			if (lowestLevel > 0) {
+				val slotSpanMask = (1L shl (lowestLevel * SLOT_BITS)) - 1
+				val nextSlotStart = (currentTime or slotSpanMask) + 1
+				if (nextSlotStart > time) {
+					currentTime = time
+					return
+				}
+				currentTime = nextSlotStart - 1
+			}
+
+			val t = currentTime + 1
+			currentTime = t
+
+			// Coarser slots start only when all finer bits are zero, cascade from the coarsest,
+			// so that nodes can fall through multiple levels in one tick
+			if ((t and ((1L shl (LEVELS * SLOT_BITS)) - 1)) == 0L) {
+				cascade(OVERFLOW)
+			}
+
+			for (level in LEVELS - 1 downTo 0) {
+				if ((t and ((1L shl (level * SLOT_BITS)) - 1)) == 0L) {
+					cascade(slotIndex(level, t))
+				}
+			}
+		}
+	}
+
+	/** Re-insert all nodes of given list. Because the current time has entered the slot, they end up on a lower level or ready.
+	 * (Except for [OVERFLOW] nodes, which may still be too far.) */
+	private fun cascade(list:Int) {
+		var node = listHeads[list]
+		listHeads[list] = null
+		listTails[list] = null
+		while (node != null) {
+			val next = node.next
+			if (list < READY) {
+				levelSizes[list / SLOTS]--
+			}
+			insert(node)
+			node = next
+		}
+	}
+
+	override fun pollReady(currentTime: Long): ContinuationNode? {
+		if (currentTime > this.currentTime) {
+			advanceTo(currentTime)
+		}
+
+		val node = listHeads[READY] ?: return null
+		unlink(node)
+		size--
+		return node
+	}
+
+	private companion object {
+		const val SLOT_BITS = 6
+		const val SLOTS = 1 shl SLOT_BITS
+		const val SLOT_MASK = SLOTS - 1
+		/** 6 levels of 64 slots cover over two years in milliseconds, longer delays go to the overflow list */
+		const val LEVELS = 6
+
+		const val READY = LEVELS * SLOTS
+		const val OVERFLOW = READY + 1
+		const val LIST_COUNT = OVERFLOW + 1
+
+		fun slotIndex(level:Int, time:Long):Int {
+			return level * SLOTS + ((time ushr (level * SLOT_BITS)).toInt() and SLOT_MASK)
+		}
+	}
+}
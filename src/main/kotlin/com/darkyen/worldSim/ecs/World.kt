@@ -1,21 +1,27 @@
 package com.darkyen.worldSim.ecs
 
-import com.badlogic.gdx.graphics.g2d.TextureAtlas
-import com.badlogic.gdx.graphics.g2d.TextureRegion
+import com.badlogic.gdx.utils.IntIntMap
 import com.badlogic.gdx.utils.LongMap
+import com.darkyen.worldSim.FEATURES
 import com.darkyen.worldSim.Feature
 import com.darkyen.worldSim.FeatureAspect
 import com.darkyen.worldSim.ITEMS
 import com.darkyen.worldSim.Item
-import com.darkyen.worldSim.Sprite
+import com.darkyen.worldSim.TILES
 import com.darkyen.worldSim.Tile
-import com.darkyen.worldSim.WorldSim
-import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.TileType
 import com.darkyen.worldSim.util.GdxLongArray
 import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.logError
+import com.darkyen.worldSim.util.time
 import com.github.antag99.retinazer.Engine
 import com.github.antag99.retinazer.EngineService
 import com.github.antag99.retinazer.Wire
+import java.io.DataInput
+import java.io.DataOutput
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
 
 const val CHUNK_SIZE_SHIFT = 5
 const val CHUNK_SIZE = 1 shl CHUNK_SIZE_SHIFT
@@ -23,10 +29,10 @@ private const val CHUNK_AREA = CHUNK_SIZE * CHUNK_SIZE
 private const val CHUNK_SIZE_MASK = CHUNK_SIZE - 1
 private const val CHUNK_KEY_MASK:Long = ((CHUNK_SIZE_MASK.toLong()) or (CHUNK_SIZE_MASK.toLong() shl 32)).inv()
 
-const val WORLD_SIZE_SHIFT = 9
-const val WORLD_SIZE = 1 shl WORLD_SIZE_SHIFT
-const val WORLD_SIZE_MASK = WORLD_SIZE - 1
-private const val WORLD_SIZE_RANGE_CHECK_MASK:Long = (WORLD_SIZE_MASK.toLong()) or (WORLD_SIZE_MASK.toLong() shl 32)
+/** Default [World.size] */
+const val DEFAULT_WORLD_SIZE = 512
+/** Largest supported [World.size]. The [ChunkDirectory] of such world starts with a region table of about 16 MB. */
+const val MAX_WORLD_SIZE = 1 shl 20
 
 val Vec2.chunkKey:Long
 	get() = packed and CHUNK_KEY_MASK
@@ -59,20 +65,57 @@ fun Vec2.atTile(tileKey:Int):Vec2 {
 	return Vec2((this.packed and CHUNK_KEY_MASK) or tileCoord.packed)
 }
 
+/** Movement speed multiplier for moving from a tile with given [feature]. */
+fun movementSpeedMultiplier(feature:Feature?):Float {
+	val aspects = (feature ?: return 1f).aspects
+	when {
+		FeatureAspect.WALK_FASTER in aspects -> return 1.3f
+		FeatureAspect.WALK_SLOWER in aspects -> return 0.75f
+		FeatureAspect.WALK_MUCH_SLOWER in aspects -> return 0.5f
+	}
+	return 1f
+}
+
 /**
  *
  */
 class World(
 		/** Used to generate new chunks */
 		private val generator: WorldGenerator,
-		private val populator: ChunkPopulator
+		private val populator: ChunkPopulator,
+		/** Length of a side of the square world, in tiles. Multiple of [CHUNK_SIZE]. */
+		val size:Int = DEFAULT_WORLD_SIZE,
+		/** Chunks which are not loaded, see [unloadUnwantedChunks]. May come from a [WorldSnapshot]. */
+		val storage:ChunkStorage = ChunkStorage()
 ) : EngineService {
 
+	init {
+		require(size in CHUNK_SIZE..MAX_WORLD_SIZE && size % CHUNK_SIZE == 0) { "Invalid world size: $size" }
+	}
+
+	/** How many chunks there are along one side of the world */
+	val sizeInChunks = size shr CHUNK_SIZE_SHIFT
+
 	@Wire
 	private lateinit var engine: Engine
 
-	private val chunks = LongMap<Chunk>()
+	private val chunks = ChunkDirectory(sizeInChunks)
+	/** Chunks which were generated, but not populated yet. Guarded by its own monitor. */
 	private val chunksToPopulate = GdxLongArray()
+	/** Chunks which were generated or loaded, but are not in [residentChunks] yet. Guarded by its own monitor. */
+	private val chunksPublished = GdxLongArray()
+	/** All chunks in [chunks]. Accessed only from the update thread. */
+	private val residentChunks = LongMap<Chunk>()
+	/** How many times was [unloadUnwantedChunks] called */
+	private var unloadPass = 0
+	/** Incremented whenever some chunks are unloaded, so that [WorldCursor]s know that they must not use their remembered chunk. */
+	@Volatile
+	var unloadEpoch = 0
+		private set
+	private val chunksPopulating = GdxLongArray()
+	/** Chunks which are being generated in the background by [pregenerateChunks].
+	 * Accessed only from the update thread. */
+	private val chunksInGeneration = LongMap<ForkJoinTask<Chunk>>()
 
 	/**
 	 * Returns chunk at requested coordinates.
@@ -86,166 +129,402 @@ class World(
 
 	/**
 	 * Returns chunk at requested chunk key.
-	 * When no chunk exists, one is created.
+	 * When no chunk exists, one is loaded from the [storage] or created.
 	 *
-	 * Thread safe.
+	 * Thread safe. Never locks, unless the chunk has to be loaded or generated.
 	 */
 	fun getChunk(chunkKey:Long):Chunk? {
-		if ((chunkKey and WORLD_SIZE_RANGE_CHECK_MASK) != chunkKey) {
+		if (!isInside(chunkKey)) {
 			return null
 		}
 
-		var result = chunks[chunkKey]
-		if (result == null) {
-			synchronized(generator) {
-				result = chunks[chunkKey]
-				if (result == null) {
-					result = Chunk()
-					generator.generateChunk(this, result, Vec2(chunkKey))
-					chunks.put(chunkKey, result)
+		return chunks[chunkKey] ?: loadChunk(chunkKey) ?: generateChunk(chunkKey)
+	}
+
+	/** Whether the chunk with [chunkKey] is inside of the world.
+	 * Negative coordinates have their highest packed bit set, so they are too big as well. */
+	private fun isInside(chunkKey:Long):Boolean {
+		val size = size.toLong()
+		return (chunkKey ushr 32) < size && (chunkKey and 0xFFFF_FFFFL) < size
+	}
+
+	/** Generate the chunk on the calling thread and publish it.
+	 * When multiple threads want the same chunk at the same time, it may be generated more than once,
+	 * but only one instance is ever published. */
+	private fun generateChunk(chunkKey:Long):Chunk {
+		val chunk = Chunk()
+		generator.generateChunk(this, chunk, Vec2(chunkKey))
+		SimulationMetrics.chunkGenerations.increment()
+		return publishChunk(chunkKey, chunk, true)
+	}
+
+	/** Load the chunk from the [storage] on the calling thread and publish it, like [generateChunk].
+	 * @return null if it is not in the storage */
+	private fun loadChunk(chunkKey:Long):Chunk? {
+		val chunk = storage.load(chunkKey) ?: return null
+		SimulationMetrics.chunkLoads.increment()
+		return publishChunk(chunkKey, chunk, false)
+	}
+
+	private fun publishChunk(chunkKey:Long, chunk:Chunk, populate:Boolean):Chunk {
+		val published = chunks.putIfAbsent(chunkKey, chunk)
+		if (published === chunk) {
+			val chunksPublished = chunksPublished
+			synchronized(chunksPublished) {
+				chunksPublished.add(chunkKey)
+			}
+			if (populate) {
+				val chunksToPopulate = chunksToPopulate
+				synchronized(chunksToPopulate) {
 					chunksToPopulate.add(chunkKey)
 				}
 			}
 		}
-		return result
+		return published
 	}
 
-	/** Get tile at given position. Thread safe. */
-	fun getTile(pos:Vec2): Tile {
-		val chunk: Chunk = getChunk(pos) ?: return Tile.WATER
-		return chunk.tiles[pos.tileKey]
-	}
+	/**
+	 * Unload chunks which were not in [wanted] in any of the last [maxIdlePasses] calls into the [storage].
+	 * They are loaded back transparently when something asks for them through [getChunk].
+	 * Keys of the unloaded chunks are added to [unloaded].
+	 *
+	 * Only chunks which are not being written to can be unloaded, because the writes would be lost.
+	 * Not thread safe, call only from the update thread, when no brains run.
+	 */
+	fun unloadUnwantedChunks(wanted:GdxLongArray, maxIdlePasses:Int, unloaded:GdxLongArray) {
+		val pass = ++unloadPass
+		val residentChunks = residentChunks
+		addPublishedToResidentChunks(pass)
 
-	/** Set tile at given position.
-	 * Thread safe **but prone to races**. */
-	fun setTile(pos:Vec2, tile: Tile) {
-		val chunk: Chunk = getChunk(pos) ?: return
-		chunk.tiles[pos.tileKey] = tile
-	}
+		for (i in 0 until wanted.size) {
+			residentChunks.get(wanted.items[i])?.lastWantedPass = pass
+		}
 
-	/** Get sprite for tile at given position.
-	 * Thread safe. */
-	fun getTileSprite(pos: Vec2): TextureRegion {
-		val baseTile = getTile(pos)
-		when (val baseSprite = baseTile.sprite) {
-			is Sprite.Simple -> {
-				val variants = baseSprite.variants
-				if (variants.isEmpty()) {
-					return WorldSim.sprites[0]
-				}
-				return WorldSim.sprites[variants[pos.packed.hashCode() % variants.size]]
+		val unloadedBefore = unloaded.size
+		val iterator = residentChunks.iterator()
+		while (iterator.hasNext()) {
+			val entry = iterator.next()
+			val chunk = entry.value
+			if (pass - chunk.lastWantedPass <= maxIdlePasses) {
+				continue
+			}
+			val chunkKey = entry.key
+			if (awaitsPopulation(chunkKey)) {
+				// Populating it later would add entities into an unloaded chunk
+				continue
 			}
-			is Sprite.Connecting -> {
-				val topTile = getTile(pos + Vec2.UP)
-				val rightTile = getTile(pos + Vec2.RIGHT)
-				val leftTile = getTile(pos + Vec2.LEFT)
-				val downTile = getTile(pos + Vec2.DOWN)
+			// Store first, so that concurrent getChunk never sees neither and generates it again
+			storage.save(chunkKey, chunk)
+			chunks.remove(chunkKey, chunk)
+			iterator.remove()
+			unloaded.add(chunkKey)
+		}
 
-				val topConnect = if (topTile === baseTile) 1 else 0
-				val rightConnect = if (rightTile === baseTile) 2 else 0
-				val leftConnect = if (leftTile === baseTile) 4 else 0
-				val downConnect = if (downTile === baseTile) 8 else 0
+		if (unloaded.size != unloadedBefore) {
+			unloadEpoch++
+		}
+	}
 
-				val index = topConnect + rightConnect + leftConnect + downConnect
-				return WorldSim.sprites[baseSprite.connections[index]]
+	/**
+	 * Save the current state of all loaded chunks into the [storage], without unloading them,
+	 * so that the [storage] contains the whole world, for example for a [WorldSnapshot].
+	 * Chunks which were not populated yet are skipped, they will be generated and populated again.
+	 *
+	 * Not thread safe, call only from the update thread, when no brains run.
+	 */
+	fun storeLoadedChunks() {
+		addPublishedToResidentChunks(unloadPass)
+		for (entry in residentChunks) {
+			if (!awaitsPopulation(entry.key)) {
+				storage.save(entry.key, entry.value)
 			}
 		}
 	}
 
-	/** Get sprite for tile feature of the tile at [pos].
-	 * Thread safe. */
-	fun getFeatureSprite(pos: Vec2): TextureAtlas.AtlasRegion? {
-		val baseF = getFeature(pos) ?: return null
-		when (val baseSprite = baseF.sprite) {
-			is Sprite.Simple -> {
-				val variants = baseSprite.variants
-				if (variants.isEmpty()) {
-					return null
-				}
-				return WorldSim.sprites[variants[pos.packed.hashCode() % variants.size]]
+	private fun addPublishedToResidentChunks(pass:Int) {
+		val residentChunks = residentChunks
+		val chunksPublished = chunksPublished
+		synchronized(chunksPublished) {
+			for (i in 0 until chunksPublished.size) {
+				val chunkKey = chunksPublished.items[i]
+				val chunk = chunks[chunkKey] ?: continue
+				chunk.lastWantedPass = pass
+				residentChunks.put(chunkKey, chunk)
 			}
-			is Sprite.Connecting -> {
-				val topF = getFeature(pos + Vec2.UP)
-				val rightF = getFeature(pos + Vec2.RIGHT)
-				val leftF = getFeature(pos + Vec2.LEFT)
-				val downF = getFeature(pos + Vec2.DOWN)
+			chunksPublished.clear()
+		}
+	}
+
+	private fun awaitsPopulation(chunkKey:Long):Boolean {
+		val chunksToPopulate = chunksToPopulate
+		synchronized(chunksToPopulate) {
+			return chunksToPopulate.contains(chunkKey)
+		}
+	}
+
+	/**
+	 * Start generating chunks with given keys in the background, if they don't exist yet.
+	 * Generated chunks are published on subsequent [update]s. If [getChunk] asks for a chunk
+	 * which is not published yet, it generates it on its own.
+	 *
+	 * Not thread safe, call only from the update thread.
+	 */
+	fun pregenerateChunks(chunkKeys:GdxLongArray) {
+		publishGeneratedChunks()
+
+		val chunksInGeneration = chunksInGeneration
+		val chunkKeyItems = chunkKeys.items
+		for (i in 0 until chunkKeys.size) {
+			val chunkKey = chunkKeyItems[i]
+			if (!isInside(chunkKey) || chunks.containsKey(chunkKey) || chunksInGeneration.containsKey(chunkKey)) {
+				continue
+			}
+			if (storage.contains(chunkKey)) {
+				// Loading is fast, no need to do it in the background
+				loadChunk(chunkKey)
+				continue
+			}
+
+			chunksInGeneration.put(chunkKey, GENERATION_POOL.submit(Callable {
+				val chunk = Chunk()
+				generator.generateChunk(this, chunk, Vec2(chunkKey))
+				SimulationMetrics.chunkGenerations.increment()
+				chunk
+			}))
+		}
+	}
 
-				val topConnect = if (topF != null && topF.connectsTo(baseF, Direction.DOWN)) 1 else 0
-				val rightConnect = if (rightF != null && rightF.connectsTo(baseF, Direction.LEFT)) 2 else 0
-				val leftConnect = if (leftF != null && leftF.connectsTo(baseF, Direction.RIGHT)) 4 else 0
-				val downConnect = if (downF != null && downF.connectsTo(baseF, Direction.UP)) 8 else 0
+	/** Install chunks which were generated in the background into [chunks]. */
+	private fun publishGeneratedChunks() {
+		val chunksInGeneration = chunksInGeneration
+		if (chunksInGeneration.size == 0) {
+			return
+		}
 
-				val index = topConnect + rightConnect + leftConnect + downConnect
-				return WorldSim.sprites[baseSprite.connections[index]]
+		val iterator = chunksInGeneration.iterator()
+		while (iterator.hasNext()) {
+			val entry = iterator.next()
+			val task = entry.value
+			if (!task.isDone) {
+				continue
+			}
+			val chunkKey = entry.key
+			iterator.remove()
+
+			val chunk = try {
+				task.join()
+			} catch (e:Exception) {
+				logError("World", "Failed to pregenerate chunk ${Vec2(chunkKey)}", e)
+				continue
 			}
+
+			// Could have been generated by getChunk in the meantime, in that case this one is discarded
+			publishChunk(chunkKey, chunk, true)
 		}
 	}
 
+	/** Get tile at given position. Thread safe. */
+	fun getTile(pos:Vec2): Tile {
+		val chunk: Chunk = getChunk(pos) ?: return Tile.WATER
+		return chunk.getTile(pos.tileKey)
+	}
+
+	/** Set tile at given position.
+	 * Thread safe **but prone to races**. */
+	fun setTile(pos:Vec2, tile: Tile) {
+		val chunk: Chunk = getChunk(pos) ?: return
+		chunk.setTile(pos.tileKey, tile)
+	}
+
 	/** Movement speed multiplier for moving from the tile at [pos].
 	 * Thread safe. */
 	fun getMovementSpeedMultiplier(pos:Vec2):Float {
-		val feature = getFeature(pos) ?: return 1f
-		val aspects = feature.aspects
-		when {
-			FeatureAspect.WALK_FASTER in aspects -> return 1.3f
-			FeatureAspect.WALK_SLOWER in aspects -> return 0.75f
-			FeatureAspect.WALK_MUCH_SLOWER in aspects -> return 0.5f
-		}
-		return 1f
+		return movementSpeedMultiplier(getFeature(pos))
 	}
 
 	/** Get feature at the tile at given [pos].
 	 * Thread safe. */
 	fun getFeature(pos:Vec2): Feature? {
 		val chunk: Chunk = getChunk(pos) ?: return null
-		return chunk.features[pos.tileKey]
+		return chunk.getFeature(pos.tileKey)
 	}
 
 	/** Set feature for the given tile at given [pos].
 	 * Thread safe **but prone to races**. */
 	fun setFeature(pos:Vec2, feature: Feature?) {
 		val chunk: Chunk = getChunk(pos) ?: return
-		chunk.features[pos.tileKey] = feature
+		chunk.setFeature(pos.tileKey, feature)
 	}
 
 	/** Get the amount of items at the given tile of given item type.
-	 * Thread safe. */
+	 * Thread safe, unless items in the same chunk are being changed concurrently. */
 	fun getItemCount(pos:Vec2, item: Item):Int {
 		val chunk: Chunk = getChunk(pos) ?: return 0
-		val items = chunk.items[pos.tileKey] ?: return 0
-		return items[item.ordinal]
+		return chunk.getItemCount(pos.tileKey, item)
 	}
 
+	/** Set the amount of items at the given tile of given item type.
+	 * Not thread safe.
+	 * @return false if the position is outside of the world */
 	fun setItemCount(pos:Vec2, item:Item, count:Int):Boolean {
-		val items = getChunk(pos)?.items ?: return false
-		val tileKey = pos.tileKey
-		var tileItems = items[tileKey]
-		if (tileItems == null) {
-			tileItems = IntArray(ITEMS.size)
-			items[tileKey] = tileItems
-		}
-		tileItems[item.ordinal] = count
+		val chunk: Chunk = getChunk(pos) ?: return false
+		chunk.setItemCount(pos.tileKey, item, count)
 		return true
 	}
 
 	override fun update() {
-		val chunksToPopulate = chunksToPopulate
-		val engine = engine
-		for (i in 0 until chunksToPopulate.size) {
-			val chunkKey = chunksToPopulate.items[i]
-			populator.populateChunk(engine, chunks[chunkKey]!!, Vec2(chunkKey))
+		SimulationMetrics.world.time {
+			publishGeneratedChunks()
+
+			val chunksPopulating = chunksPopulating
+			val chunksToPopulate = chunksToPopulate
+			synchronized(chunksToPopulate) {
+				chunksPopulating.addAll(chunksToPopulate)
+				chunksToPopulate.clear()
+			}
+
+			// Chunks may have been generated by parallel brains in any order, but entities must be created in a stable one
+			chunksPopulating.sort()
+
+			// Populating may generate more chunks, those will be populated next update
+			val engine = engine
+			for (i in 0 until chunksPopulating.size) {
+				val chunkKey = chunksPopulating.items[i]
+				populator.populateChunk(engine, chunks[chunkKey]!!, Vec2(chunkKey))
+			}
+			chunksPopulating.clear()
 		}
-		chunksToPopulate.clear()
 	}
 
+	private companion object {
+		/** Background chunk generation runs here. */
+		val GENERATION_POOL:ForkJoinPool = ForkJoinPool.commonPool()
+	}
+
+	/** Chunk data, indexed by [tileKey].
+	 * Tiles and features are stored as ordinals, so that the chunk is compact and scans over it stay in cache.
+	 * Path finding data ([passable] and [movementCost]) is derived from them and kept up to date by the setters. */
 	class Chunk {
-		val tiles = Array(CHUNK_AREA) { Tile.WATER }
-		val features = arrayOfNulls<Feature>(CHUNK_AREA)
-		val items = arrayOfNulls<IntArray>(CHUNK_AREA)
+		/** [Tile] ordinals */
+		val tiles = ByteArray(CHUNK_AREA) { WATER_ORDINAL }
+		/** [Feature] ordinals + 1, 0 is no feature */
+		val features = ByteArray(CHUNK_AREA)
+		/** Sparse item counts, key is `tileKey * ITEMS.size + item.ordinal`. Zero counts are not stored. */
+		val items = IntIntMap(8)
+
+		/** Bit set of tiles which can be walked on. */
+		val passable = LongArray(CHUNK_AREA / 64)
+		/** Cost of moving from the tile, in 1/[MOVEMENT_COST_SCALE] units. */
+		val movementCost = ByteArray(CHUNK_AREA) { NO_FEATURE_MOVEMENT_COST }
+
+		/** Incremented on every change of tiles or features, so that caches of data derived from them can check whether they are stale. */
+		var version = 0
+			private set
+
+		/** Last [unloadUnwantedChunks] pass in which this chunk was wanted */
+		internal var lastWantedPass = 0
+
+		fun getTile(tileKey:Int):Tile {
+			return TILES[tiles[tileKey].toInt()]
+		}
+
+		fun setTile(tileKey:Int, tile:Tile) {
+			tiles[tileKey] = tile.ordinal.toByte()
+			version++
+			val bit = 1L shl tileKey
+			val word = tileKey ushr 6
+			if (tile.type == TileType.LAND) {
+				passable[word] = passable[word] or bit
+			} else {
+				passable[word] = passable[word] and bit.inv()
+			}
+		}
+
+		fun getFeature(tileKey:Int):Feature? {
+			val feature = features[tileKey].toInt()
+			return if (feature == 0) null else FEATURES[feature - 1]
+		}
+
+		fun setFeature(tileKey:Int, feature:Feature?) {
+			features[tileKey] = if (feature == null) 0 else (feature.ordinal + 1).toByte()
+			version++
+			movementCost[tileKey] = if (feature == null) NO_FEATURE_MOVEMENT_COST else FEATURE_MOVEMENT_COST[feature.ordinal]
+		}
+
+		/** Whether the tile can be walked on, same as checking that its [Tile.type] is [TileType.LAND]. */
+		fun isPassable(tileKey:Int):Boolean {
+			return (passable[tileKey ushr 6] and (1L shl tileKey)) != 0L
+		}
+
+		/** Cost of moving from the tile, inverse of [movementSpeedMultiplier]. */
+		fun getMovementCost(tileKey:Int):Float {
+			return movementCost[tileKey] * (1f / MOVEMENT_COST_SCALE)
+		}
+
+		fun getItemCount(tileKey:Int, item:Item):Int {
+			return items.get(tileKey * ITEMS.size + item.ordinal, 0)
+		}
+
+		fun setItemCount(tileKey:Int, item:Item, count:Int) {
+			val key = tileKey * ITEMS.size + item.ordinal
+			if (count == 0) {
+				items.remove(key, 0)
+			} else {
+				items.put(key, count)
+			}
+		}
+
+		/** Write tiles, features, items and the [version], for [readFrom]. */
+		fun writeTo(out:DataOutput) {
+			out.writeInt(version)
+			out.write(tiles)
+			out.write(features)
+			val items = items
+			out.writeInt(items.size)
+			for (entry in items) {
+				out.writeInt(entry.key)
+				out.writeInt(entry.value)
+			}
+		}
+
+		/** Read what [writeTo] has written into this new chunk. Derived data is recomputed. */
+		fun readFrom(input:DataInput) {
+			val version = input.readInt()
+			val tiles = ByteArray(CHUNK_AREA)
+			val features = ByteArray(CHUNK_AREA)
+			input.readFully(tiles)
+			input.readFully(features)
+			for (tileKey in 0 until CHUNK_AREA) {
+				setTile(tileKey, TILES[tiles[tileKey].toInt()])
+				val feature = features[tileKey].toInt()
+				setFeature(tileKey, if (feature == 0) null else FEATURES[feature - 1])
+			}
+			val items = items
+			items.clear()
+			for (i in 0 until input.readInt()) {
+				items.put(input.readInt(), input.readInt())
+			}
+			// Same version as before unloading, so that caches of derived data stay valid
+			this.version = version
+		}
+
+		private companion object {
+			val WATER_ORDINAL = Tile.WATER.ordinal.toByte()
+
+			const val MOVEMENT_COST_SCALE = 32
+			val NO_FEATURE_MOVEMENT_COST = quantizeMovementCost(null)
+			val FEATURE_MOVEMENT_COST = ByteArray(FEATURES.size) { quantizeMovementCost(FEATURES[it]) }
+
+			fun quantizeMovementCost(feature:Feature?):Byte {
+				return Math.round(MOVEMENT_COST_SCALE / movementSpeedMultiplier(feature)).toByte()
+			}
+		}
 	}
 }
 
 interface WorldGenerator {
+	/** Fill the [chunk] at [chunkPos] with terrain.
+	 * Must be thread safe, because chunks may be generated in parallel. */
 	fun generateChunk(world: World, chunk: World.Chunk, chunkPos:Vec2)
 }
 
@@ -0,0 +1,75 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.Feature
+import com.darkyen.worldSim.Tile
+import com.darkyen.worldSim.util.Vec2
+
+/**
+ * Read access to the [world] for hot loops.
+ * Remembers the last accessed chunk, so that lookups of nearby tiles resolve the chunk only when crossing its boundary.
+ * The remembered chunk is dropped when the world unloads some chunks, see [World.unloadEpoch].
+ *
+ * Not thread safe, each thread needs its own cursor.
+ */
+class WorldCursor(val world:World) {
+
+	private var chunkKey = NO_CHUNK
+	private var chunk:World.Chunk? = null
+	private var unloadEpoch = 0
+
+	/** Chunk which contains [pos], or null if [pos] is outside of the world. */
+	fun chunkAt(pos:Vec2):World.Chunk? {
+		val chunkKey = pos.chunkKey
+		val unloadEpoch = world.unloadEpoch
+		if (chunkKey == this.chunkKey && unloadEpoch == this.unloadEpoch) {
+			return chunk
+		}
+		val chunk = world.getChunk(chunkKey)
+		this.chunkKey = chunkKey
+		this.chunk = chunk
+		this.unloadEpoch = unloadEpoch
+		return chunk
+	}
+
+	/** @see World.getTile */
+	fun getTile(pos:Vec2):Tile {
+		val chunk = chunkAt(pos) ?: return Tile.WATER
+		return chunk.getTile(pos.tileKey)
+	}
+
+	/** @see World.getFeature */
+	fun getFeature(pos:Vec2):Feature? {
+		val chunk = chunkAt(pos) ?: return null
+		return chunk.getFeature(pos.tileKey)
+	}
+
+	/** @see World.getMovementSpeedMultiplier */
+	fun getMovementSpeedMultiplier(pos:Vec2):Float {
+		return movementSpeedMultiplier(getFeature(pos))
+	}
+
+	/** Whether the tile at [pos] can be walked on.
+	 * @see World.Chunk.isPassable */
+	fun isPassable(pos:Vec2):Boolean {
+		val chunk = chunkAt(pos) ?: return false
+		return chunk.isPassable(pos.tileKey)
+	}
+
+	/** Cost of moving from the tile at [pos].
+	 * @see World.Chunk.getMovementCost */
+	fun getMovementCost(pos:Vec2):Float {
+		val chunk = chunkAt(pos) ?: return 1f
+		return chunk.getMovementCost(pos.tileKey)
+	}
+
+	/** Forget the remembered chunk. */
+	fun reset() {
+		chunkKey = NO_CHUNK
+		chunk = null
+	}
+
+	private companion object {
+		/** Chunk keys never have the lowest bits set, so this is never a valid key. */
+		const val NO_CHUNK = -1L
+	}
+}
@@ -0,0 +1,244 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.GdxIntArray
+import com.darkyen.worldSim.util.Vec2
+import com.github.antag99.retinazer.Component
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.Mapper
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Binary snapshot of a [World] and of its entities, opened with [open] and created with [save].
+ *
+ * The file is memory-mapped and chunks are read from it only when [World.getChunk] asks for them,
+ * through the [ChunkStorage] from [createChunkStorage], so opening even a huge world takes only milliseconds.
+ * Entities are stored column by column, each component separately, see [loadEntities].
+ *
+ * Layout (big endian):
+ * - header: magic, format version, world size, world seed, length of the entity section
+ * - entity section: entity count, then for each saved component type:
+ * count of entities with it, their indices and then one column for each field,
+ * followed by a [BrainCheckpoint] of each entity with [IntelligentC]
+ * - chunk section, see [ChunkRegionFile]
+ *
+ * Chunks are limited to 2 GiB in total, by the size of a single memory mapping.
+ */
+class WorldSnapshot private constructor(private val buffer:ByteBuffer,
+		/** The mapped file. It must not be replaced by [save] while the snapshot is in use, see [isMappedFrom]. */
+		val file:Path) {
+
+	/** [World.size] of the saved world */
+	val worldSize:Int
+	/** Seed of the [WorldGenerator] which generated the saved world, so that chunks which were not saved can be generated */
+	val seed:Long
+	private val entitySectionLength:Int
+
+	init {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw IOException("Not a world snapshot: $file")
+		}
+		val version = buffer.getInt(4)
+		if (version != FORMAT_VERSION) {
+			throw IOException("Unsupported world snapshot version $version: $file")
+		}
+		worldSize = buffer.getInt(8)
+		seed = buffer.getLong(12)
+		entitySectionLength = buffer.getInt(20)
+	}
+
+	/** Whether [other] is the [file] of this snapshot.
+	 * The mapping stays in use for as long as the [World] reads chunks from it, and some systems, like Windows,
+	 * refuse to replace a mapped file, so the world has to be saved elsewhere. */
+	fun isMappedFrom(other:Path):Boolean {
+		return file.toAbsolutePath().normalize() == other.toAbsolutePath().normalize()
+	}
+
+	/** Create storage with the saved chunks, for the [World] of this snapshot. */
+	fun createChunkStorage():ChunkStorage {
+		val region = buffer.duplicate()
+		region.position(HEADER_SIZE + entitySectionLength)
+		return ChunkStorage(ChunkRegionFile(region))
+	}
+
+	/**
+	 * Create the saved entities in the [engine].
+	 * Their [IntelligentC] is taken from [intelligences], which must be the same as when saving.
+	 */
+	fun loadEntities(engine:Engine, intelligences:List<IntelligentC>) {
+		val input = buffer.duplicate()
+		input.position(HEADER_SIZE)
+
+		val entities = IntArray(input.int) { engine.createEntity() }
+		input.readComponent(entities, engine.getMapper(PositionC::class.java), { PositionC() },
+				{ it.pos = Vec2(long) },
+				{ it.movement = DIRECTION_VALUES[get().toInt()] },
+				{ it.progress = float },
+				{ it.speed = float })
+		input.readComponent(entities, engine.getMapper(AgentC::class.java), { AgentC(get() != 0.toByte()) },
+				{ it.ageYears = int },
+				{ val inventory = it.inventory; for (i in inventory.indices) inventory[i] = int },
+				{ get(it.attributes) },
+				{ get(it.positionMemoryType) },
+				{ val location = it.positionMemoryLocation; for (i in location.indices) location[i] = long },
+				{ it.activity = AGENT_ACTIVITIES[get().toInt()] })
+		input.readComponent(entities, engine.getMapper(DecayC::class.java), { DecayC(float) })
+		input.readComponent(entities, engine.getMapper(RenderC::class.java), { RenderC() },
+				{ it.sprite = int })
+		input.readComponent(entities, engine.getMapper(IntelligentC::class.java), { intelligences[int] })
+
+		val brainCount = input.int
+		if (brainCount > 0) {
+			val intelligentS = engine.getService(IntelligentS::class.java)
+			for (i in 0 until brainCount) {
+				val entity = entities[input.int]
+				intelligentS.restoreBrain(entity, BrainCheckpoint.read(input))
+			}
+		}
+	}
+
+	companion object {
+		private const val MAGIC = 0x5753_4e50 // WSNP
+		private const val FORMAT_VERSION = 5
+		private const val HEADER_SIZE = 4 + 4 + 4 + 8 + 4
+
+		/** Open a snapshot created by [save].
+		 * @throws IOException when the file can't be read or is not a snapshot */
+		fun open(file:Path):WorldSnapshot {
+			val buffer = FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+				// Mapping stays valid after the channel is closed
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+			}
+			return WorldSnapshot(buffer, file)
+		}
+
+		/**
+		 * Save the [world] generated with [seed] and all entities of the [engine] into [file].
+		 * The file is replaced atomically, so a crash during saving does not destroy the previous snapshot.
+		 * It must not be the file of a snapshot which is still open, see [isMappedFrom].
+		 * Each [IntelligentC] must be one of [intelligences].
+		 *
+		 * Not thread safe, call only between engine updates.
+		 */
+		fun save(file:Path, engine:Engine, world:World, seed:Long, intelligences:List<IntelligentC>) {
+			world.storeLoadedChunks()
+
+			val entitySection = ByteArrayOutputStream()
+			DataOutputStream(entitySection).use { out ->
+				writeEntities(out, engine, intelligences)
+			}
+
+			val tempFile = file.resolveSibling("${file.fileName}.tmp")
+			DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile))).use { out ->
+				out.writeInt(MAGIC)
+				out.writeInt(FORMAT_VERSION)
+				out.writeInt(world.size)
+				out.writeLong(seed)
+				out.writeInt(entitySection.size())
+				entitySection.writeTo(out)
+				ChunkRegionFile.write(out, world.storage)
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+		}
+
+		private fun writeEntities(out:DataOutput, engine:Engine, intelligences:List<IntelligentC>) {
+			val entities = engine.entities.indices
+			out.writeInt(entities.size)
+			out.writeComponent(entities, engine.getMapper(PositionC::class.java), {},
+					{ writeLong(it.pos.packed) },
+					{ writeByte(it.movement.ordinal) },
+					{ writeFloat(it.progress) },
+					{ writeFloat(it.speed) })
+			out.writeComponent(entities, engine.getMapper(AgentC::class.java), { writeBoolean(it.genderMale) },
+					{ writeInt(it.ageYears) },
+					{ for (count in it.inventory) writeInt(count) },
+					{ write(it.attributes) },
+					{ write(it.positionMemoryType) },
+					{ for (location in it.positionMemoryLocation) writeLong(location) },
+					{ writeByte(it.activity.ordinal) })
+			out.writeComponent(entities, engine.getMapper(DecayC::class.java), { writeFloat(it.remainingTime) })
+			out.writeComponent(entities, engine.getMapper(RenderC::class.java), {},
+					{ writeInt(it.sprite) })
+			out.writeComponent(entities, engine.getMapper(IntelligentC::class.java), {
+				val index = intelligences.indexOf(it)
+				require(index != -1) { "Intelligence can't be saved, it is not one of the known intelligences" }
+				writeInt(index)
+			})
+
+			val intelligentC = engine.getMapper(IntelligentC::class.java)
+			val brains = GdxIntArray()
+			for (i in 0 until entities.size) {
+				if (intelligentC[entities.items[i]] != null) {
+					brains.add(i)
+				}
+			}
+			out.writeInt(brains.size)
+			if (brains.size > 0) {
+				val intelligentS = engine.getService(IntelligentS::class.java)
+				for (i in 0 until brains.size) {
+					val index = brains.items[i]
+					out.writeInt(index)
+					intelligentS.checkpointBrain(entities.items[index]).writeTo(out)
+				}
+			}
+		}
+
+		/** Write indices of [entities] with the component of [mapper], followed by [constructorColumn] and [columns], one after another. */
+		private fun <C:Component> DataOutput.writeComponent(entities:GdxIntArray, mapper:Mapper<C>,
+															constructorColumn:DataOutput.(C) -> Unit,
+															vararg columns:DataOutput.(C) -> Unit) {
+			val components = ArrayList<C>()
+			val indices = GdxIntArray()
+			for (i in 0 until entities.size) {
+				val component = mapper[entities.items[i]] ?: continue
+				components.add(component)
+				indices.add(i)
+			}
+
+			writeInt(indices.size)
+			for (i in 0 until indices.size) {
+				writeInt(indices.items[i])
+			}
+			for (component in components) {
+				constructorColumn(component)
+			}
+			for (column in columns) {
+				for (component in components) {
+					column(component)
+				}
+			}
+		}
+
+		/** Read what [writeComponent] has written, creating components with [create], which reads the constructor column. */
+		private fun <C:Component> ByteBuffer.readComponent(entities:IntArray, mapper:Mapper<C>,
+														   create:ByteBuffer.() -> C,
+														   vararg columns:ByteBuffer.(C) -> Unit) {
+			val count = int
+			val indices = IntArray(count) { int }
+			val components = ArrayList<C>(count)
+			for (index in indices) {
+				val component = create()
+				components.add(component)
+				mapper.add(entities[index], component)
+			}
+			for (column in columns) {
+				for (component in components) {
+					column(component)
+				}
+			}
+		}
+
+		private val DIRECTION_VALUES = Direction.values()
+		private val AGENT_ACTIVITIES = AgentActivity.values()
+	}
+}
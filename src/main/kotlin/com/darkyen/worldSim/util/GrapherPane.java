@@ -60,6 +60,9 @@ public final class GrapherPane extends Widget {
         for (GraphData graph : graphs) {
             float lastPoint = graph.getPoint(-1);
             tmp.setLength(0);
+            if (graph.name != null) {
+                tmp.append(graph.name).append(' ');
+            }
             tmp.append(lastPoint);
             font.setColor(graph.color);
             font.draw(batch, tmp, getX() + getWidth() + 5f, getY() + getHeight() * MathUtils.clamp(graph.getPointPercentage(-1), 0f,1f));
@@ -73,13 +76,20 @@ public final class GrapherPane extends Widget {
         private float min;
         private float max;
         private final boolean automax;
+        /** Shown before the last value, may be null */
+        private final String name;
 
         public GraphData(int memory, Color color, float min, float max, boolean automax) {
+            this(memory, color, min, max, automax, null);
+        }
+
+        public GraphData(int memory, Color color, float min, float max, boolean automax, String name) {
             this.min = min;
             this.max = max;
             this.data = new float[memory];
             this.color = color;
             this.automax = automax;
+            this.name = name;
         }
 
         public void addDataPoint(float point){
@@ -0,0 +1,72 @@
+package com.darkyen.worldSim.util
+
+/**
+ * Binary min-heap of int values with float priorities, for Dijkstra-like searches.
+ * There is no decrease-key operation. Push the value again with the lower priority instead,
+ * and skip popped entries whose priority is stale.
+ */
+class IntFloatMinHeap(initialCapacity:Int = 64) {
+
+	private var values = IntArray(initialCapacity)
+	private var priorities = FloatArray(initialCapacity)
+
+	var size = 0
+		private set
+
+	/** Value with the lowest priority. Heap must not be empty. */
+	val peekValue:Int
+		get() = values[0]
+
+	/** The lowest priority. Heap must not be empty. */
+	val peekPriority:Float
+		get() = priorities[0]
+
+	fun clear() {
+		size = 0
+	}
+
+	fun push(value:Int, priority:Float) {
+		if (size == values.size) {
+			values = values.copyOf(size * 2)
+			priorities = priorities.copyOf(size * 2)
+		}
+		val values = values
+		val priorities = priorities
+		var index = size++
+		while (index > 0) {
+			val parent = (index - 1) shr 1
+			if (priorities[parent] <= priority) break
+			values[index] = values[parent]
+			priorities[index] = priorities[parent]
+			index = parent
+		}
+		values[index] = value
+		priorities[index] = priority
+	}
+
+	/** Remove the entry with the lowest priority. Heap must not be empty. */
+	fun pop() {
+		val values = values
+		val priorities = priorities
+		val size = --size
+		if (size == 0) {
+			return
+		}
+		val value = values[size]
+		val priority = priorities[size]
+		var index = 0
+		while (true) {
+			var child = 1 + (index shl 1)
+			if (child >= size) break
+			if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+				child++
+			}
+			if (priorities[child] >= priority) break
+			values[index] = values[child]
+			priorities[index] = priorities[child]
+			index = child
+		}
+		values[index] = value
+		priorities[index] = priority
+	}
+}
@@ -0,0 +1,133 @@
+package com.darkyen.worldSim.util
+
+import com.badlogic.gdx.utils.ObjectMap
+import java.io.PrintStream
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.LongAdder
+
+/** What does a [Metric] count. */
+enum class MetricUnit(
+		/** Appended to the value when shown */
+		val suffix:String,
+		/** Multiplier from the counted amount to the shown value */
+		val scale:Double) {
+	/** Events, such as path searches */
+	EVENTS("", 1.0),
+	/** Time spent, counted in nanoseconds and shown in milliseconds */
+	NANOSECONDS(" ms", 1e-6)
+}
+
+/**
+ * Named total which only ever grows, such as how many paths have been found or how much time has been spent by a system.
+ * Created by [MetricsRegistry].
+ *
+ * Thread safe and cheap to [add] to, even from many threads at once.
+ */
+class Metric internal constructor(val name:String, val unit:MetricUnit) {
+
+	private val value = LongAdder()
+
+	/** Sum of everything that has been [add]ed so far */
+	val total:Long
+		get() = value.sum()
+
+	fun add(amount:Long) {
+		value.add(amount)
+	}
+
+	fun increment() {
+		value.increment()
+	}
+
+	override fun toString(): String = name
+}
+
+/** Run [action] and add how many nanoseconds it took to this [MetricUnit.NANOSECONDS] metric. */
+inline fun <T> Metric.time(action:() -> T):T {
+	val start = System.nanoTime()
+	try {
+		return action()
+	} finally {
+		add(System.nanoTime() - start)
+	}
+}
+
+/**
+ * Set of [Metric]s, in the order in which they were created.
+ * The code that is measured only adds to the metrics. What happens with the values is up to the [MetricsSampler]s,
+ * which can be plugged in any number, each with its own [MetricsReporter] and its own sampling interval.
+ *
+ * Thread safe.
+ */
+class MetricsRegistry {
+
+	private val metrics = CopyOnWriteArrayList<Metric>()
+
+	/** All metrics, in the order of creation */
+	val all:List<Metric>
+		get() = metrics
+
+	/** Get the metric with given [name], or create it if there is none. */
+	@Synchronized
+	fun metric(name:String, unit:MetricUnit = MetricUnit.EVENTS):Metric {
+		for (metric in metrics) {
+			if (metric.name == name) {
+				require(metric.unit == unit) { "Metric $name already exists with unit ${metric.unit}" }
+				return metric
+			}
+		}
+		val metric = Metric(name, unit)
+		metrics.add(metric)
+		return metric
+	}
+
+	/** Get the [MetricUnit.NANOSECONDS] metric with given [name], or create it if there is none. Use with [time]. */
+	fun timer(name:String):Metric {
+		return metric(name, MetricUnit.NANOSECONDS)
+	}
+}
+
+/** Receives the values of all metrics from a [MetricsSampler]. */
+interface MetricsReporter {
+	/** Called for each metric, with how much it has grown since the previous sample. */
+	fun report(metric:Metric, change:Long)
+
+	/** Called after all metrics of one sample have been reported, [intervalNanos] after the previous sample. */
+	fun endSample(intervalNanos:Long) {}
+}
+
+/**
+ * Reads all metrics of [registry] on each [sample] and reports how much they have grown since the previous one.
+ * Metrics which are created later start from zero in the first sample which sees them.
+ *
+ * Not thread safe.
+ */
+class MetricsSampler(private val registry:MetricsRegistry, private val reporter:MetricsReporter) {
+
+	private val previousTotals = ObjectMap<Metric, Long>()
+	private var previousSampleNanos = System.nanoTime()
+
+	fun sample() {
+		val previousTotals = previousTotals
+		for (metric in registry.all) {
+			val total = metric.total
+			val previous = previousTotals.put(metric, total) ?: 0L
+			reporter.report(metric, total - previous)
+		}
+		val now = System.nanoTime()
+		reporter.endSample(now - previousSampleNanos)
+		previousSampleNanos = now
+	}
+}
+
+/** Prints one line per metric into [out], for headless runs. */
+class PrintMetricsReporter(private val out:PrintStream) : MetricsReporter {
+
+	override fun report(metric:Metric, change:Long) {
+		if (metric.unit == MetricUnit.EVENTS) {
+			out.println("\t%-30s %12d (%d total)".format(metric.name, change, metric.total))
+		} else {
+			out.println("\t%-30s %12.1f%s".format(metric.name, change * metric.unit.scale, metric.unit.suffix))
+		}
+	}
+}
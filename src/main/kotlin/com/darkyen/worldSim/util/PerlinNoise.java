@@ -12,7 +12,8 @@ import java.io.IOException;
 
 public final class PerlinNoise {
     private final long seed;
-    private final RandomXS128 r = new RandomXS128();
+    /** Per-thread, so that the noise can be sampled from multiple threads at once. */
+    private final ThreadLocal<RandomXS128> random = ThreadLocal.withInitial(RandomXS128::new);
 
     public PerlinNoise(long seed) {
         this.seed = seed;
@@ -31,7 +32,7 @@ public final class PerlinNoise {
         return x;
     }
 
-    private void seed(int x, int y, int subSeed){
+    private void seed(RandomXS128 r, int x, int y, int subSeed){
         long base = (((long) x << 32) | (y & 0xFFFFFFFFL)) ^ seed;
         r.setSeed(hash(base + subSeed));
     }
@@ -54,16 +55,17 @@ public final class PerlinNoise {
         int secondX = firstX + 1;
         int secondY = firstY + 1;
 
-        seed(firstX, firstY, octavePower);
+        final RandomXS128 r = random.get();
+        seed(r, firstX, firstY, octavePower);
         float c00 = r.nextFloat();
 
-        seed(secondX, firstY, octavePower);
+        seed(r, secondX, firstY, octavePower);
         float c10 = r.nextFloat();
 
-        seed(secondX, secondY, octavePower);
+        seed(r, secondX, secondY, octavePower);
         float c11 = r.nextFloat();
 
-        seed(firstX, secondY, octavePower);
+        seed(r, firstX, secondY, octavePower);
         float c01 = r.nextFloat();
 
         return i(i(c00, c10, xA), i(c01, c11, xA), yA) * magnitude;
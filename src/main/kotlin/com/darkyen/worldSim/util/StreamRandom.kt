@@ -0,0 +1,52 @@
+package com.darkyen.worldSim.util
+
+import kotlin.random.Random
+
+/**
+ * Counter-based random number generator: the n-th value of a stream is a hash of the stream [key] and of n,
+ * like in [java.util.SplittableRandom], whose mixing function it uses.
+ * Values of one stream therefore do not depend on which other streams were used and in which order,
+ * so each entity and system can have its own stream and the simulation is reproducible from a single seed,
+ * even when brains run in parallel.
+ *
+ * The stream can be repositioned by setting [counter], which makes it possible to derive values from the simulation time
+ * instead of remembering a state, or to continue a stream restored from a snapshot.
+ *
+ * Not thread safe, but streams are cheap, so each thread or entity should have its own.
+ */
+class StreamRandom(
+		/** Identity of the stream, see [streamKey] */
+		var key:Long,
+		/** How many values have been taken from the stream so far */
+		var counter:Long = 0L) : Random() {
+
+	override fun nextLong(): Long {
+		return mix64(key + ++counter * GOLDEN_GAMMA)
+	}
+
+	override fun nextInt(): Int {
+		return (nextLong() ushr 32).toInt()
+	}
+
+	override fun nextBits(bitCount: Int): Int {
+		// Same as in the implementations of the standard library, bitCount == 0 must give 0
+		return nextInt().ushr(32 - bitCount) and (-bitCount).shr(31)
+	}
+
+	companion object {
+		private const val GOLDEN_GAMMA = -0x61c8864680b583ebL
+
+		/** Key of a stream of [stream] with [id], for example of a system and of an entity, derived from a master [seed]. */
+		fun streamKey(seed:Long, stream:Int, id:Long):Long {
+			return mix64(mix64(seed + stream * GOLDEN_GAMMA) + id * GOLDEN_GAMMA)
+		}
+
+		/** Finalizer of MurmurHash3, with the constants of David Stafford's variant 13, as in [java.util.SplittableRandom] */
+		private fun mix64(value:Long):Long {
+			var z = value
+			z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+			z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+			return z xor (z ushr 31)
+		}
+	}
+}
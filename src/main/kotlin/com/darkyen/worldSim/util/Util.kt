@@ -1,5 +1,7 @@
 package com.darkyen.worldSim.util
 
+import com.badlogic.gdx.Gdx
+
 typealias GdxByteArray = com.badlogic.gdx.utils.ByteArray
 typealias GdxShortArray = com.badlogic.gdx.utils.ShortArray
 typealias GdxIntArray = com.badlogic.gdx.utils.IntArray
@@ -52,4 +54,15 @@ fun ByteArray.indexOfMax():Int {
 		}
 	}
 	return maxIndex
+}
+
+/** Log an error through [Gdx.app], or to [System.err] when running without an application (headless, tests). */
+fun logError(tag:String, message:String, exception:Throwable?) {
+	val app = Gdx.app
+	if (app != null) {
+		app.error(tag, message, exception)
+	} else {
+		System.err.println("[$tag] $message")
+		exception?.printStackTrace(System.err)
+	}
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.ai.benchmarkPathFinding
+import com.darkyen.worldSim.ecs.benchmarkDispatcher
+import com.darkyen.worldSim.ecs.benchmarkSpatialLookup
+import com.darkyen.worldSim.ecs.benchmarkWorldAccess
+import com.darkyen.worldSim.util.benchmarkWeightedSampler
+
+/**
+ * Benchmarks of the hot paths, all with deterministic inputs, so that results before and after a change can be compared.
+ * Arguments select which benchmarks to run by name, all run when there are none.
+ * Run with the test classpath, on an otherwise idle machine.
+ */
+fun main(args:Array<String>) {
+	val benchmarks = linkedMapOf(
+			"world" to ::benchmarkWorldAccess,
+			"spatial" to ::benchmarkSpatialLookup,
+			"path" to ::benchmarkPathFinding,
+			"dispatcher" to ::benchmarkDispatcher,
+			"sampler" to ::benchmarkWeightedSampler)
+
+	for ((name, benchmark) in benchmarks) {
+		if (args.isEmpty() || name in args) {
+			benchmark()
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.darkyen.worldSim
+
+import com.badlogic.gdx.utils.IntMap
+import com.darkyen.worldSim.ecs.AgentC
+import com.darkyen.worldSim.ecs.AgentSpatialLookup
+import com.darkyen.worldSim.ecs.PositionC
+import com.darkyen.worldSim.ecs.chunkKey
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.forEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class HeadlessSimulationTest {
+
+	/** How many agents have ended in another chunk than where they were after the first step, in the last [simulate] */
+	private var movedAcrossChunks = 0
+
+	/** Simulate the world of [SEED] in the deterministic mode and describe the resulting agents, in an order independent of entity ids.
+	 * Nobody observes the agents, so they walk in jumps and update the spatial lookup through deferred writes,
+	 * which must be applied by the time the simulation ends. */
+	private fun simulate(brainThreads:Int):List<String> {
+		val simulation = HeadlessSimulation(NoiseWorldGenerator(SEED), EntityChunkPopulator(SEED), brainThreads = brainThreads, worldSize = WORLD_SIZE,
+				random = SimulationRandom(SEED, deterministic = true))
+		simulation.generateArea(Vec2(WORLD_SIZE / 2, WORLD_SIZE / 2), 2)
+		simulation.step()
+
+		val engine = simulation.engine
+		val positionMapper = engine.getMapper(PositionC::class.java)
+		val startChunks = IntMap<Long>()
+		engine.entities.indices.forEach { entity ->
+			startChunks.put(entity, positionMapper[entity]?.pos?.chunkKey ?: return@forEach)
+		}
+		simulation.simulate(SIMULATED_SECONDS)
+
+		val agentMapper = engine.getMapper(AgentC::class.java)
+		val spatialLookup = engine.getService(AgentSpatialLookup::class.java)
+		val agents = ArrayList<String>()
+		movedAcrossChunks = 0
+		val entities = engine.entities.indices
+		for (i in 0 until entities.size) {
+			val entity = entities[i]
+			val agent = agentMapper[entity] ?: continue
+			val position = positionMapper[entity]!!
+			var inLookup = false
+			spatialLookup.forEntitiesInChunksSpanningRectangle(position.pos, position.pos) { inLookup = inLookup || it == entity }
+			assertTrue(inLookup, "Spatial lookup does not have $entity at ${position.pos}")
+			if (startChunks.get(entity) != position.pos.chunkKey) {
+				movedAcrossChunks++
+			}
+			agents.add("${position.pos} ${position.movement} ${position.progress} ${agent.genderMale} ${agent.ageYears} ${agent.activity} " +
+					"${agent.inventory.contentToString()} ${agent.attributes.contentToString()} " +
+					"${agent.positionMemoryType.contentToString()} ${agent.positionMemoryLocation.contentToString()}")
+		}
+		agents.sort()
+		return agents
+	}
+
+	@Test
+	fun sameSeedSameAgentsOnOneThread() {
+		val first = simulate(1)
+		assertTrue(first.isNotEmpty())
+		assertEquals(first, simulate(1))
+	}
+
+	@Test
+	fun sameSeedSameAgentsOnMoreThreads() {
+		val first = simulate(4)
+		assertTrue(first.isNotEmpty())
+		assertEquals(first, simulate(4))
+	}
+
+	/** Stripes run in parallel whenever there is more than one thread, so how many there are must not matter. */
+	@Test
+	fun sameSeedSameAgentsOnAnyNumberOfThreads() {
+		val first = simulate(2)
+		assertTrue(first.isNotEmpty())
+		assertTrue(movedAcrossChunks > 0, "Nobody has moved across chunks, spatial lookup updates are not tested")
+		assertEquals(first, simulate(3))
+		assertEquals(first, simulate(8))
+	}
+
+	private companion object {
+		const val SEED = 42L
+		const val WORLD_SIZE = 256
+		const val SIMULATED_SECONDS = 60f
+	}
+}
@@ -0,0 +1,87 @@
+@file:JvmName("MacroBenchmark")
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.ecs.AgentSpatialLookup
+import com.darkyen.worldSim.ecs.DAY_LENGTH_IN_REAL_SECONDS
+import com.darkyen.worldSim.ecs.DEFAULT_WORLD_SIZE
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.Vec2
+import java.lang.management.ManagementFactory
+
+/**
+ * Measures the throughput of the whole simulation, in simulated days per real second, without rendering.
+ * The world and its initial population come from a fixed seed, so runs on different versions or machines are comparable.
+ *
+ * Arguments:
+ * - `seed:<long>` seed of the world and of its population (default 1)
+ * - `days:<float>` how many in-game days to measure (default 1)
+ * - `warmup:<float>` how many in-game days to simulate before measuring, to let the JIT compile the hot paths (default 0.25)
+ * - `radius:<int>` radius of chunks around the world center which are populated at the beginning, controls the population (default 2)
+ * - `threads:<int>` how many threads run agent brains (default 1)
+ * - `size:<int>` length of a side of the world in tiles (default 512)
+ * - `deterministic` run in the [SimulationRandom.deterministic] mode, so that each run simulates exactly the same
+ *
+ * Reports throughput, percentiles of the time of one tick (one engine update of [SimulationSpeedRegulator.STEP_SECONDS]),
+ * allocation rate and peak used heap, sampled after each tick. The last line is the score to track: simulated days per second
+ * and agent days per second, which is what a machine needs to sustain for a target population at a target speed.
+ * Run with the test classpath, on an otherwise idle machine.
+ */
+fun main(args: Array<String>) {
+	parseArguments(args)
+	val seed = ARGS.get("seed")?.toLong() ?: 1L
+	val days = ARGS.get("days")?.toFloat() ?: 1f
+	val warmUpDays = ARGS.get("warmup")?.toFloat() ?: 0.25f
+	val radius = ARGS.get("radius")?.toInt() ?: 2
+	val threads = ARGS.get("threads")?.toInt() ?: 1
+	val size = ARGS.get("size")?.toInt() ?: DEFAULT_WORLD_SIZE
+
+	val simulation = HeadlessSimulation(NoiseWorldGenerator(seed), EntityChunkPopulator(seed), brainThreads = threads, worldSize = size,
+			random = SimulationRandom(seed, deterministic = ARGS.containsKey("deterministic")))
+	simulation.generateArea(Vec2(size / 2, size / 2), radius)
+	val agents = simulation.engine.getService(AgentSpatialLookup::class.java)
+	simulation.step()
+	println("World $seed, ${agents.entityCount} agents, $threads brain threads")
+
+	simulation.simulate(warmUpDays * DAY_LENGTH_IN_REAL_SECONDS)
+
+	val runtime = Runtime.getRuntime()
+	var peakHeap = 0L
+	val agentsAtStart = agents.entityCount
+	val allocatedAtStart = allocatedBytes()
+	val tickNanos = GdxLongArray()
+	val start = System.nanoTime()
+	var agentTicks = 0L
+
+	val end = simulation.simulatedSeconds + days * DAY_LENGTH_IN_REAL_SECONDS
+	while (simulation.simulatedSeconds < end) {
+		val tickStart = System.nanoTime()
+		simulation.step()
+		tickNanos.add(System.nanoTime() - tickStart)
+		agentTicks += agents.entityCount
+		// Sum of per-pool peaks would overstate it, pools peak at different times
+		peakHeap = maxOf(peakHeap, runtime.totalMemory() - runtime.freeMemory())
+	}
+
+	val seconds = (System.nanoTime() - start) / 1e9
+	val allocated = allocatedBytes() - allocatedAtStart
+	tickNanos.sort()
+	val averageAgents = agentTicks.toDouble() / tickNanos.size
+
+	println("Simulated $days days in %.1f s, agents: $agentsAtStart at start, ${agents.entityCount} at end".format(seconds))
+	println("Tick: p50 %.2f ms, p99 %.2f ms, max %.2f ms".format(
+			tickNanos.percentile(0.5) / 1e6, tickNanos.percentile(0.99) / 1e6, tickNanos.peek() / 1e6))
+	println("Allocation: %.1f MB/s, peak used heap: %.1f MB".format(allocated / seconds / 1e6, peakHeap / 1e6))
+	println("Score: %.3f days/s, %.0f agent days/s".format(days / seconds, days * averageAgents / seconds))
+}
+
+/** Value at [fraction] of this sorted array */
+private fun GdxLongArray.percentile(fraction:Double):Long {
+	return this[((size - 1) * fraction).toInt()]
+}
+
+/** Bytes allocated so far by all live threads, including brain and chunk generation threads.
+ * Threads which have ended are not counted, but the simulation keeps its threads alive. */
+private fun allocatedBytes():Long {
+	val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+	return threads.getThreadAllocatedBytes(threads.allThreadIds).sum()
+}
@@ -0,0 +1,94 @@
+package com.darkyen.worldSim
+
+import com.darkyen.worldSim.ecs.COMPONENT_DOMAIN
+import com.darkyen.worldSim.ecs.SimulationMetrics
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class SimulationSpeedRegulatorTest {
+
+	private val regulator = SimulationSpeedRegulator()
+	private val engine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(regulator))
+
+	@Test
+	fun stepsConsumeAccumulatedTime() {
+		assertEquals(SimulationSpeedRegulator.STEP_SECONDS, regulator.simulationDelta)
+		assertFalse(regulator.stepPending)
+
+		regulator.advance(0.03f)
+		assertFalse(regulator.stepPending)
+		regulator.advance(0.09f)
+		assertEquals(0.12, regulator.pendingSeconds, DELTA)
+
+		assertTrue(regulator.stepPending)
+		regulator.step(engine)
+		assertEquals(0.07, regulator.pendingSeconds, DELTA)
+		assertTrue(regulator.stepPending)
+		regulator.step(engine)
+		assertEquals(0.02, regulator.pendingSeconds, DELTA)
+		assertFalse(regulator.stepPending)
+		assertEquals(0.1, regulator.simulatedSeconds, DELTA)
+
+		// The remainder is kept for later steps
+		regulator.advance(0.04f)
+		assertTrue(regulator.stepPending)
+		regulator.step(engine)
+		assertEquals(0.01, regulator.pendingSeconds, DELTA)
+		assertEquals(0.15, regulator.simulatedSeconds, DELTA)
+	}
+
+	@Test
+	fun lagOverLimitIsDropped() {
+		val droppedBefore = SimulationMetrics.droppedSimulationMs.total
+		regulator.advance(1f, 0.25f)
+		assertEquals(0.25, regulator.pendingSeconds, DELTA)
+		assertEquals(750L, SimulationMetrics.droppedSimulationMs.total - droppedBefore)
+
+		// Within the limit, nothing is dropped
+		regulator.step(engine)
+		regulator.advance(0.05f, 0.25f)
+		assertEquals(0.25, regulator.pendingSeconds, DELTA)
+		assertEquals(750L, SimulationMetrics.droppedSimulationMs.total - droppedBefore)
+
+		// At least one step is always kept, even with a tiny limit
+		regulator.advance(1f, 0.01f)
+		assertEquals(regulator.simulationDelta.toDouble(), regulator.pendingSeconds, DELTA)
+	}
+
+	@Test
+	fun achievedMultiplierIsMeasured() {
+		assertEquals(0f, regulator.achievedMultiplier)
+
+		// Keeping up: 0.5 s of real time, 0.5 s simulated
+		for (i in 0 until 10) {
+			regulator.advance(0.05f)
+			regulator.step(engine)
+			regulator.measureAchievedMultiplier(0.05f)
+			if (i < 9) {
+				assertEquals(0f, regulator.achievedMultiplier, "Measured too early")
+			}
+		}
+		assertEquals(1f, regulator.achievedMultiplier, DELTA.toFloat())
+
+		// Falling behind: only every other step is simulated
+		for (i in 0 until 10) {
+			regulator.advance(0.05f, 0.05f)
+			if (i % 2 == 0) {
+				regulator.step(engine)
+			}
+			regulator.measureAchievedMultiplier(0.05f)
+		}
+		assertEquals(0.5f, regulator.achievedMultiplier, DELTA.toFloat())
+	}
+
+	private companion object {
+		const val DELTA = 1e-5
+	}
+}
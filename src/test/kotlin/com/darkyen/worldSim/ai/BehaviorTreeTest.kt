@@ -0,0 +1,207 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.SimulationRandom
+import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.Tile
+import com.darkyen.worldSim.ecs.AICoroutineDispatcher
+import com.darkyen.worldSim.ecs.AIContext
+import com.darkyen.worldSim.ecs.AIWorld
+import com.darkyen.worldSim.ecs.AgentActivity
+import com.darkyen.worldSim.ecs.AgentC
+import com.darkyen.worldSim.ecs.AgentSpatialLookup
+import com.darkyen.worldSim.ecs.AgentSpeechC
+import com.darkyen.worldSim.ecs.COMPONENT_DOMAIN
+import com.darkyen.worldSim.ecs.CHUNK_SIZE
+import com.darkyen.worldSim.ecs.ChunkPopulator
+import com.darkyen.worldSim.ecs.PathFinder
+import com.darkyen.worldSim.ecs.PositionC
+import com.darkyen.worldSim.ecs.SpatialLookupService
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldGenerator
+import com.darkyen.worldSim.ecs.tileKey
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.Vec2
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import kotlin.coroutines.resume
+
+/**
+ *
+ */
+class BehaviorTreeTest {
+
+	private object GrassGenerator : WorldGenerator {
+		override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {
+			for (x in 0 until CHUNK_SIZE) {
+				for (y in 0 until CHUNK_SIZE) {
+					chunk.setTile((chunkPos + Vec2(x, y)).tileKey, Tile.GRASS)
+				}
+			}
+		}
+	}
+
+	private object NoPopulator : ChunkPopulator {
+		override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+	}
+
+	/** Returns [results] in order, one on each tick, over and over, without requesting any wake ups. */
+	private class Scripted(private vararg val results:BehaviorStatus) : BehaviorNode() {
+		var ticks = 0
+
+		override fun tick(agent: BehaviorAgent): BehaviorStatus {
+			return results[ticks++ % results.size]
+		}
+	}
+
+	private val world = World(GrassGenerator, NoPopulator)
+	private val engine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(SimulationSpeedRegulator()),
+			world, PathFinder(deterministic = true), AgentSpatialLookup())
+	private val dispatcher = AICoroutineDispatcher(deterministic = true)
+	private val start = Vec2(100, 100)
+
+	/** Create an agent at [start] with the tree of [root]. Its brain is driven by the test, not by the dispatcher. */
+	private fun createAgent(root:BehaviorNode):BehaviorAgent {
+		val entity = engine.createEntity()
+		engine.getMapper(AgentC::class.java).add(entity, AgentC(false))
+		engine.getMapper(PositionC::class.java).create(entity).pos = start
+		engine.update()
+
+		val spatialLookup = engine.getService(AgentSpatialLookup::class.java)
+		val aiWorld = AIWorld(world,
+				engine.getMapper(PositionC::class.java),
+				engine.getMapper(AgentC::class.java),
+				engine.getMapper(AgentSpeechC::class.java),
+				dispatcher,
+				engine.getService(PathFinder::class.java),
+				spatialLookup,
+				listOf<SpatialLookupService>(spatialLookup),
+				SimulationRandom(1L))
+		return BehaviorAgent(BehaviorTree(root), AIContext(entity, aiWorld), dispatcher)
+	}
+
+	/** Finish the step which the agent has started, like PositionS would. */
+	private fun arrive(position:PositionC) {
+		position.pos += position.movement.vec
+		position.movement = Direction.NONE
+	}
+
+	private fun assertStateZeroed(agent:BehaviorAgent) {
+		assertTrue(agent.state.all { it == 0 }, "State left: ${agent.state.contentToString()}")
+	}
+
+	@Test
+	fun sequence() {
+		val first = Scripted(BehaviorStatus.SUCCESS)
+		val second = Scripted(BehaviorStatus.RUNNING, BehaviorStatus.SUCCESS)
+		val third = Scripted(BehaviorStatus.FAILURE)
+		val sequence = Sequence(first, second, third)
+		val agent = createAgent(sequence)
+
+		assertEquals(BehaviorStatus.RUNNING, sequence.tick(agent))
+		assertEquals(1, first.ticks)
+		assertEquals(1, second.ticks)
+		assertEquals(0, third.ticks)
+
+		// Continues with the running child, stops at the failing one
+		assertEquals(BehaviorStatus.FAILURE, sequence.tick(agent))
+		assertEquals(1, first.ticks)
+		assertEquals(2, second.ticks)
+		assertEquals(1, third.ticks)
+		assertStateZeroed(agent)
+
+		val succeeding = Sequence(Scripted(BehaviorStatus.SUCCESS), Scripted(BehaviorStatus.SUCCESS))
+		assertEquals(BehaviorStatus.SUCCESS, succeeding.tick(createAgent(succeeding)))
+	}
+
+	@Test
+	fun selector() {
+		val first = Scripted(BehaviorStatus.FAILURE)
+		val second = Scripted(BehaviorStatus.RUNNING, BehaviorStatus.SUCCESS)
+		val third = Scripted(BehaviorStatus.SUCCESS)
+		val selector = Selector(first, second, third)
+		val agent = createAgent(selector)
+
+		assertEquals(BehaviorStatus.RUNNING, selector.tick(agent))
+		assertEquals(1, first.ticks)
+		assertEquals(1, second.ticks)
+
+		// Continues with the running child, stops at the succeeding one
+		assertEquals(BehaviorStatus.SUCCESS, selector.tick(agent))
+		assertEquals(1, first.ticks)
+		assertEquals(2, second.ticks)
+		assertEquals(0, third.ticks)
+		assertStateZeroed(agent)
+
+		val failing = Selector(Scripted(BehaviorStatus.FAILURE), Scripted(BehaviorStatus.FAILURE))
+		assertEquals(BehaviorStatus.FAILURE, failing.tick(createAgent(failing)))
+	}
+
+	@Test
+	fun wanderWalksAgainAfterFinishing() {
+		val agent = createAgent(Wander(3))
+		val position = agent.ai.position
+
+		for (run in 0 until 3) {
+			for (step in 0 until 3) {
+				agent.resume(Unit)
+				assertNotEquals(Direction.NONE, position.movement, "run $run, step $step")
+				arrive(position)
+			}
+			// Wander is done, the tree starts pondering
+			agent.resume(Unit)
+			assertEquals(Direction.NONE, position.movement)
+			assertStateZeroed(agent)
+		}
+	}
+
+	@Test
+	fun walkToTarget() {
+		dispatcher.addFocus(start, 10)
+		val agent = createAgent(WalkToTarget(false))
+		val target = start + Vec2(4, 3)
+		agent.target = target
+		val position = agent.ai.position
+
+		// Searches for the path first
+		agent.resume(Unit)
+		assertEquals(Direction.NONE, position.movement)
+		assertEquals(AgentActivity.PONDERING, agent.ai.agent.activity)
+
+		var steps = 0
+		while (true) {
+			agent.resume(Unit)
+			if (position.movement == Direction.NONE) {
+				break
+			}
+			arrive(position)
+			steps++
+			assertTrue(steps <= 7, "Walks too far")
+		}
+		assertEquals(target, position.pos)
+		assertEquals(7, steps)
+		assertStateZeroed(agent)
+	}
+	@Test
+	fun walkToFarTargetInJumpsWhenNotObserved() {
+		val agent = createAgent(WalkToTarget(true))
+		val target = start + Vec2(3 * CHUNK_SIZE, 5)
+		agent.target = target
+		val position = agent.ai.position
+
+		var wakeUps = 0
+		do {
+			agent.resume(Unit)
+			assertEquals(Direction.NONE, position.movement, "Walks instead of jumping")
+			wakeUps++
+			assertTrue(wakeUps < 100, "Does not arrive")
+		} while (agent.state.any { it != 0 })
+
+		assertEquals(1, position.pos.manhDst(target))
+		assertEquals(0, agent.waypoints.size)
+		assertStateZeroed(agent)
+	}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.TileType
+import com.darkyen.worldSim.ecs.BENCHMARK_AREA_SIZE
+import com.darkyen.worldSim.ecs.benchmarkWorld
+import com.darkyen.worldSim.util.BENCHMARK_SEED
+import com.darkyen.worldSim.util.GdxLongArray
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.benchmark
+import kotlin.random.Random
+
+/** [WorldPathFinder.findPath] between random land tiles of the seeded [benchmarkWorld], at most 64 tiles apart. */
+fun benchmarkPathFinding() {
+	val world = benchmarkWorld()
+	val random = Random(BENCHMARK_SEED)
+	val starts = GdxLongArray()
+	val ends = GdxLongArray()
+	while (starts.size < 256) {
+		val from = Vec2(random.nextInt(BENCHMARK_AREA_SIZE), random.nextInt(BENCHMARK_AREA_SIZE))
+		val to = from + Vec2(random.nextInt(-32, 33), random.nextInt(-32, 33))
+		if (world.getTile(from).type == TileType.LAND && world.getTile(to).type == TileType.LAND) {
+			starts.add(from.packed)
+			ends.add(to.packed)
+		}
+	}
+	val endPositions = Array(ends.size) { longArrayOf(ends[it]) }
+
+	val pathFinder = WorldPathFinder(world)
+	var i = 0
+	benchmark("WorldPathFinder.findPath") {
+		val index = i++ and 255
+		val path = pathFinder.findPath(Vec2(starts[index]), Vec2(ends[index]), endPositions[index])
+		path?.length?.toLong() ?: -1L
+	}
+}
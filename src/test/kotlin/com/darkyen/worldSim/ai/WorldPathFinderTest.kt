@@ -0,0 +1,135 @@
+package com.darkyen.worldSim.ai
+
+import com.darkyen.worldSim.Tile
+import com.darkyen.worldSim.ecs.CHUNK_SIZE
+import com.darkyen.worldSim.ecs.ChunkPopulator
+import com.darkyen.worldSim.ecs.World
+import com.darkyen.worldSim.ecs.WorldGenerator
+import com.darkyen.worldSim.ecs.tileKey
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.directionTo
+import com.github.antag99.retinazer.Engine
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class WorldPathFinderTest {
+
+	/** Grass everywhere, except for a rock wall at x = [WALL_X], which has a gap at y = [WALL_GAP_Y]. */
+	private object WallGenerator : WorldGenerator {
+		override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {
+			for (x in 0 until CHUNK_SIZE) {
+				for (y in 0 until CHUNK_SIZE) {
+					val pos = chunkPos + Vec2(x, y)
+					val tile = if (pos.x == WALL_X && pos.y != WALL_GAP_Y) Tile.ROCK else Tile.GRASS
+					chunk.setTile(pos.tileKey, tile)
+				}
+			}
+		}
+	}
+
+	private object NoPopulator : ChunkPopulator {
+		override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+	}
+
+	private fun checkPath(from:Vec2, to:Vec2, path:WorldPathFinder.Path, world:World) {
+		var current = from
+		for (i in 0 until path.length) {
+			val next = path.node(i)
+			current.directionTo(next)
+			assertEquals(Tile.GRASS, world.getTile(next))
+			current = next
+		}
+		assertEquals(to, current)
+	}
+
+	@Test
+	fun straightPath() {
+		val world = World(WallGenerator, NoPopulator)
+		val pathFinder = WorldPathFinder(world)
+		val from = Vec2(10, 10)
+		val to = Vec2(20, 15)
+		val path = pathFinder.findPath(from, to, longArrayOf(to.packed))
+		assertNotNull(path)
+		assertEquals(15, path!!.length)
+		checkPath(from, to, path, world)
+	}
+
+	@Test
+	fun straightPathInLargeWorld() {
+		val world = World(WallGenerator, NoPopulator, 8192)
+		val pathFinder = WorldPathFinder(world)
+		val from = Vec2(8180, 8100)
+		val to = Vec2(8191, 8120)
+		val path = pathFinder.findPath(from, to, longArrayOf(to.packed))
+		assertNotNull(path)
+		assertEquals(31, path!!.length)
+		checkPath(from, to, path, world)
+	}
+
+	@Test
+	fun pathAroundWall() {
+		val world = World(WallGenerator, NoPopulator)
+		val pathFinder = WorldPathFinder(world)
+		val from = Vec2(WALL_X - 5, WALL_GAP_Y + 20)
+		val to = Vec2(WALL_X + 5, WALL_GAP_Y + 20)
+		// Repeatedly, to check that searches do not influence each other
+		for (i in 0 until 3) {
+			val path = pathFinder.findPath(from, to, longArrayOf(to.packed))
+			assertNotNull(path)
+			assertEquals(10 + 2 * 20, path!!.length)
+			checkPath(from, to, path, world)
+		}
+	}
+
+	@Test
+	fun unreachable() {
+		val world = World(WallGenerator, NoPopulator)
+		val pathFinder = WorldPathFinder(world)
+		val from = Vec2(10, 10)
+		val to = Vec2(WALL_X, WALL_GAP_Y + 1)
+		assertNull(pathFinder.findPathWithMaxComplexity(from, to, longArrayOf(to.packed), 3f))
+	}
+
+	@Test
+	fun hierarchicalPathAroundWall() {
+		val world = World(WallGenerator, NoPopulator)
+		val hierarchicalPathFinder = HierarchicalPathFinder(world)
+		val pathFinder = WorldPathFinder(world)
+		val from = Vec2(WALL_X - 30, WALL_GAP_Y + 60)
+		val to = Vec2(WALL_X + 30, WALL_GAP_Y + 60)
+
+		val waypoints = hierarchicalPathFinder.findWaypoints(from, to, false)
+		assertNotNull(waypoints)
+		var current = from
+		var length = 0
+		for (i in 0 .. waypoints!!.length) {
+			val next = if (i == waypoints.length) to else waypoints.node(i)
+			val segment = pathFinder.findPath(current, next, longArrayOf(next.packed))
+			assertNotNull(segment)
+			checkPath(current, next, segment!!, world)
+			length += segment.length
+			current = next
+		}
+		// Portals are not exactly on the optimal path, but it should not be much longer
+		assertTrue(length >= 60 + 2 * 60)
+		assertTrue(length <= (60 + 2 * 60) * 3 / 2, length.toString())
+	}
+
+	@Test
+	fun hierarchicalPathToUnreachable() {
+		val world = World(WallGenerator, NoPopulator)
+		val hierarchicalPathFinder = HierarchicalPathFinder(world)
+		assertNull(hierarchicalPathFinder.findWaypoints(Vec2(10, 10), Vec2(WALL_X, WALL_GAP_Y + 1), false))
+	}
+
+	private companion object {
+		const val WALL_X = 50
+		const val WALL_GAP_Y = 40
+	}
+}
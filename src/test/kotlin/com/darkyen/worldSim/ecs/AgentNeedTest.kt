@@ -0,0 +1,55 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.util.StreamRandom
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class AgentNeedTest {
+
+	/** Average change of [SAMPLES] updates of [tendency] over [hours], done as a single update of that many hours */
+	private fun averageOfOneUpdate(random:StreamRandom, tendency:Float, hours:Int):Double {
+		var sum = 0L
+		for (i in 0 until SAMPLES) {
+			sum += random.roundRandomly(tendency * hours)
+		}
+		return sum.toDouble() / SAMPLES
+	}
+
+	/** Average change of [SAMPLES] updates of [tendency] over [hours], done hour by hour */
+	private fun averageOfHourlyUpdates(random:StreamRandom, tendency:Float, hours:Int):Double {
+		var sum = 0L
+		for (i in 0 until SAMPLES) {
+			for (hour in 0 until hours) {
+				sum += random.roundRandomly(tendency)
+			}
+		}
+		return sum.toDouble() / SAMPLES
+	}
+
+	@Test
+	fun unobservedUpdateDriftsLikeHourlyUpdates() {
+		val random = StreamRandom(StreamRandom.streamKey(1L, 1, 1L))
+		for (tendency in floatArrayOf(-10f, -8f, -2f, -1f, -0.83f, -0.5f, 0f, 0.3f, 1f, 2f)) {
+			val expected = tendency * 6.0
+			assertEquals(expected, averageOfOneUpdate(random, tendency, 6), 0.05, "1 x 6 h of $tendency")
+			assertEquals(expected, averageOfHourlyUpdates(random, tendency, 6), 0.05, "6 x 1 h of $tendency")
+		}
+	}
+
+	@Test
+	fun wholeTendenciesAreExact() {
+		val random = StreamRandom(StreamRandom.streamKey(1L, 1, 2L))
+		for (i in 0 until 1000) {
+			assertEquals(-1, random.roundRandomly(-1f))
+			assertEquals(-6, random.roundRandomly(-6f))
+			assertEquals(2, random.roundRandomly(2f))
+		}
+	}
+
+	private companion object {
+		const val SAMPLES = 100_000
+	}
+}
@@ -2,11 +2,16 @@ package com.darkyen.worldSim.ecs
 
 import com.darkyen.worldSim.EntityChunkPopulator
 import com.darkyen.worldSim.NoiseWorldGenerator
+import com.darkyen.worldSim.SimulationRandom
 import com.darkyen.worldSim.SimulationSpeedRegulator
 import com.darkyen.worldSim.ai.loop
+import com.darkyen.worldSim.util.Vec2
 import com.github.antag99.retinazer.Engine
 import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.coroutines.coroutineContext
 
 /**
@@ -21,7 +26,7 @@ class IntelligentTest {
 		val engine = Engine(COMPONENT_DOMAIN,
 				SimpleWireResolver(simulationSpeedRegulator),
 
-				World(NoiseWorldGenerator(), EntityChunkPopulator),
+				World(NoiseWorldGenerator(), EntityChunkPopulator()),
 				PathFinder(),
 				AgentSpatialLookup(),
 
@@ -53,4 +58,57 @@ class IntelligentTest {
 		}
 	}
 
+	/** Deterministic updates have no time budget, so all brains which are due must wake up in the same update. */
+	private fun allDueBrainsWakeUp(brainThreads:Int) {
+		val engine = Engine(COMPONENT_DOMAIN,
+				SimpleWireResolver(SimulationSpeedRegulator()),
+
+				World(NoiseWorldGenerator(), EntityChunkPopulator()),
+				PathFinder(deterministic = true),
+				AgentSpatialLookup(),
+
+				IntelligentS(brainThreads, SimulationRandom(1L, deterministic = true)))
+
+		val wakeUps = AtomicInteger()
+		val brain = IntelligentC {
+			with(coroutineContext[AIContext]!!) {
+				loop {
+					delay(AgentActivity.SLEEPING, 100L)
+					wakeUps.incrementAndGet()
+				}
+			}
+		}
+		for (i in 0 until BRAIN_COUNT) {
+			val entity = engine.createEntity()
+			engine.getMapper(AgentC::class.java).add(entity, AgentC(false))
+			engine.getMapper(PositionC::class.java).create(entity).pos = Vec2(i % 256, i / 256)
+			engine.getMapper(AgentSpeechC::class.java).add(entity, AgentSpeechC())
+			engine.getMapper(IntelligentC::class.java).add(entity, brain)
+		}
+
+		val stats = engine.getService(IntelligentS::class.java).schedulingStats
+		// 50 ms steps, brains sleep for 100 ms
+		engine.update()
+		assertEquals(0, wakeUps.get())
+		engine.update()
+		assertEquals(BRAIN_COUNT, wakeUps.get())
+		assertEquals(BRAIN_COUNT, stats.wakeUps)
+		assertEquals(0, stats.lateWakeUps)
+		assertFalse(stats.overBudget)
+	}
+
+	@Test
+	fun allDueBrainsWakeUpOnOneThread() {
+		allDueBrainsWakeUp(1)
+	}
+
+	@Test
+	fun allDueBrainsWakeUpOnMoreThreads() {
+		allDueBrainsWakeUp(4)
+	}
+
+	private companion object {
+		/** More than a single batch of brains, both when running on one thread and on more */
+		const val BRAIN_COUNT = 5000
+	}
 }
\ No newline at end of file
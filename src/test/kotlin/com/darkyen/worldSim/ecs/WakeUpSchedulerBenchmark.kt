@@ -0,0 +1,55 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.ai.DRINK_DURATION_MS
+import com.darkyen.worldSim.ai.FOOD_EAT_TIME_MS
+import com.darkyen.worldSim.ai.GATHERING_DURATION_MS
+import com.darkyen.worldSim.ai.HUNTING_DURATION_MS
+import com.darkyen.worldSim.ai.SLEEP_DURATION_MS_PER_POINT
+import com.darkyen.worldSim.ai.TALK_DURATION_MS_PER_POINT
+import com.darkyen.worldSim.ecs.AICoroutineDispatcher.ContinuationNode
+import kotlin.random.Random
+
+/** Typical brain delays: mostly short waits for movement, then the fixed activity durations. */
+private val DELAYS = longArrayOf(
+		0L, 0L, 100L, 250L, 500L, 700L, 1000L, 1000L,
+		TALK_DURATION_MS_PER_POINT, DRINK_DURATION_MS, FOOD_EAT_TIME_MS, GATHERING_DURATION_MS,
+		SLEEP_DURATION_MS_PER_POINT, HUNTING_DURATION_MS)
+
+/**
+ * Simulate [agents] brains for [simulatedMs] in 50 ms ticks, each brain sleeping for one of [DELAYS] whenever it wakes up.
+ * @return nanoseconds per one wake up (poll + add)
+ */
+private fun benchmark(scheduler:WakeUpScheduler, agents:Int, simulatedMs:Long):Double {
+	val random = Random(0)
+	for (i in 0 until agents) {
+		scheduler.add(ContinuationNode(), random.nextLong(0, 1000))
+	}
+
+	var wakeUps = 0L
+	var time = 0L
+	val start = System.nanoTime()
+	while (time < simulatedMs) {
+		time += 50
+		while (true) {
+			val node = scheduler.pollReady(time) ?: break
+			scheduler.add(node, time + DELAYS[(wakeUps % DELAYS.size).toInt()])
+			wakeUps++
+		}
+	}
+	return (System.nanoTime() - start).toDouble() / wakeUps
+}
+
+/** Compare [HeapWakeUpScheduler] and [TimingWheelScheduler] with a realistic load. */
+fun main() {
+	for (agents in intArrayOf(1_000, 10_000, 100_000)) {
+		// Warm up
+		for (i in 0 until 3) {
+			benchmark(HeapWakeUpScheduler(), agents, 60_000)
+			benchmark(TimingWheelScheduler(), agents, 60_000)
+		}
+
+		val heap = benchmark(HeapWakeUpScheduler(), agents, 600_000)
+		val wheel = benchmark(TimingWheelScheduler(), agents, 600_000)
+		println("$agents agents: heap %.1f ns, timing wheel %.1f ns per wake up".format(heap, wheel))
+	}
+}
@@ -0,0 +1,102 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.ecs.AICoroutineDispatcher.ContinuationNode
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+/**
+ *
+ */
+class WakeUpSchedulerTest {
+
+	/** Simulate brains which sleep for random durations and check that they are woken up exactly when they should.
+	 * Occasionally remove one, to check that it does not break the rest. */
+	private fun checkScheduler(scheduler:WakeUpScheduler) {
+		val random = Random(123)
+		val nodes = Array(1000) { ContinuationNode() }
+		var time = 0L
+		for (node in nodes) {
+			scheduler.add(node, time + random.nextLong(0, 100_000))
+		}
+
+		var woken = 0
+		while (time < 2_000_000L) {
+			time += random.nextLong(1, 100)
+			while (true) {
+				val node = scheduler.pollReady(time) ?: break
+				assertTrue(node.resumeAt <= time)
+				woken++
+				val delay = when (random.nextInt(4)) {
+					0 -> 0L
+					1 -> random.nextLong(0, 100)
+					2 -> random.nextLong(0, 10_000)
+					else -> random.nextLong(0, 1_000_000)
+				}
+				scheduler.add(node, time + delay)
+			}
+
+			// Some die and are replaced by newborns
+			if (random.nextInt(10) == 0) {
+				val node = nodes[random.nextInt(nodes.size)]
+				scheduler.remove(node)
+				scheduler.add(node, time + random.nextLong(1, 10_000))
+			}
+
+			for (node in nodes) {
+				// Nodes that are not ready must not be overlooked
+				assertTrue(node.resumeAt > time, "Node late")
+			}
+		}
+
+		assertEquals(nodes.size, scheduler.size)
+		assertTrue(woken > nodes.size)
+	}
+
+	@Test
+	fun heap() {
+		checkScheduler(HeapWakeUpScheduler())
+	}
+
+	@Test
+	fun timingWheel() {
+		checkScheduler(TimingWheelScheduler())
+	}
+
+	@Test
+	fun timingWheelOrder() {
+		val scheduler = TimingWheelScheduler()
+		val first = ContinuationNode()
+		val second = ContinuationNode()
+		val later = ContinuationNode()
+		val muchLater = ContinuationNode()
+		scheduler.add(muchLater, 1L shl 38)
+		scheduler.add(later, 5000)
+		scheduler.add(first, 3000)
+		scheduler.add(second, 3000)
+
+		assertNull(scheduler.pollReady(2999))
+		assertEquals(first, scheduler.pollReady(3000))
+		assertEquals(second, scheduler.pollReady(3000))
+		assertNull(scheduler.pollReady(4999))
+		assertEquals(later, scheduler.pollReady(5000))
+		assertNull(scheduler.pollReady((1L shl 38) - 1))
+		assertEquals(muchLater, scheduler.pollReady(1L shl 40))
+		assertEquals(0, scheduler.size)
+	}
+
+	@Test
+	fun timingWheelRemove() {
+		val scheduler = TimingWheelScheduler()
+		val removed = ContinuationNode()
+		val kept = ContinuationNode()
+		scheduler.add(removed, 100_000)
+		scheduler.add(kept, 100_000)
+		scheduler.remove(removed)
+		assertEquals(1, scheduler.size)
+		assertEquals(kept, scheduler.pollReady(100_000))
+		assertNull(scheduler.pollReady(1_000_000))
+	}
+}
@@ -0,0 +1,136 @@
+package com.darkyen.worldSim.ecs
+
+import com.darkyen.worldSim.NoiseWorldGenerator
+import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.ai.loop
+import com.darkyen.worldSim.util.BENCHMARK_SEED
+import com.darkyen.worldSim.util.Vec2
+import com.darkyen.worldSim.util.benchmark
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import kotlin.coroutines.coroutineContext
+import kotlin.random.Random
+
+/** Side of the generated area of [benchmarkWorld], in chunks */
+const val BENCHMARK_AREA_CHUNKS = 8
+/** Side of the generated area of [benchmarkWorld], in tiles */
+const val BENCHMARK_AREA_SIZE = BENCHMARK_AREA_CHUNKS * CHUNK_SIZE
+
+private const val AGENTS = 10_000
+
+private object NoPopulator : ChunkPopulator {
+	override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+}
+
+/** World generated from [BENCHMARK_SEED], with the area of [BENCHMARK_AREA_SIZE] tiles in the corner already generated. */
+fun benchmarkWorld():World {
+	val world = World(NoiseWorldGenerator(BENCHMARK_SEED), NoPopulator)
+	for (x in 0 until BENCHMARK_AREA_CHUNKS) {
+		for (y in 0 until BENCHMARK_AREA_CHUNKS) {
+			world.getChunk(Vec2.ofChunkCorner(x, y))
+		}
+	}
+	return world
+}
+
+/** Random positions in the generated area of [benchmarkWorld], as packed [Vec2]s. Size is a power of two. */
+private fun benchmarkPositions():LongArray {
+	val random = Random(BENCHMARK_SEED)
+	return LongArray(4096) { Vec2(random.nextInt(BENCHMARK_AREA_SIZE), random.nextInt(BENCHMARK_AREA_SIZE)).packed }
+}
+
+/** [World.getTile], [World.getChunk] and [NoiseWorldGenerator.generateChunk]. */
+fun benchmarkWorldAccess() {
+	val world = benchmarkWorld()
+	val positions = benchmarkPositions()
+	val mask = positions.size - 1
+	var i = 0
+
+	benchmark("World.getTile", batchSize = 1024) {
+		world.getTile(Vec2(positions[i++ and mask])).ordinal.toLong()
+	}
+	benchmark("World.getChunk", batchSize = 1024) {
+		world.getChunk(Vec2(positions[i++ and mask]).chunkKey)!!.version.toLong()
+	}
+
+	val generator = NoiseWorldGenerator(BENCHMARK_SEED)
+	benchmark("NoiseWorldGenerator.generateChunk") {
+		val chunk = World.Chunk()
+		val chunkIndex = i++ and (BENCHMARK_AREA_CHUNKS * BENCHMARK_AREA_CHUNKS - 1)
+		generator.generateChunk(world, chunk, Vec2.ofChunkCorner(chunkIndex / BENCHMARK_AREA_CHUNKS, chunkIndex % BENCHMARK_AREA_CHUNKS))
+		chunk.version.toLong()
+	}
+}
+
+/** [SpatialLookupService.forEntitiesNear] with [AGENTS] agents in the generated area. */
+fun benchmarkSpatialLookup() {
+	val lookup = AgentSpatialLookup()
+	val engine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(), benchmarkWorld(), lookup)
+	val positionC = engine.getMapper(PositionC::class.java)
+	val agentC = engine.getMapper(AgentC::class.java)
+	val random = Random(BENCHMARK_SEED)
+	for (a in 0 until AGENTS) {
+		val entity = engine.createEntity()
+		positionC.create(entity).pos = Vec2(random.nextInt(BENCHMARK_AREA_SIZE), random.nextInt(BENCHMARK_AREA_SIZE))
+		agentC.add(entity, AgentC(random.nextBoolean()))
+	}
+	engine.update()
+
+	val positions = benchmarkPositions()
+	val mask = positions.size - 1
+	var i = 0
+	benchmark("SpatialLookupService.forEntitiesNear(16)", batchSize = 16) {
+		var distances = 0L
+		lookup.forEntitiesNear(Vec2(positions[i++ and mask]), 16) { _, distance ->
+			distances += distance
+		}
+		distances
+	}
+}
+
+/** Delays of the benchmarked brains, similar to what real brains do */
+private val BRAIN_DELAYS = longArrayOf(0L, 0L, 100L, 250L, 500L, 700L, 1000L, 1000L, 3000L, 10_000L)
+
+/** [AICoroutineDispatcher] scheduling and resuming [AGENTS] coroutine brains, which only sleep, in 50 ms updates. */
+fun benchmarkDispatcher() {
+	val simulationSpeedRegulator = SimulationSpeedRegulator()
+	simulationSpeedRegulator.simulationDelta = 0.05f
+	val intelligentS = IntelligentS()
+	val engine = Engine(COMPONENT_DOMAIN,
+			SimpleWireResolver(simulationSpeedRegulator),
+			benchmarkWorld(),
+			PathFinder(),
+			AgentSpatialLookup(),
+			intelligentS)
+
+	val sleeper = IntelligentC {
+		with(coroutineContext[AIContext]!!) {
+			var sleep = entity
+			loop {
+				sleep = sleep * 31 + 7
+				delay(AgentActivity.IDLE, BRAIN_DELAYS[(sleep and 0x7FFF_FFFF) % BRAIN_DELAYS.size])
+			}
+		}
+	}
+	val positionC = engine.getMapper(PositionC::class.java)
+	val agentC = engine.getMapper(AgentC::class.java)
+	val intelligentC = engine.getMapper(IntelligentC::class.java)
+	val random = Random(BENCHMARK_SEED)
+	for (a in 0 until AGENTS) {
+		val entity = engine.createEntity()
+		positionC.create(entity).pos = Vec2(random.nextInt(BENCHMARK_AREA_SIZE), random.nextInt(BENCHMARK_AREA_SIZE))
+		agentC.add(entity, AgentC(random.nextBoolean()))
+		intelligentC.add(entity, sleeper)
+	}
+	engine.update()
+
+	var updates = 0L
+	var wakeUps = 0L
+	val nanosPerUpdate = benchmark("AICoroutineDispatcher update ($AGENTS brains)") {
+		engine.update()
+		updates++
+		wakeUps += intelligentS.schedulingStats.wakeUps
+		wakeUps
+	}
+	println("%-45s %12.1f ns/wake up".format("", nanosPerUpdate * updates / wakeUps))
+}
@@ -1,8 +1,39 @@
 package com.darkyen.worldSim.ecs
 
+import com.darkyen.worldSim.FEATURES
+import com.darkyen.worldSim.Item
+import com.darkyen.worldSim.SimulationRandom
+import com.darkyen.worldSim.SimulationSpeedRegulator
+import com.darkyen.worldSim.TILES
+import com.darkyen.worldSim.Tile
+import com.darkyen.worldSim.TileType
+import com.darkyen.worldSim.ai.BehaviorAgent
+import com.darkyen.worldSim.ai.BehaviorNode
+import com.darkyen.worldSim.ai.BehaviorStatus
+import com.darkyen.worldSim.ai.BehaviorTree
+import com.darkyen.worldSim.ai.LOD_JUMP_LENGTH
+import com.darkyen.worldSim.ai.Sequence
+import com.darkyen.worldSim.ai.loop
+import com.darkyen.worldSim.ai.walkTo
+import com.darkyen.worldSim.util.Direction
+import com.darkyen.worldSim.util.GdxLongArray
 import com.darkyen.worldSim.util.Vec2
+import com.github.antag99.retinazer.Engine
+import com.github.antag99.retinazer.resolvers.SimpleWireResolver
+import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.coroutines.coroutineContext
+import kotlin.math.roundToLong
 
 /**
  *
@@ -39,4 +70,383 @@ class WorldTest {
 		}
 	}
 
-}
\ No newline at end of file
+	@Test
+	fun chunkDirectoryTest() {
+		// Not a multiple of the region size
+		val directory = ChunkDirectory(20)
+		val chunks = HashMap<Long, World.Chunk>()
+		for (chunkX in 0 until directory.sizeInChunks) {
+			for (chunkY in 0 until directory.sizeInChunks) {
+				val chunkKey = Vec2.ofChunkCorner(chunkX, chunkY).chunkKey
+				assertNull(directory[chunkKey])
+				val chunk = World.Chunk()
+				assertSame(chunk, directory.putIfAbsent(chunkKey, chunk))
+				assertSame(chunk, directory.putIfAbsent(chunkKey, World.Chunk()))
+				chunks[chunkKey] = chunk
+			}
+		}
+
+		for ((chunkKey, chunk) in chunks) {
+			assertSame(chunk, directory[chunkKey])
+			// Any tile of the chunk must map to the same chunk
+			assertSame(chunk, directory[Vec2(chunkKey).atTile(CHUNK_SIZE * CHUNK_SIZE - 1).chunkKey])
+		}
+	}
+
+	@Test
+	fun largestWorldTest() {
+		val generator = object : WorldGenerator {
+			override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {}
+		}
+		val populator = object : ChunkPopulator {
+			override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+		}
+		val world = World(generator, populator, MAX_WORLD_SIZE)
+		Engine(COMPONENT_DOMAIN, SimpleWireResolver(), world)
+
+		for (pos in arrayOf(Vec2(0, 0), Vec2(MAX_WORLD_SIZE - 1, 0), Vec2(0, MAX_WORLD_SIZE - 1), Vec2(MAX_WORLD_SIZE - 1, MAX_WORLD_SIZE - 1))) {
+			val chunk = world.getChunk(pos.chunkKey)
+			assertNotNull(chunk, "$pos")
+			chunk!!.setTile(pos.tileKey, Tile.FOREST)
+			assertSame(chunk, world.getChunk(pos.chunkKey))
+			assertEquals(Tile.FOREST, world.getChunk(pos.chunkKey)!!.getTile(pos.tileKey))
+		}
+		assertNull(world.getChunk(Vec2(MAX_WORLD_SIZE, 0).chunkKey))
+		assertNull(world.getChunk(Vec2(0, MAX_WORLD_SIZE).chunkKey))
+
+		assertThrows(IllegalArgumentException::class.java) {
+			World(generator, populator, MAX_WORLD_SIZE + CHUNK_SIZE)
+		}
+		assertThrows(IllegalArgumentException::class.java) {
+			ChunkDirectory(1 shl 25)
+		}
+	}
+
+	@Test
+	fun chunkDerivedDataTest() {
+		val chunk = World.Chunk()
+		for (tileKey in 0 until CHUNK_SIZE * CHUNK_SIZE) {
+			assertFalse(chunk.isPassable(tileKey))
+			assertEquals(1f, chunk.getMovementCost(tileKey))
+		}
+
+		for (tileKey in 0 until CHUNK_SIZE * CHUNK_SIZE) {
+			val tile = TILES[tileKey % TILES.size]
+			val feature = if (tileKey % 7 == 0) null else FEATURES[tileKey % FEATURES.size]
+			chunk.setTile(tileKey, tile)
+			chunk.setFeature(tileKey, feature)
+		}
+
+		for (tileKey in 0 until CHUNK_SIZE * CHUNK_SIZE) {
+			val tile = chunk.getTile(tileKey)
+			val feature = chunk.getFeature(tileKey)
+			assertEquals(TILES[tileKey % TILES.size], tile)
+			assertEquals(tile.type == TileType.LAND, chunk.isPassable(tileKey))
+			assertEquals(1f / movementSpeedMultiplier(feature), chunk.getMovementCost(tileKey), 0.05f)
+		}
+	}
+
+	@Test
+	fun chunkUnloadTest() {
+		var populated = 0
+		val world = World(object : WorldGenerator {
+			override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {}
+		}, object : ChunkPopulator {
+			override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {
+				populated++
+			}
+		})
+		val engine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(), world)
+
+		val pos = Vec2(40, 50)
+		val chunk = world.getChunk(pos.chunkKey)!!
+		chunk.setTile(pos.tileKey, Tile.GRASS)
+		chunk.setItemCount(pos.tileKey, Item.FOOD, 3)
+		val version = chunk.version
+		engine.update()
+		assertEquals(1, populated)
+
+		val wanted = GdxLongArray()
+		val unloaded = GdxLongArray()
+		// Idle for as many passes as allowed
+		for (i in 0 until 4) {
+			world.unloadUnwantedChunks(wanted, 3, unloaded)
+		}
+		assertEquals(0, unloaded.size)
+		world.unloadUnwantedChunks(wanted, 3, unloaded)
+		assertEquals(1, unloaded.size)
+		assertEquals(pos.chunkKey, unloaded.first())
+
+		val reloaded = world.getChunk(pos.chunkKey)!!
+		assertNotSame(chunk, reloaded)
+		assertEquals(Tile.GRASS, reloaded.getTile(pos.tileKey))
+		assertTrue(reloaded.isPassable(pos.tileKey))
+		assertEquals(3, reloaded.getItemCount(pos.tileKey, Item.FOOD))
+		assertEquals(version, reloaded.version)
+
+		engine.update()
+		assertEquals(1, populated)
+	}
+
+	@Test
+	fun snapshotTest() {
+		val generator = object : WorldGenerator {
+			override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {}
+		}
+		val populator = object : ChunkPopulator {
+			override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+		}
+		val world = World(generator, populator, 1024)
+		val engine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(), world)
+
+		val pos = Vec2(700, 300)
+		world.getChunk(pos)!!.setTile(pos.tileKey, Tile.FOREST)
+		val entity = engine.createEntity()
+		engine.getMapper(PositionC::class.java).create(entity).pos = pos
+		engine.getMapper(AgentC::class.java).add(entity, AgentC(true).also {
+			it.ageYears = 42
+			it.inventory[Item.FOOD.ordinal] = 5
+			it.positionMemoryType[0] = MemoryType.WATER_SOURCE_POSITION.ordinal.toByte()
+			it.positionMemoryLocation[0] = pos.packed
+		})
+		engine.update()
+
+		val file = Files.createTempFile("snapshot", ".wss")
+		try {
+			WorldSnapshot.save(file, engine, world, 1234L, emptyList())
+
+			val snapshot = WorldSnapshot.open(file)
+			assertEquals(1024, snapshot.worldSize)
+			assertEquals(1234L, snapshot.seed)
+			val loadedWorld = World(generator, populator, snapshot.worldSize, snapshot.createChunkStorage())
+			val loadedEngine = Engine(COMPONENT_DOMAIN, SimpleWireResolver(), loadedWorld)
+			snapshot.loadEntities(loadedEngine, emptyList())
+			loadedEngine.update()
+
+			assertEquals(Tile.FOREST, loadedWorld.getTile(pos))
+			assertEquals(1, loadedEngine.entities.size())
+			val loadedEntity = loadedEngine.entities.indices[0]
+			assertEquals(pos, loadedEngine.getMapper(PositionC::class.java)[loadedEntity]!!.pos)
+			val agent = loadedEngine.getMapper(AgentC::class.java)[loadedEntity]!!
+			assertTrue(agent.genderMale)
+			assertEquals(42, agent.ageYears)
+			assertEquals(5, agent.inventory[Item.FOOD.ordinal])
+			assertEquals(MemoryType.WATER_SOURCE_POSITION.ordinal.toByte(), agent.positionMemoryType[0])
+			assertEquals(pos.packed, agent.positionMemoryLocation[0])
+		} finally {
+			Files.delete(file)
+		}
+	}
+
+	/** Draws one random number and succeeds, so that the random counter of the brain moves. */
+	private class Roll : BehaviorNode() {
+		override fun tick(agent: BehaviorAgent): BehaviorStatus {
+			agent.ai.random.nextInt()
+			return BehaviorStatus.SUCCESS
+		}
+	}
+
+	/** Sleeps for [NAP_MS] once. */
+	private class Nap : BehaviorNode() {
+		override val stateSize: Int
+			get() = 1
+
+		override fun tick(agent: BehaviorAgent): BehaviorStatus {
+			if (agent.state[stateOffset] == 0) {
+				agent.state[stateOffset] = 1
+				agent.delay(AgentActivity.SLEEPING, NAP_MS)
+				return BehaviorStatus.RUNNING
+			}
+			agent.state[stateOffset] = 0
+			return BehaviorStatus.SUCCESS
+		}
+	}
+
+	/** Walks one tile east. */
+	private class Stroll : BehaviorNode() {
+		override val stateSize: Int
+			get() = 1
+
+		override fun tick(agent: BehaviorAgent): BehaviorStatus {
+			if (agent.state[stateOffset] == 0) {
+				if (!agent.walk(Direction.RIGHT)) {
+					return BehaviorStatus.FAILURE
+				}
+				agent.state[stateOffset] = 1
+				return BehaviorStatus.RUNNING
+			}
+			agent.state[stateOffset] = 0
+			return BehaviorStatus.SUCCESS
+		}
+	}
+
+	private val grassGenerator = object : WorldGenerator {
+		override fun generateChunk(world: World, chunk: World.Chunk, chunkPos: Vec2) {
+			for (tileKey in 0 until CHUNK_SIZE * CHUNK_SIZE) {
+				chunk.setTile(tileKey, Tile.GRASS)
+			}
+		}
+	}
+
+	private val noPopulator = object : ChunkPopulator {
+		override fun populateChunk(engine: Engine, chunk: World.Chunk, chunkPos: Vec2) {}
+	}
+
+	private fun createBrainEngine(world:World, regulator:SimulationSpeedRegulator):Engine {
+		return Engine(COMPONENT_DOMAIN, SimpleWireResolver(regulator),
+				world, PathFinder(deterministic = true), AgentSpatialLookup(),
+				IntelligentS(simulationRandom = SimulationRandom(1234L, deterministic = true)))
+	}
+
+	@Test
+	fun brainSnapshotTest() {
+		val sleeping = IntelligentC(BehaviorTree(Sequence(Roll(), Nap())))
+		val walking = IntelligentC(BehaviorTree(Sequence(Roll(), Stroll())))
+		val intelligences = listOf(sleeping, walking)
+
+		val regulator = SimulationSpeedRegulator()
+		val stepMs = (regulator.simulationDelta * 1000f).roundToLong()
+		val world = World(grassGenerator, noPopulator)
+		val engine = createBrainEngine(world, regulator)
+		val positionMapper = engine.getMapper(PositionC::class.java)
+		val agentMapper = engine.getMapper(AgentC::class.java)
+		val intelligentMapper = engine.getMapper(IntelligentC::class.java)
+		for (intelligence in intelligences) {
+			val entity = engine.createEntity()
+			positionMapper.create(entity).pos = Vec2(100, 100)
+			agentMapper.add(entity, AgentC(false))
+			intelligentMapper.add(entity, intelligence)
+		}
+		engine.update()
+		engine.update()
+
+		val intelligentS = engine.getService(IntelligentS::class.java)
+		val sleeper = engine.entities.indices[0]
+		val walker = engine.entities.indices[1]
+		val sleeperCheckpoint = intelligentS.checkpointBrain(sleeper)
+		val walkerCheckpoint = intelligentS.checkpointBrain(walker)
+		assertEquals(NAP_MS - 2 * stepMs, sleeperCheckpoint.wakeUpMs)
+		assertEquals(BrainCheckpoint.WAITS_FOR_MOVEMENT, walkerCheckpoint.wakeUpMs)
+		assertEquals(Direction.RIGHT, positionMapper[walker]!!.movement)
+		assertEquals(AgentActivity.SLEEPING, agentMapper[sleeper]!!.activity)
+		assertEquals(AgentActivity.WALKING, agentMapper[walker]!!.activity)
+
+		val file = Files.createTempFile("snapshot", ".wss")
+		try {
+			WorldSnapshot.save(file, engine, world, 1234L, intelligences)
+
+			val snapshot = WorldSnapshot.open(file)
+			val loadedRegulator = SimulationSpeedRegulator()
+			val loadedEngine = createBrainEngine(World(grassGenerator, noPopulator, snapshot.worldSize, snapshot.createChunkStorage()), loadedRegulator)
+			snapshot.loadEntities(loadedEngine, intelligences)
+			loadedEngine.update()
+
+			val loadedIntelligentS = loadedEngine.getService(IntelligentS::class.java)
+			val loadedPositionMapper = loadedEngine.getMapper(PositionC::class.java)
+			val loadedIntelligentMapper = loadedEngine.getMapper(IntelligentC::class.java)
+			val loadedEntities = loadedEngine.entities.indices
+			var loadedSleeper = -1
+			var loadedWalker = -1
+			for (i in 0 until loadedEntities.size) {
+				val entity = loadedEntities[i]
+				when (loadedIntelligentMapper[entity]) {
+					sleeping -> loadedSleeper = entity
+					walking -> loadedWalker = entity
+				}
+			}
+
+			// Sleeping agent wakes up at the same time, with the same node state and random counter
+			val restoredSleeper = loadedIntelligentS.checkpointBrain(loadedSleeper)
+			assertEquals(sleeperCheckpoint.wakeUpMs - stepMs, restoredSleeper.wakeUpMs)
+			assertArrayEquals(sleeperCheckpoint.behaviorState, restoredSleeper.behaviorState)
+			assertArrayEquals(intArrayOf(1, 1), restoredSleeper.behaviorState)
+			assertEquals(AgentActivity.SLEEPING, loadedEngine.getMapper(AgentC::class.java)[loadedSleeper]!!.activity)
+			assertEquals(sleeperCheckpoint.randomCounter, restoredSleeper.randomCounter)
+			assertTrue(restoredSleeper.randomCounter > 0L)
+
+			// Walking agent still waits for its step
+			val restoredWalker = loadedIntelligentS.checkpointBrain(loadedWalker)
+			assertEquals(BrainCheckpoint.WAITS_FOR_MOVEMENT, restoredWalker.wakeUpMs)
+			assertArrayEquals(walkerCheckpoint.behaviorState, restoredWalker.behaviorState)
+			assertArrayEquals(intArrayOf(1, 1), restoredWalker.behaviorState)
+			assertEquals(walkerCheckpoint.randomCounter, restoredWalker.randomCounter)
+			assertTrue(restoredWalker.randomCounter > 0L)
+			assertEquals(Direction.RIGHT, loadedPositionMapper[loadedWalker]!!.movement)
+
+			// and finishes the tree when the step is done
+			loadedIntelligentS.continueEntity(loadedWalker)
+			loadedEngine.update()
+			val finishedWalker = loadedIntelligentS.checkpointBrain(loadedWalker)
+			assertArrayEquals(intArrayOf(0, 0), finishedWalker.behaviorState)
+			assertTrue(finishedWalker.wakeUpMs >= 0L)
+		} finally {
+			Files.delete(file)
+		}
+	}
+
+	@Test
+	fun coroutineBrainSnapshotTest() {
+		val start = Vec2(100, 100)
+		val target = start + Vec2(3 * LOD_JUMP_LENGTH, 0)
+		// Walks only the first time, a restored brain which started over would not walk at all
+		val firstRun = AtomicBoolean(true)
+		val walking = IntelligentC {
+			with(coroutineContext[AIContext]!!) {
+				if (firstRun.getAndSet(false)) {
+					walkTo(target)
+				}
+				loop {
+					delay(AgentActivity.PONDERING, 1000)
+				}
+			}
+		}
+		val intelligences = listOf(walking)
+
+		val world = World(grassGenerator, noPopulator)
+		val engine = createBrainEngine(world, SimulationSpeedRegulator())
+		val entity = engine.createEntity()
+		engine.getMapper(PositionC::class.java).create(entity).pos = start
+		engine.getMapper(AgentC::class.java).add(entity, AgentC(false))
+		engine.getMapper(IntelligentC::class.java).add(entity, walking)
+		engine.update()
+		engine.update()
+
+		// Nobody observes the agent, so it is in the middle of its first jump
+		val checkpoint = engine.getService(IntelligentS::class.java).checkpointBrain(entity)
+		assertEquals(BrainGoal.WALK_TO, checkpoint.goal)
+		assertEquals(target, checkpoint.target)
+		assertTrue(checkpoint.wakeUpMs > 0L)
+
+		val file = Files.createTempFile("snapshot", ".wss")
+		try {
+			WorldSnapshot.save(file, engine, world, 1234L, intelligences)
+
+			val snapshot = WorldSnapshot.open(file)
+			val loadedEngine = createBrainEngine(World(grassGenerator, noPopulator, snapshot.worldSize, snapshot.createChunkStorage()), SimulationSpeedRegulator())
+			snapshot.loadEntities(loadedEngine, intelligences)
+			loadedEngine.update()
+
+			// The goal is kept even when saved again before the brain wakes up
+			val loadedIntelligentS = loadedEngine.getService(IntelligentS::class.java)
+			val loaded = loadedEngine.entities.indices[0]
+			val restored = loadedIntelligentS.checkpointBrain(loaded)
+			assertEquals(BrainGoal.WALK_TO, restored.goal)
+			assertEquals(target, restored.target)
+
+			// and the brain finishes it
+			val loadedPosition = loadedEngine.getMapper(PositionC::class.java)[loaded]!!
+			var updates = 0
+			while (loadedPosition.pos != target) {
+				loadedEngine.update()
+				assertTrue(++updates < 100_000, "Does not arrive")
+			}
+			assertEquals(BrainGoal.NONE, loadedIntelligentS.checkpointBrain(loaded).goal)
+		} finally {
+			Files.delete(file)
+		}
+	}
+
+	private companion object {
+		const val NAP_MS = 5000L
+	}
+}
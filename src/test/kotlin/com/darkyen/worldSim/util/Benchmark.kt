@@ -0,0 +1,48 @@
+package com.darkyen.worldSim.util
+
+import kotlin.math.sqrt
+
+/** Seed of all benchmark inputs, so that the results of different runs are comparable */
+const val BENCHMARK_SEED = 42L
+
+/** Results of [benchmark]ed operations end up here, so that the JIT can't eliminate them as dead code. */
+@PublishedApi
+@Volatile
+internal var benchmarkSink = 0L
+
+/**
+ * Measure how long [operation] takes, in the manner of JMH: [warmUpIterations] iterations which are not measured,
+ * then [iterations] measured ones, each repeating [operation] for at least [iterationMs].
+ * Time is checked only after each [batchSize] operations, which should be large for operations that take only nanoseconds.
+ *
+ * [operation] returns any value derived from its work, which is consumed, so that the work can't be optimized away.
+ * Inline, so that each benchmark gets its own copy of the loop and the JIT does not see a megamorphic call.
+ * Prints and returns the mean time of one operation in nanoseconds.
+ */
+inline fun benchmark(name:String, batchSize:Int = 1, warmUpIterations:Int = 5, iterations:Int = 10, iterationMs:Long = 200, operation:() -> Long):Double {
+	val results = DoubleArray(iterations)
+	var sink = 0L
+	for (iteration in -warmUpIterations until iterations) {
+		var operations = 0L
+		val start = System.nanoTime()
+		val end = start + iterationMs * 1_000_000
+		var now:Long
+		do {
+			for (i in 0 until batchSize) {
+				sink = sink xor operation()
+			}
+			operations += batchSize
+			now = System.nanoTime()
+		} while (now < end)
+
+		if (iteration >= 0) {
+			results[iteration] = (now - start).toDouble() / operations
+		}
+	}
+	benchmarkSink = benchmarkSink xor sink
+
+	val mean = results.average()
+	val deviation = sqrt(results.sumByDouble { (it - mean) * (it - mean) } / results.size)
+	println("%-45s %12.1f ± %.1f ns/op".format(name, mean, deviation))
+	return mean
+}
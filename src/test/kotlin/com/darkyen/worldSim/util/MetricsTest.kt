@@ -0,0 +1,36 @@
+package com.darkyen.worldSim.util
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class MetricsTest {
+
+	@Test
+	fun samplerReportsChanges() {
+		val registry = MetricsRegistry()
+		val events = registry.metric("Events")
+		Assertions.assertSame(events, registry.metric("Events"))
+
+		val reported = HashMap<String, Long>()
+		val sampler = MetricsSampler(registry, object : MetricsReporter {
+			override fun report(metric: Metric, change: Long) {
+				reported[metric.name] = change
+			}
+		})
+
+		events.add(5)
+		sampler.sample()
+		Assertions.assertEquals(5L, reported["Events"])
+
+		events.increment()
+		val timer = registry.timer("Timer")
+		timer.time { Thread.sleep(1) }
+		sampler.sample()
+		Assertions.assertEquals(1L, reported["Events"])
+		Assertions.assertTrue(reported["Timer"]!! >= 1_000_000L)
+		Assertions.assertEquals(6L, events.total)
+	}
+}
@@ -0,0 +1,40 @@
+package com.darkyen.worldSim.util
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+/**
+ *
+ */
+class StreamRandomTest {
+
+	@Test
+	fun streamsAreReproducible() {
+		val key = StreamRandom.streamKey(1L, 1, 5L)
+		Assertions.assertEquals(key, StreamRandom.streamKey(1L, 1, 5L))
+		Assertions.assertNotEquals(key, StreamRandom.streamKey(1L, 1, 6L))
+		Assertions.assertNotEquals(key, StreamRandom.streamKey(1L, 2, 5L))
+
+		val first = StreamRandom(key)
+		val values = LongArray(10) { first.nextLong() }
+		Assertions.assertEquals(10L, first.counter)
+
+		// Other streams do not influence it
+		val interleaved = StreamRandom(key)
+		val other = StreamRandom(StreamRandom.streamKey(1L, 1, 6L))
+		for (value in values) {
+			other.nextLong()
+			Assertions.assertEquals(value, interleaved.nextLong())
+		}
+
+		// It can continue from a counter
+		val continued = StreamRandom(key, counter = 5L)
+		Assertions.assertEquals(values[5], continued.nextLong())
+
+		Assertions.assertEquals(0, first.nextBits(0))
+		for (i in 0 until 100) {
+			val value = first.nextInt(7)
+			Assertions.assertTrue(value in 0 until 7)
+		}
+	}
+}
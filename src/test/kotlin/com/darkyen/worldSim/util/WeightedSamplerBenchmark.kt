@@ -0,0 +1,12 @@
+package com.darkyen.worldSim.util
+
+import com.badlogic.gdx.math.RandomXS128
+
+/** [WeightedSampler.sample] from 16 unequally weighted items. */
+fun benchmarkWeightedSampler() {
+	val random = RandomXS128(BENCHMARK_SEED)
+	val sampler = WeightedSampler(*Array(16) { Weighted(it, (it + 1).toFloat()) })
+	benchmark("WeightedSampler.sample", batchSize = 1024) {
+		sampler.sample(random).toLong()
+	}
+}